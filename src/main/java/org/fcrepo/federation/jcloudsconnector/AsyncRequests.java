@@ -0,0 +1,249 @@
+package org.fcrepo.federation.jcloudsconnector;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Provider requests of a container sent without blocking the caller for
+ * each of them.
+ * <p>
+ * Every method returns as soon as its requests are queued, and requests that
+ * depend on each other are chained with futures, so fan-out such as removing
+ * or copying a whole folder costs the caller one wait for the combined
+ * result instead of one thread per request. Each request is admitted by the
+ * {@link RequestScheduler} first, if there is one, without holding a thread
+ * while it waits.
+ * </p>
+ * <p>
+ * A running request still holds a thread: the requests go to the blob store
+ * returned by {@link JCloudsConnector#blobStoreOf}, run on a fixed pool of
+ * this class, just as the <code>AsyncBlobStore</code> of jclouds 1.6 blocks a
+ * thread of its user and io executors per request. Requests beyond the pool
+ * wait in its queue.
+ * </p>
+ * <p>
+ * Copies are bulk writes whatever the priority of the caller. The GET of a
+ * copy and its PUT are admitted as one request, so no source stream is held
+ * open while the PUT waits for a slot, and a batch of copies keeps at most
+ * one copy per pool thread in flight.
+ * </p>
+ */
+class AsyncRequests {
+
+	private final BlobStore blobStore;
+	private final String containerName;
+	private final RequestScheduler scheduler;
+	private final ListeningExecutorService executor;
+	private final int threads;
+
+	/**
+	 * @param blobStore
+	 *            the blob store sending the requests, not scheduled itself
+	 * @param scheduler
+	 *            the scheduler admitting the requests; may be null
+	 * @param threads
+	 *            the most requests running at once
+	 */
+	AsyncRequests(BlobStore blobStore, String containerName,
+			RequestScheduler scheduler, int threads) {
+		this.blobStore = blobStore;
+		this.containerName = containerName;
+		this.scheduler = scheduler;
+		this.threads = threads;
+		this.executor = MoreExecutors.listeningDecorator(Executors
+				.newFixedThreadPool(threads, JCloudsUtil
+						.daemonThreadFactory("jclouds-async-" + containerName)));
+	}
+
+	void shutdown() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Returns whether there is a blob or a directory of the name, asking for
+	 * the directory only if there is no blob.
+	 */
+	ListenableFuture<Boolean> exists(final String name) {
+		final RequestPriority priority = RequestPriority.of("directoryExists");
+		ListenableFuture<Boolean> blob = call(
+				RequestPriority.of("blobExists"), new Callable<Boolean>() {
+
+					@Override
+					public Boolean call() {
+						return blobStore.blobExists(containerName, name);
+					}
+				});
+		return Futures.transform(blob, new AsyncFunction<Boolean, Boolean>() {
+
+			@Override
+			public ListenableFuture<Boolean> apply(Boolean found) {
+				if (found) {
+					return Futures.immediateFuture(true);
+				}
+				return call(priority, new Callable<Boolean>() {
+
+					@Override
+					public Boolean call() {
+						return blobStore.directoryExists(containerName, name);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Removes the blobs, all at once.
+	 */
+	ListenableFuture<List<Void>> removeAll(Collection<String> names) {
+		return Futures.allAsList(removeEach(names));
+	}
+
+	/**
+	 * Removes the blobs, all at once.
+	 *
+	 * @return the removal of each blob, in the order of the names
+	 */
+	List<ListenableFuture<Void>> removeEach(Collection<String> names) {
+		RequestPriority priority = RequestPriority.of("removeBlob");
+		List<ListenableFuture<Void>> removes = new ArrayList<ListenableFuture<Void>>(
+				names.size());
+		for (final String name : names) {
+			removes.add(call(priority, new Callable<Void>() {
+
+				@Override
+				public Void call() {
+					blobStore.removeBlob(containerName, name);
+					return null;
+				}
+			}));
+		}
+		return removes;
+	}
+
+	/**
+	 * Copies a blob by streaming the source GET into the target PUT, keeping
+	 * the user metadata. Both run as one {@link RequestPriority#BULK_WRITE}
+	 * request.
+	 *
+	 * @return the ETag of the copy
+	 */
+	ListenableFuture<String> copy(final String from, final String to) {
+		return call(RequestPriority.BULK_WRITE, new Callable<String>() {
+
+			@Override
+			public String call() throws IOException {
+				Blob source = blobStore.getBlob(containerName, from);
+				if (source == null) {
+					throw new IOException("Blob " + from
+							+ " does not exist in " + containerName);
+				}
+				return blobStore.putBlob(containerName,
+						JCloudsUtil.copyOf(source, blobStore.blobBuilder(to)));
+			}
+		});
+	}
+
+	/**
+	 * Copies the blobs to the names given by <code>targets</code>, at most
+	 * one per pool thread at once: each finished copy starts the next one.
+	 * No copy is started once one has failed.
+	 */
+	ListenableFuture<List<String>> copyAll(final List<String> names,
+			final List<String> targets) {
+		final List<SettableFuture<String>> copies = new ArrayList<SettableFuture<String>>(
+				names.size());
+		for (int i = 0; i < names.size(); i++) {
+			copies.add(SettableFuture.<String> create());
+		}
+		final ListenableFuture<List<String>> all = Futures
+				.allAsList(copies);
+		final AtomicInteger next = new AtomicInteger();
+		Runnable startNext = new Runnable() {
+
+			@Override
+			public void run() {
+				final int i = next.getAndIncrement();
+				if (i >= names.size() || all.isDone()) {
+					return;
+				}
+				final ListenableFuture<String> copy = copy(names.get(i),
+						targets.get(i));
+				final Runnable following = this;
+				copy.addListener(new Runnable() {
+
+					@Override
+					public void run() {
+						try {
+							copies.get(i).set(copy.get());
+						} catch (ExecutionException e) {
+							copies.get(i).setException(e.getCause());
+						} catch (InterruptedException e) {
+							// done already
+							Thread.currentThread().interrupt();
+						} catch (CancellationException e) {
+							copies.get(i).cancel(false);
+						}
+						following.run();
+					}
+				}, executor);
+			}
+		};
+		for (int i = 0; i < Math.min(threads, names.size()); i++) {
+			startNext.run();
+		}
+		return all;
+	}
+
+	/**
+	 * Waits for a future of these requests.
+	 */
+	static <T> T await(ListenableFuture<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the provider",
+					e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Runs a request on the pool once the scheduler admits it.
+	 */
+	private <T> ListenableFuture<T> call(RequestPriority priority,
+			final Callable<T> request) {
+		if (scheduler == null) {
+			return executor.submit(request);
+		}
+		return scheduler.call(priority, new Callable<ListenableFuture<T>>() {
+
+			@Override
+			public ListenableFuture<T> call() {
+				return executor.submit(request);
+			}
+		});
+	}
+}
@@ -0,0 +1,502 @@
+package org.fcrepo.federation.jcloudsconnector;
+
+import static org.jclouds.blobstore.options.GetOptions.Builder.range;
+import static org.jclouds.blobstore.options.ListContainerOptions.Builder.inDirectory;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.SequenceInputStream;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.domain.PageSet;
+import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.domain.StorageType;
+import org.jclouds.blobstore.options.ListContainerOptions;
+import org.slf4j.Logger;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * Fixity audit of a bag stored in a cloud container (e.g. by
+ * {@link BagIngester}) that avoids downloading content whenever possible.
+ * <p>
+ * The bag's payload manifest is read from the container and the payload is
+ * walked with paged listings. For each blob the cheapest available evidence
+ * is used, in this order:
+ * <ol>
+ * <li>the ETag returned by the listing, when the provider uses the MD5 of the
+ * content as ETag and the manifest is an MD5 manifest;</li>
+ * <li>the digest recorded in the blob's user metadata when it was uploaded
+ * (one HEAD request);</li>
+ * <li>a digest computed by streaming the content in ranged reads, throttled
+ * to <code>bytesPerSecond</code> for the whole audit.</li>
+ * </ol>
+ * Results are appended to a results file as each page is done. The listing
+ * marker of the last completed page is kept in a checkpoint file, and the
+ * payload files checked so far in a file next to it, so an interrupted audit
+ * continues where it stopped. The marker is only handed back to the
+ * provider, as it may be opaque; files listed again after a resume are not
+ * checked twice, and manifest entries not checked before are still reported
+ * if missing. A completed pass removes both files, so calling
+ * {@link #audit()} in a loop audits continuously.
+ * </p>
+ * <p>
+ * All requests of the audit run as {@link RequestPriority#BACKGROUND}, which
+ * an auditor made by {@link JCloudsConnector#fixityAuditor} schedules behind
+ * the requests of the repository sessions.
+ * </p>
+ */
+public class BagFixityAuditor {
+
+	private static final Logger LOGGER = getLogger(BagFixityAuditor.class);
+
+	private static final String DELIMITER = "/";
+	private static final String PAYLOAD_DIR = "data";
+	private static final int PAGE_SIZE = 1000;
+	private static final long RANGE_SIZE = 8L * 1024 * 1024;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	public enum Status {
+		VERIFIED_ETAG, VERIFIED_METADATA, VERIFIED_DIGEST, MISMATCH, MISSING,
+		NOT_IN_MANIFEST, ERROR
+	}
+
+	private final BlobStore blobStore;
+	private final String containerName;
+	private final String bagPrefix;
+	private final String algorithm;
+	private final int threads;
+	private final RateLimiter bandwidth;
+	private final File checkpointFile;
+	private final File checkedFile;
+	private final File resultsFile;
+
+	/**
+	 * @param bagPrefix
+	 *            the blob name prefix of the bag, i.e. the directory holding
+	 *            <code>bagit.txt</code> and the manifests
+	 * @param algorithm
+	 *            the BagIt name of the manifest algorithm to audit against,
+	 *            e.g. "md5"
+	 * @param bytesPerSecond
+	 *            the maximum bandwidth used to stream content when it has to
+	 *            be digested
+	 * @param workDir
+	 *            the local directory holding the checkpoint and results files
+	 */
+	public BagFixityAuditor(BlobStore blobStore, String containerName,
+			String bagPrefix, String algorithm, int threads,
+			long bytesPerSecond, File workDir) {
+		this.blobStore = blobStore;
+		this.containerName = containerName;
+		this.bagPrefix = bagPrefix.endsWith(DELIMITER) ? bagPrefix.substring(
+				0, bagPrefix.length() - 1) : bagPrefix;
+		this.algorithm = algorithm.toLowerCase();
+		this.threads = threads;
+		this.bandwidth = RateLimiter.create(bytesPerSecond);
+		this.checkpointFile = new File(workDir, "fixity-" + this.algorithm
+				+ ".checkpoint");
+		this.checkedFile = new File(workDir, "fixity-" + this.algorithm
+				+ ".checked");
+		this.resultsFile = new File(workDir, "fixity-" + this.algorithm
+				+ ".results");
+	}
+
+	/**
+	 * Audits the bag, resuming from the last checkpoint if there is one.
+	 *
+	 * @return the number of results per status recorded by this call
+	 */
+	public Map<Status, Integer> audit() throws IOException,
+			InterruptedException {
+		RequestPriority previous = RequestPriority.BACKGROUND.enter();
+		try {
+			return auditPass();
+		} finally {
+			RequestPriority.restore(previous);
+		}
+	}
+
+	private Map<Status, Integer> auditPass() throws IOException,
+			InterruptedException {
+
+		Map<String, String> manifest = readManifest();
+		Map<Status, Integer> totals = new HashMap<Status, Integer>();
+		ExecutorService executor = Executors.newFixedThreadPool(threads,
+				JCloudsUtil.daemonThreadFactory("fixity-audit-" + bagPrefix,
+						RequestPriority.BACKGROUND));
+		String marker = readCheckpoint();
+		Set<String> checked = new HashSet<String>();
+		if (marker != null) {
+			checked.addAll(readChecked());
+			LOGGER.info("Resuming fixity audit of {} after {} files",
+					bagPrefix, checked.size());
+			manifest.keySet().removeAll(checked);
+		} else {
+			FileUtils.deleteQuietly(checkedFile);
+		}
+		Writer results = new OutputStreamWriter(new FileOutputStream(
+				resultsFile, true), "UTF-8");
+		Writer checkedNames = new OutputStreamWriter(new FileOutputStream(
+				checkedFile, true), "UTF-8");
+
+		try {
+
+			do {
+				ListContainerOptions options = inDirectory(
+						bagPrefix + DELIMITER + PAYLOAD_DIR).recursive()
+						.maxResults(PAGE_SIZE);
+				if (marker != null) {
+					options.afterMarker(marker);
+				}
+				PageSet<? extends StorageMetadata> page = blobStore.list(
+						containerName, options);
+
+				List<Future<String[]>> checks = new ArrayList<Future<String[]>>();
+				for (StorageMetadata metadata : page) {
+					if (metadata.getType() != StorageType.BLOB) {
+						continue;
+					}
+					String filepath = metadata.getName().substring(
+							bagPrefix.length() + DELIMITER.length());
+					if (!checked.add(filepath)) {
+						// checked before the audit was interrupted
+						continue;
+					}
+					checks.add(executor.submit(check(metadata,
+							manifest.remove(filepath))));
+				}
+				for (Future<String[]> check : checks) {
+					String[] result = get(check);
+					record(results, totals, result);
+					checkedNames.write(result[1] + "\n");
+				}
+
+				marker = page.getNextMarker();
+				results.flush();
+				checkedNames.flush();
+				writeCheckpoint(marker);
+			} while (marker != null);
+
+			for (String missing : manifest.keySet()) {
+				record(results, totals, new String[] { Status.MISSING.name(),
+						missing, "" });
+			}
+			results.flush();
+			writeCheckpoint(null);
+		} finally {
+			executor.shutdownNow();
+			IOUtils.closeQuietly(results);
+			IOUtils.closeQuietly(checkedNames);
+		}
+		FileUtils.deleteQuietly(checkedFile);
+
+		LOGGER.info("Fixity audit of {}/{}: {}", new Object[] { containerName,
+				bagPrefix, totals });
+		return totals;
+	}
+
+	private Callable<String[]> check(final StorageMetadata metadata,
+			final String expected) {
+		return new Callable<String[]>() {
+
+			@Override
+			public String[] call() {
+				String filepath = metadata.getName().substring(
+						bagPrefix.length() + DELIMITER.length());
+				if (expected == null) {
+					return new String[] { Status.NOT_IN_MANIFEST.name(),
+							filepath, "" };
+				}
+				try {
+					return new String[] { verify(metadata, expected).name(),
+							filepath, expected };
+				} catch (Exception e) {
+					LOGGER.warn("Fixity check of {} failed", filepath, e);
+					return new String[] { Status.ERROR.name(), filepath,
+							e.toString() };
+				}
+			}
+		};
+	}
+
+	private Status verify(StorageMetadata metadata, String expected)
+			throws Exception {
+
+		if ("md5".equals(algorithm) && metadata.getETag() != null) {
+			String etag = metadata.getETag().replace("\"", "");
+			// multipart ETags ("<md5>-<parts>") are not content digests
+			if (etag.equalsIgnoreCase(expected)) {
+				return Status.VERIFIED_ETAG;
+			}
+		}
+
+		BlobMetadata head = blobStore.blobMetadata(containerName,
+				metadata.getName());
+		if (head == null) {
+			return Status.MISSING;
+		}
+		String recorded = head.getUserMetadata().get(
+				JCloudsUtil.fixityMetadataKey(algorithm));
+		if (recorded != null) {
+			return recorded.equalsIgnoreCase(expected) ? Status.VERIFIED_METADATA
+					: Status.MISMATCH;
+		}
+
+		Long size = head.getContentMetadata().getContentLength();
+		BlobCodec codec = BlobCodec.fromMetadata(head.getUserMetadata().get(
+				JCloudsUtil.CODEC_METADATA));
+		return streamDigest(metadata.getName(), size == null ? -1 : size,
+				codec).equalsIgnoreCase(expected) ? Status.VERIFIED_DIGEST
+				: Status.MISMATCH;
+	}
+
+	/**
+	 * Digests the original bytes of the blob, decoded with its codec, read
+	 * with ranged reads of {@link #RANGE_SIZE}, so a failing connection only
+	 * costs one range and the bandwidth limiter is consulted for every
+	 * buffer.
+	 */
+	private String streamDigest(String blobName, long size, BlobCodec codec)
+			throws Exception {
+		MessageDigest md = BagIngester.messageDigest(algorithm);
+		byte[] buffer = new byte[BUFFER_SIZE];
+
+		InputStream in = codec.decode(new RangedInputStream(blobName, size));
+		try {
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				md.update(buffer, 0, read);
+			}
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+
+		return JCloudsUtil.toHex(md.digest());
+	}
+
+	/**
+	 * The stored bytes of a blob, read with one ranged GET per
+	 * {@link #RANGE_SIZE} bytes, or one GET if the size is unknown.
+	 */
+	private final class RangedInputStream extends InputStream {
+
+		private final String blobName;
+		private final long size;
+		private long offset;
+		private InputStream range;
+		private boolean whole;
+
+		RangedInputStream(String blobName, long size) {
+			this.blobName = blobName;
+			this.size = size;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			while (true) {
+				if (range == null && !nextRange()) {
+					return -1;
+				}
+				int read = range.read(b, off, len);
+				if (read > 0) {
+					bandwidth.acquire(read);
+					offset += read;
+					return read;
+				}
+				if (read < 0) {
+					range.close();
+					range = null;
+				}
+			}
+		}
+
+		/**
+		 * @return false at the end of the blob
+		 */
+		private boolean nextRange() throws IOException {
+			if (whole || size >= 0 && offset >= size) {
+				return false;
+			}
+			long start = offset;
+			Blob blob;
+			if (size < 0) {
+				blob = blobStore.getBlob(containerName, blobName);
+				whole = true;
+			} else {
+				blob = blobStore.getBlob(containerName, blobName,
+						range(offset, Math.min(offset + RANGE_SIZE, size) - 1));
+			}
+			if (blob == null) {
+				throw new IOException("Blob " + blobName + " disappeared");
+			}
+			range = blob.getPayload().getInput();
+			if (!whole) {
+				// an empty range would never get to the end
+				int first = range.read();
+				if (first < 0) {
+					throw new IOException("Empty range at " + start + " of "
+							+ blobName + " of " + size + " bytes");
+				}
+				range = new SequenceInputStream(new ByteArrayInputStream(
+						new byte[] { (byte) first }), range);
+			}
+			return true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (range != null) {
+				range.close();
+			}
+		}
+	}
+
+	private Map<String, String> readManifest() throws IOException {
+		String manifestName = bagPrefix + DELIMITER + "manifest-" + algorithm
+				+ ".txt";
+		Blob blob = blobStore.getBlob(containerName, manifestName);
+		if (blob == null) {
+			throw new IOException("No manifest " + manifestName + " in "
+					+ containerName);
+		}
+
+		Map<String, String> manifest = new HashMap<String, String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(blob
+				.getPayload().getInput(), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				int split = line.indexOf(' ');
+				if (split > 0) {
+					manifest.put(line.substring(split).trim().replace('\\', '/'),
+							line.substring(0, split));
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return manifest;
+	}
+
+	private String readCheckpoint() throws IOException {
+		if (!checkpointFile.exists()) {
+			return null;
+		}
+		String marker = FileUtils.readFileToString(checkpointFile, "UTF-8")
+				.trim();
+		return marker.isEmpty() ? null : marker;
+	}
+
+	/**
+	 * @return the payload files checked since the last completed pass
+	 */
+	private List<String> readChecked() throws IOException {
+		if (!checkedFile.exists()) {
+			return new ArrayList<String>();
+		}
+		return FileUtils.readLines(checkedFile, "UTF-8");
+	}
+
+	private void writeCheckpoint(String marker) throws IOException {
+		if (marker == null) {
+			FileUtils.deleteQuietly(checkpointFile);
+		} else {
+			File tmp = new File(checkpointFile.getPath() + ".tmp");
+			FileUtils.writeStringToFile(tmp, marker, "UTF-8");
+			if (!tmp.renameTo(checkpointFile)) {
+				FileUtils.copyFile(tmp, checkpointFile);
+				FileUtils.deleteQuietly(tmp);
+			}
+		}
+	}
+
+	private static void record(Writer results, Map<Status, Integer> totals,
+			String[] result) throws IOException {
+		Status status = Status.valueOf(result[0]);
+		Integer count = totals.get(status);
+		totals.put(status, count == null ? 1 : count + 1);
+		results.write(result[0] + "\t" + result[1] + "\t" + result[2] + "\n");
+	}
+
+	private static String[] get(Future<String[]> future)
+			throws InterruptedException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * Command line entry point:
+	 * <code>BagFixityAuditor provider identity credential container bagPrefix algorithm workDir [threads] [bytesPerSecond]</code>
+	 */
+	public static void main(String[] args) throws IOException,
+			InterruptedException {
+		if (args.length < 7) {
+			System.err.println("Usage: BagFixityAuditor <provider> <identity> "
+					+ "<credential> <container> <bagPrefix> <algorithm> "
+					+ "<workDir> [threads] [bytesPerSecond]");
+			System.exit(2);
+		}
+		int threads = args.length > 7 ? Integer.parseInt(args[7]) : 4;
+		long bytesPerSecond = args.length > 8 ? Long.parseLong(args[8])
+				: 10L * 1024 * 1024;
+
+		BlobStoreContext ctx = ContextBuilder.newBuilder(args[0])
+				.credentials(args[1], args[2])
+				.buildView(BlobStoreContext.class);
+		Map<Status, Integer> totals;
+		try {
+			totals = new BagFixityAuditor(ctx.getBlobStore(), args[3],
+					args[4], args[5], threads, bytesPerSecond, new File(
+							args[6])).audit();
+		} finally {
+			ctx.close();
+		}
+
+		System.out.println(totals);
+		boolean verified = true;
+		for (Status status : totals.keySet()) {
+			verified &= status.name().startsWith("VERIFIED");
+		}
+		System.exit(verified ? 0 : 1);
+	}
+}
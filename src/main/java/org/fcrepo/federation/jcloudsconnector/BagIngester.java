@@ -0,0 +1,398 @@
+package org.fcrepo.federation.jcloudsconnector;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import gov.loc.repository.bagit.Bag;
+import gov.loc.repository.bagit.BagFactory;
+import gov.loc.repository.bagit.BagFactory.LoadOption;
+import gov.loc.repository.bagit.BagFile;
+import gov.loc.repository.bagit.Manifest;
+
+import org.apache.commons.io.IOUtils;
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.blobstore.domain.BlobBuilder.PayloadBlobBuilder;
+import org.slf4j.Logger;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * Bulk ingest of a local BagIt bag into a cloud container.
+ * <p>
+ * Payload and tag files are streamed straight from disk to the provider by a
+ * fixed pool of upload threads. At most <code>2 * threads</code> files are in
+ * flight at any time, so memory use does not depend on the size of the bag.
+ * Every payload file is first digested locally, with all algorithms of the
+ * payload manifests and MD5 at once, and compared against the manifest.
+ * Mismatching files are reported as failures and not uploaded, and so are
+ * payload files no manifest lists.
+ * </p>
+ * <p>
+ * A verified file is uploaded once, with its digests in its user metadata
+ * (see {@link JCloudsUtil#fixityMetadataKey(String)}), so later fixity audits
+ * do not need to download the content. The upload carries the MD5 as
+ * Content-MD5, so the provider rejects it if the file changed on disk after
+ * it was digested.
+ * </p>
+ * <p>
+ * The {@link JCloudsConnector} derives the JCR tree from the blob names, so
+ * once the bag is uploaded under <code>prefix</code> it is visible as a
+ * <code>nt:folder</code>/<code>bagit:cloudsFile</code> subtree without any
+ * per-node <code>storeDocument</code> calls. An ingester made by
+ * {@link JCloudsConnector#bagIngester(int)} uploads through the request
+ * scheduling of the connector, as {@link RequestPriority#BULK_WRITE}, and
+ * records every uploaded blob in the caches and listings of the connector
+ * as a session write would, so it is visible at once.
+ * </p>
+ */
+public class BagIngester {
+
+	private static final Logger LOGGER = getLogger(BagIngester.class);
+
+	private static final String DELIMITER = "/";
+
+	/**
+	 * Key of the MD5 sent as Content-MD5 among the local digests.
+	 */
+	private static final String MD5 = "Content-MD5";
+
+	private final BlobStore blobStore;
+	private final String containerName;
+	private final int threads;
+	private final UploadListener listener;
+
+	public BagIngester(BlobStore blobStore, String containerName, int threads) {
+		this(blobStore, containerName, threads, null);
+	}
+
+	/**
+	 * @param listener
+	 *            told about every stored blob; may be null
+	 */
+	BagIngester(BlobStore blobStore, String containerName, int threads,
+			UploadListener listener) {
+		this.blobStore = blobStore;
+		this.containerName = containerName;
+		this.threads = threads;
+		this.listener = listener;
+	}
+
+	/**
+	 * Uploads the bag located at <code>bagDir</code> below the given prefix of
+	 * the container.
+	 *
+	 * @param bagDir
+	 *            the directory (or serialized bag) to read; may not be null
+	 * @param prefix
+	 *            the blob name prefix the bag is stored under, e.g.
+	 *            "dir1/mybag"; may be empty for the container root
+	 * @return the report of the ingest; never null
+	 * @throws InterruptedException
+	 *             if the calling thread is interrupted while waiting for the
+	 *             uploads
+	 */
+	public IngestReport ingest(File bagDir, String prefix)
+			throws InterruptedException {
+
+		BagFactory bagFactory = new BagFactory();
+		// by files, so payload files no manifest lists are seen
+		Bag bag = bagFactory.createBag(bagDir, LoadOption.BY_FILES);
+		IngestReport report = new IngestReport();
+		ExecutorService executor = Executors.newFixedThreadPool(threads,
+				JCloudsUtil.daemonThreadFactory("bag-ingest-" + containerName,
+						RequestPriority.BULK_WRITE));
+		Semaphore inFlight = new Semaphore(threads * 2);
+
+		try {
+			Map<String, Map<String, String>> expected = expectedDigests(bag);
+			Set<String> missing = new TreeSet<String>(expected.keySet());
+
+			for (BagFile bagFile : bag.getPayload()) {
+				missing.remove(bagFile.getFilepath());
+				Map<String, String> digests = expected.get(bagFile
+						.getFilepath());
+				if (digests == null) {
+					report.failed(bagFile.getFilepath(),
+							"not listed in any payload manifest");
+					continue;
+				}
+				submit(executor, inFlight, report, bagFile, prefix, digests);
+			}
+			for (String filepath : missing) {
+				report.failed(filepath, "listed in a manifest but missing");
+			}
+			// tag files (manifests, bagit.txt, bag-info.txt) go last so that a
+			// bag with complete manifests in the container is a complete bag
+			for (BagFile bagFile : bag.getTags()) {
+				submit(executor, inFlight, report, bagFile, prefix,
+						Collections.<String, String> emptyMap());
+			}
+		} finally {
+			executor.shutdown();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			bag.close();
+		}
+
+		LOGGER.info("Ingested bag {} into {}/{}: {}", new Object[] { bagDir,
+				containerName, prefix, report });
+		return report;
+	}
+
+	private void submit(ExecutorService executor, final Semaphore inFlight,
+			final IngestReport report, final BagFile bagFile,
+			final String prefix, final Map<String, String> digests)
+			throws InterruptedException {
+
+		inFlight.acquire();
+		try {
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						upload(bagFile, blobName(prefix, bagFile.getFilepath()),
+								digests, report);
+					} finally {
+						inFlight.release();
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			inFlight.release();
+			throw e;
+		}
+	}
+
+	private void upload(BagFile bagFile, String blobName,
+			Map<String, String> digests, IngestReport report) {
+
+		InputStream in = null;
+		try {
+			Map<String, String> userMetadata = new HashMap<String, String>();
+			byte[] md5 = null;
+			if (!digests.isEmpty()) {
+				Map<String, MessageDigest> algorithms = digest(bagFile,
+						digests.keySet());
+				md5 = algorithms.remove(MD5).digest();
+				String mismatch = mismatch(digests, algorithms);
+				if (mismatch != null) {
+					report.failed(bagFile.getFilepath(), mismatch);
+					return;
+				}
+				for (Map.Entry<String, String> digest : digests.entrySet()) {
+					userMetadata.put(
+							JCloudsUtil.fixityMetadataKey(digest.getKey()),
+							digest.getValue().toLowerCase());
+				}
+			}
+
+			in = bagFile.newInputStream();
+			PayloadBlobBuilder builder = blobStore.blobBuilder(blobName)
+					.payload(in).contentLength(bagFile.getSize())
+					.contentType("application/octet-stream");
+			if (md5 != null) {
+				builder.contentMD5(md5);
+			}
+			blobStore.putBlob(containerName, builder.userMetadata(userMetadata)
+					.build());
+			if (listener != null) {
+				listener.uploaded(blobName, bagFile.getSize());
+			}
+			report.uploaded(bagFile.getSize());
+
+		} catch (Exception e) {
+			LOGGER.warn("Upload of {} failed", bagFile.getFilepath(), e);
+			report.failed(bagFile.getFilepath(), e.toString());
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * Reads the local file once with the given BagIt algorithms and MD5.
+	 *
+	 * @return the digests keyed by algorithm, MD5 under {@link #MD5}
+	 */
+	private static Map<String, MessageDigest> digest(BagFile bagFile,
+			Set<String> bagItAlgorithms) throws IOException,
+			NoSuchAlgorithmException {
+		Map<String, MessageDigest> algorithms = new LinkedHashMap<String, MessageDigest>();
+		InputStream in = bagFile.newInputStream();
+		try {
+			for (String algorithm : bagItAlgorithms) {
+				MessageDigest md = messageDigest(algorithm);
+				algorithms.put(algorithm, md);
+				in = new DigestInputStream(in, md);
+			}
+			MessageDigest md5 = MessageDigest.getInstance("MD5");
+			algorithms.put(MD5, md5);
+			in = new DigestInputStream(in, md5);
+			ByteStreams.copy(in, ByteStreams.nullOutputStream());
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+		return algorithms;
+	}
+
+	/**
+	 * @return what does not match the manifest, or null if all digests do
+	 */
+	private static String mismatch(Map<String, String> digests,
+			Map<String, MessageDigest> algorithms) {
+		for (Map.Entry<String, MessageDigest> algorithm : algorithms
+				.entrySet()) {
+			String actual = JCloudsUtil.toHex(algorithm.getValue().digest());
+			String manifest = digests.get(algorithm.getKey());
+			if (!actual.equalsIgnoreCase(manifest)) {
+				return algorithm.getKey() + " mismatch: manifest " + manifest
+						+ ", actual " + actual;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns, per payload file path, the digests declared by all payload
+	 * manifests keyed by their BagIt algorithm name.
+	 */
+	private static Map<String, Map<String, String>> expectedDigests(Bag bag) {
+		Map<String, Map<String, String>> expected = new HashMap<String, Map<String, String>>();
+		for (Manifest manifest : bag.getPayloadManifests()) {
+			String algorithm = manifest.getAlgorithm().bagItAlgorithm;
+			for (Map.Entry<String, String> entry : manifest.entrySet()) {
+				Map<String, String> digests = expected.get(entry.getKey());
+				if (digests == null) {
+					digests = new LinkedHashMap<String, String>();
+					expected.put(entry.getKey(), digests);
+				}
+				digests.put(algorithm, entry.getValue());
+			}
+		}
+		return expected;
+	}
+
+	static MessageDigest messageDigest(String bagItAlgorithm)
+			throws NoSuchAlgorithmException {
+		return MessageDigest.getInstance(Manifest.Algorithm
+				.valueOfBagItAlgorithm(bagItAlgorithm).javaSecurityAlgorithm);
+	}
+
+	static String blobName(String prefix, String filepath) {
+		if (prefix == null || prefix.isEmpty()) {
+			return filepath;
+		}
+		return prefix.endsWith(DELIMITER) ? prefix + filepath : prefix
+				+ DELIMITER + filepath;
+	}
+
+	/**
+	 * Told about the blobs an ingester stores, on its upload threads.
+	 */
+	interface UploadListener {
+
+		void uploaded(String blobName, long size);
+	}
+
+	/**
+	 * Outcome of an ingest. Safe for concurrent updates by the upload threads.
+	 */
+	public static class IngestReport {
+
+		private final AtomicLong files = new AtomicLong();
+		private final AtomicLong bytes = new AtomicLong();
+		private final Map<String, String> failures = Collections
+				.synchronizedMap(new LinkedHashMap<String, String>());
+
+		void uploaded(long size) {
+			files.incrementAndGet();
+			bytes.addAndGet(size);
+		}
+
+		void failed(String filepath, String reason) {
+			failures.put(filepath, reason);
+		}
+
+		public long getUploadedFiles() {
+			return files.get();
+		}
+
+		public long getUploadedBytes() {
+			return bytes.get();
+		}
+
+		/**
+		 * @return the failed file paths with the reason of the failure
+		 */
+		public Map<String, String> getFailures() {
+			synchronized (failures) {
+				return new LinkedHashMap<String, String>(failures);
+			}
+		}
+
+		public boolean isSuccessful() {
+			return failures.isEmpty();
+		}
+
+		@Override
+		public String toString() {
+			return files + " files, " + bytes + " bytes uploaded, "
+					+ failures.size() + " failures";
+		}
+	}
+
+	/**
+	 * Command line entry point:
+	 * <code>BagIngester provider identity credential container bagDir [prefix] [threads]</code>
+	 */
+	public static void main(String[] args) throws IOException,
+			InterruptedException {
+		if (args.length < 5) {
+			System.err.println("Usage: BagIngester <provider> <identity> "
+					+ "<credential> <container> <bagDir> [prefix] [threads]");
+			System.exit(2);
+		}
+		String prefix = args.length > 5 ? args[5] : "";
+		int threads = args.length > 6 ? Integer.parseInt(args[6]) : 16;
+
+		BlobStoreContext ctx = ContextBuilder.newBuilder(args[0])
+				.credentials(args[1], args[2])
+				.buildView(BlobStoreContext.class);
+		IngestReport report;
+		try {
+			report = new BagIngester(ctx.getBlobStore(), args[3], threads)
+					.ingest(new File(args[4]), prefix);
+		} finally {
+			ctx.close();
+		}
+
+		List<String> lines = new ArrayList<String>();
+		for (Map.Entry<String, String> failure : report.getFailures()
+				.entrySet()) {
+			lines.add(failure.getKey() + ": " + failure.getValue());
+		}
+		System.out.println(report);
+		IOUtils.writeLines(lines, null, System.err);
+		System.exit(report.isSuccessful() ? 0 : 1);
+	}
+}
@@ -0,0 +1,90 @@
+package org.fcrepo.federation.jcloudsconnector;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Codecs a blob's payload can be stored with. The codec is recorded in the
+ * blob's user metadata under {@link JCloudsUtil#CODEC_METADATA} so reads can
+ * decode it without any configuration; blobs without that entry are
+ * {@link #IDENTITY}.
+ */
+public enum BlobCodec {
+
+	IDENTITY("identity") {
+
+		@Override
+		public OutputStream encode(OutputStream out) {
+			return out;
+		}
+
+		@Override
+		public InputStream decode(InputStream in) {
+			return in;
+		}
+	},
+
+	GZIP("gzip") {
+
+		@Override
+		public OutputStream encode(OutputStream out) throws IOException {
+			return new GZIPOutputStream(out, BUFFER_SIZE);
+		}
+
+		@Override
+		public InputStream decode(InputStream in) throws IOException {
+			return new GZIPInputStream(in, BUFFER_SIZE);
+		}
+	};
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private final String metadataValue;
+
+	private BlobCodec(String metadataValue) {
+		this.metadataValue = metadataValue;
+	}
+
+	/**
+	 * @return the name recorded in the blob metadata
+	 */
+	public String getMetadataValue() {
+		return metadataValue;
+	}
+
+	/**
+	 * Wraps the stream the encoded payload is written to. Closing the
+	 * returned stream finishes the encoding and closes <code>out</code>.
+	 */
+	public abstract OutputStream encode(OutputStream out) throws IOException;
+
+	/**
+	 * Wraps the stored payload so it reads as the original bytes.
+	 */
+	public abstract InputStream decode(InputStream in) throws IOException;
+
+	/**
+	 * Returns the codec recorded in blob metadata.
+	 *
+	 * @param metadataValue
+	 *            the recorded value; may be null
+	 * @return the codec; {@link #IDENTITY} if nothing is recorded
+	 * @throws IllegalArgumentException
+	 *             if the codec is unknown
+	 */
+	public static BlobCodec fromMetadata(String metadataValue) {
+		if (metadataValue == null) {
+			return IDENTITY;
+		}
+		for (BlobCodec codec : values()) {
+			if (codec.metadataValue.equalsIgnoreCase(metadataValue)) {
+				return codec;
+			}
+		}
+		throw new IllegalArgumentException("Unknown blob codec "
+				+ metadataValue);
+	}
+}
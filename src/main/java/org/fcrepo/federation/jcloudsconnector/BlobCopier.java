@@ -0,0 +1,443 @@
+package org.fcrepo.federation.jcloudsconnector;
+
+import static org.jclouds.blobstore.options.ListContainerOptions.Builder.inDirectory;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.PageSet;
+import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.domain.StorageType;
+import org.jclouds.blobstore.options.ListContainerOptions;
+import org.jclouds.rest.RestContext;
+import org.jclouds.s3.S3AsyncClient;
+import org.jclouds.s3.S3Client;
+import org.slf4j.Logger;
+
+/**
+ * Copies, moves and removes blobs within a container without passing the
+ * content through the repository.
+ * <p>
+ * On S3 providers the copy is done by the provider (PUT with
+ * <code>x-amz-copy-source</code>), so no content is transferred at all. Other
+ * providers, and S3 objects the provider cannot copy in one request (over 5
+ * GB), are copied by streaming the source GET straight into the target PUT,
+ * keeping the user metadata. Copies are bulk writes, see
+ * {@link RequestPriority}, and the provider's copies are admitted by the
+ * request scheduler like any other request. Subtrees are copied with one
+ * task per blob on the given executor, or with chained asynchronous requests
+ * if the connector runs in asynchronous mode, and sources are only removed
+ * once every copy succeeded.
+ * </p>
+ * <p>
+ * Subtrees are removed page by page: the removals of one page of the prefix
+ * listing run in parallel, bounded by the executor, or by the request
+ * scheduler in asynchronous mode, while the next page is listed. Failed
+ * removals do not stop the others and are reported at the end.
+ * </p>
+ */
+class BlobCopier {
+
+	private static final Logger LOGGER = getLogger(BlobCopier.class);
+
+	private static final String DELIMITER = "/";
+	private static final int PAGE_SIZE = 1000;
+	private static final int PROGRESS_PAGES = 10;
+
+	/**
+	 * Receives the names of a subtree as they are removed.
+	 */
+	interface RemovalListener {
+
+		/**
+		 * @param names
+		 *            the names of a batch of removed blobs or folder markers
+		 */
+		void removed(List<String> names);
+	}
+
+	/**
+	 * What removing a subtree did.
+	 */
+	static final class RemovalReport {
+
+		final int removed;
+		final List<String> failed;
+
+		RemovalReport(int removed, List<String> failed) {
+			this.removed = removed;
+			this.failed = failed;
+		}
+
+		boolean isComplete() {
+			return failed.isEmpty();
+		}
+	}
+
+	/**
+	 * What moving a subtree moved.
+	 */
+	static final class MovedTree {
+
+		/**
+		 * The names of the moved blobs.
+		 */
+		final List<String> blobs;
+
+		/**
+		 * The names of the moved folders below the moved one.
+		 */
+		final List<String> folders;
+
+		MovedTree(List<String> blobs, List<String> folders) {
+			this.blobs = blobs;
+			this.folders = folders;
+		}
+	}
+
+	private final BlobStore blobStore;
+	private final String containerName;
+	private final ExecutorService executor;
+	private final S3Client s3;
+	private final AsyncRequests async;
+
+	/**
+	 * @param async
+	 *            the asynchronous requests streamed copies and removals are
+	 *            sent with, instead of one task per blob on the executor;
+	 *            may be null
+	 * @param scheduler
+	 *            the scheduler the provider's copies are sent through, like
+	 *            the requests of the blob store; may be null
+	 */
+	BlobCopier(BlobStoreContext ctx, BlobStore blobStore, String provider,
+			String containerName, ExecutorService executor,
+			AsyncRequests async, RequestScheduler scheduler) {
+		this.blobStore = blobStore;
+		this.containerName = containerName;
+		this.executor = executor;
+		this.async = async;
+		S3Client client = provider.contains("s3") ? s3ClientOf(ctx) : null;
+		this.s3 = client != null && scheduler != null ? scheduler.schedule(
+				S3Client.class, client) : client;
+	}
+
+	/**
+	 * Copies one blob, as a {@link RequestPriority#BULK_WRITE} request.
+	 */
+	void copy(String from, String to) throws IOException {
+		RequestPriority previous = RequestPriority.BULK_WRITE.enter();
+		try {
+			if (s3 != null) {
+				try {
+					s3.copyObject(containerName, from, containerName, to);
+					return;
+				} catch (RuntimeException e) {
+					LOGGER.debug(
+							"Server-side copy of {} failed, streaming it: {}",
+							from, e.getMessage());
+				}
+			}
+
+			Blob source = blobStore.getBlob(containerName, from);
+			if (source == null) {
+				throw new IOException("Blob " + from + " does not exist in "
+						+ containerName);
+			}
+			blobStore.putBlob(containerName,
+					JCloudsUtil.copyOf(source, blobStore.blobBuilder(to)));
+		} finally {
+			RequestPriority.restore(previous);
+		}
+	}
+
+	/**
+	 * Replaces the content type of a blob by streaming its stored bytes onto
+	 * itself, keeping their encoding and the user metadata, so nothing is
+	 * read from the repository or encoded again.
+	 */
+	void replaceContentType(String name, String contentType)
+			throws IOException {
+		RequestPriority previous = RequestPriority.BULK_WRITE.enter();
+		try {
+			Blob source = blobStore.getBlob(containerName, name);
+			if (source == null) {
+				throw new IOException("Blob " + name + " does not exist in "
+						+ containerName);
+			}
+			Blob copy = JCloudsUtil.copyOf(source,
+					blobStore.blobBuilder(name));
+			copy.getMetadata().getContentMetadata()
+					.setContentType(contentType);
+			blobStore.putBlob(containerName, copy);
+		} finally {
+			RequestPriority.restore(previous);
+		}
+	}
+
+	/**
+	 * Copies all blobs below <code>fromPrefix</code> to the same relative
+	 * names below <code>toPrefix</code>, in parallel.
+	 *
+	 * @return the names of the copied source blobs
+	 */
+	List<String> copyTree(String fromPrefix, final String toPrefix)
+			throws IOException, InterruptedException {
+		final String from = fromPrefix + DELIMITER;
+		final String to = toPrefix + DELIMITER;
+		List<String> names = list(fromPrefix);
+
+		if (s3 == null && async != null) {
+			List<String> targets = new ArrayList<String>(names.size());
+			for (String name : names) {
+				targets.add(to + name.substring(from.length()));
+			}
+			AsyncRequests.await(async.copyAll(names, targets));
+			return names;
+		}
+
+		List<Future<Void>> copies = new ArrayList<Future<Void>>(names.size());
+		for (final String name : names) {
+			copies.add(executor.submit(new Callable<Void>() {
+
+				@Override
+				public Void call() throws IOException {
+					copy(name, to + name.substring(from.length()));
+					return null;
+				}
+			}));
+		}
+		awaitAll(copies);
+		return names;
+	}
+
+	/**
+	 * Moves all blobs below <code>fromPrefix</code> to
+	 * <code>toPrefix</code>, and recreates the folder markers below and of
+	 * <code>fromPrefix</code> there, so empty folders move too. Nothing is
+	 * removed if any copy fails.
+	 */
+	MovedTree moveTree(String fromPrefix, String toPrefix)
+			throws IOException, InterruptedException {
+		String from = fromPrefix + DELIMITER;
+		String to = toPrefix + DELIMITER;
+		List<String> folders = list(fromPrefix, false);
+		List<String> names = copyTree(fromPrefix, toPrefix);
+		blobStore.createDirectory(containerName, toPrefix);
+		for (String folder : folders) {
+			blobStore.createDirectory(containerName,
+					to + folder.substring(from.length()));
+		}
+
+		removeAll(names);
+		List<String> markers = new ArrayList<String>(folders);
+		// markers of deeper folders first
+		Collections.sort(markers, Collections.reverseOrder());
+		markers.add(fromPrefix);
+		for (String folder : markers) {
+			blobStore.deleteDirectory(containerName, folder);
+		}
+		return new MovedTree(names, folders);
+	}
+
+	/**
+	 * Removes the blobs in parallel.
+	 */
+	void removeAll(List<String> names) throws IOException,
+			InterruptedException {
+		if (async != null) {
+			AsyncRequests.await(async.removeAll(names));
+			return;
+		}
+		List<Future<Void>> removes = new ArrayList<Future<Void>>(names.size());
+		for (final String name : names) {
+			removes.add(executor.submit(new Callable<Void>() {
+
+				@Override
+				public Void call() {
+					blobStore.removeBlob(containerName, name);
+					return null;
+				}
+			}));
+		}
+		awaitAll(removes);
+	}
+
+	/**
+	 * Removes all blobs below <code>prefix</code>, then the folder markers
+	 * below it and its own. The listener is told about each page of removed
+	 * blobs, and about the folder markers last.
+	 */
+	RemovalReport removeTree(String prefix, RemovalListener listener)
+			throws InterruptedException {
+		List<String> folders = new ArrayList<String>();
+		List<String> failed = new ArrayList<String>();
+		int removed = 0;
+		int pages = 0;
+
+		List<String> removing = null;
+		List<? extends Future<Void>> removes = null;
+		String marker = null;
+		do {
+			ListContainerOptions options = inDirectory(prefix).recursive()
+					.maxResults(PAGE_SIZE);
+			if (marker != null) {
+				options.afterMarker(marker);
+			}
+			PageSet<? extends StorageMetadata> page = blobStore.list(
+					containerName, options);
+			List<String> names = new ArrayList<String>(page.size());
+			for (StorageMetadata metadata : page) {
+				if (metadata.getType() == StorageType.BLOB) {
+					names.add(metadata.getName());
+				} else {
+					folders.add(metadata.getName());
+				}
+			}
+			marker = page.getNextMarker();
+
+			// list the next page while this one is removed
+			if (removes != null) {
+				removed += awaitRemoves(removing, removes, failed, listener);
+			}
+			removing = names;
+			removes = removeEach(names);
+			if (++pages % PROGRESS_PAGES == 0) {
+				LOGGER.info("Removed {} blobs below {} of {}, {} failed",
+						removed, prefix, containerName, failed.size());
+			}
+		} while (marker != null);
+		removed += awaitRemoves(removing, removes, failed, listener);
+
+		// markers of deeper folders first
+		Collections.sort(folders, Collections.reverseOrder());
+		folders.add(prefix);
+		List<String> removedFolders = new ArrayList<String>(folders.size());
+		for (String folder : folders) {
+			try {
+				blobStore.deleteDirectory(containerName, folder);
+				removedFolders.add(folder);
+			} catch (RuntimeException e) {
+				LOGGER.debug("Removing folder {} failed: {}", folder,
+						e.getMessage());
+				failed.add(folder);
+			}
+		}
+		listener.removed(removedFolders);
+
+		LOGGER.info("Removed {} blobs below {} of {}, {} failed", removed,
+				prefix, containerName, failed.size());
+		return new RemovalReport(removed, failed);
+	}
+
+	private List<? extends Future<Void>> removeEach(List<String> names) {
+		if (async != null) {
+			return async.removeEach(names);
+		}
+		List<Future<Void>> removes = new ArrayList<Future<Void>>(names.size());
+		for (final String name : names) {
+			removes.add(executor.submit(new Callable<Void>() {
+
+				@Override
+				public Void call() {
+					blobStore.removeBlob(containerName, name);
+					return null;
+				}
+			}));
+		}
+		return removes;
+	}
+
+	/**
+	 * Waits for the removals of a page, adding the names that failed to
+	 * <code>failed</code>.
+	 *
+	 * @return the number of removed blobs
+	 */
+	private static int awaitRemoves(List<String> names,
+			List<? extends Future<Void>> removes, List<String> failed,
+			RemovalListener listener) throws InterruptedException {
+		List<String> removed = new ArrayList<String>(names.size());
+		for (int i = 0; i < names.size(); i++) {
+			try {
+				removes.get(i).get();
+				removed.add(names.get(i));
+			} catch (ExecutionException e) {
+				LOGGER.debug("Removing {} failed: {}", names.get(i), e
+						.getCause().getMessage());
+				failed.add(names.get(i));
+			}
+		}
+		listener.removed(removed);
+		return removed.size();
+	}
+
+	/**
+	 * @return the names of all blobs below the prefix, with paged listings
+	 */
+	List<String> list(String prefix) {
+		return list(prefix, true);
+	}
+
+	/**
+	 * @return the names of all blobs, or of all folders, below the prefix
+	 */
+	private List<String> list(String prefix, boolean blobs) {
+		List<String> names = new ArrayList<String>();
+		String marker = null;
+		do {
+			ListContainerOptions options = inDirectory(prefix).recursive()
+					.maxResults(PAGE_SIZE);
+			if (marker != null) {
+				options.afterMarker(marker);
+			}
+			PageSet<? extends StorageMetadata> page = blobStore.list(
+					containerName, options);
+			for (StorageMetadata metadata : page) {
+				if ((metadata.getType() == StorageType.BLOB) == blobs) {
+					names.add(metadata.getName());
+				}
+			}
+			marker = page.getNextMarker();
+		} while (marker != null);
+		return names;
+	}
+
+	private static void awaitAll(List<Future<Void>> futures)
+			throws IOException, InterruptedException {
+		IOException failure = null;
+		for (Future<Void> future : futures) {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				if (failure == null) {
+					failure = new IOException(e.getCause());
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	private static S3Client s3ClientOf(BlobStoreContext ctx) {
+		try {
+			RestContext<S3Client, S3AsyncClient> s3 = ctx.unwrap();
+			return s3.getApi();
+		} catch (RuntimeException e) {
+			LOGGER.info("No S3 API available, copies are streamed: {}",
+					e.getMessage());
+			return null;
+		}
+	}
+}
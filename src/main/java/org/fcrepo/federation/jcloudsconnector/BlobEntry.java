@@ -0,0 +1,81 @@
+package org.fcrepo.federation.jcloudsconnector;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.domain.StorageType;
+
+/**
+ * What a listing tells about one name in the container: its size, ETag and
+ * modification time. Directories (folder markers and common prefixes) have a
+ * negative size. An entry of a HEAD request also holds the content type and
+ * the user metadata of the blob.
+ */
+final class BlobEntry implements Serializable {
+
+	private static final long serialVersionUID = 2L;
+
+	final String name;
+	final long size;
+	final String etag;
+	final long lastModified;
+
+	/**
+	 * The content type; null if unknown.
+	 */
+	final String contentType;
+
+	/**
+	 * The user metadata; null if unknown, e.g. from a listing.
+	 */
+	final Map<String, String> userMetadata;
+
+	BlobEntry(String name, long size, String etag, long lastModified) {
+		this(name, size, etag, lastModified, null, null);
+	}
+
+	BlobEntry(String name, long size, String etag, long lastModified,
+			String contentType, Map<String, String> userMetadata) {
+		this.name = name;
+		this.size = size;
+		this.etag = etag;
+		this.lastModified = lastModified;
+		this.contentType = contentType;
+		this.userMetadata = userMetadata == null ? null : Collections
+				.unmodifiableMap(new HashMap<String, String>(userMetadata));
+	}
+
+	boolean isDirectory() {
+		return size < 0;
+	}
+
+	static BlobEntry of(StorageMetadata metadata) {
+		long size = -1;
+		if (metadata.getType() == StorageType.BLOB) {
+			size = 0;
+			if (metadata instanceof BlobMetadata) {
+				Long length = ((BlobMetadata) metadata).getContentMetadata()
+						.getContentLength();
+				size = length == null ? 0 : length;
+			}
+		}
+		return new BlobEntry(metadata.getName(), size, metadata.getETag(),
+				metadata.getLastModified() == null ? 0 : metadata
+						.getLastModified().getTime());
+	}
+
+	/**
+	 * @return the entry of a HEAD request, with content type and user
+	 *         metadata
+	 */
+	static BlobEntry of(BlobMetadata metadata) {
+		BlobEntry entry = of((StorageMetadata) metadata);
+		return new BlobEntry(entry.name, entry.size, entry.etag,
+				entry.lastModified, metadata.getContentMetadata()
+						.getContentType(), metadata.getUserMetadata());
+	}
+}
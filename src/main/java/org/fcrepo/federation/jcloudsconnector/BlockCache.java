@@ -0,0 +1,192 @@
+package org.fcrepo.federation.jcloudsconnector;
+
+import static org.jclouds.blobstore.options.GetOptions.Builder.range;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.options.GetOptions;
+import org.jclouds.http.HttpResponseException;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+
+/**
+ * Ranged reads of blobs through a bounded cache of fixed size blocks.
+ * <p>
+ * A read only fetches the blocks it touches that are not cached, with one
+ * ranged GET per run of adjacent missing blocks, so serving a small slice of
+ * a large blob moves about the size of the slice. Blocks are keyed by the
+ * blob's ETag, and every ranged GET is conditional on that ETag, so an
+ * overwritten blob never serves stale blocks, nor blocks of two versions
+ * mixed: the read fails with a {@link ChangedException} instead, and the
+ * reader looks up the new ETag and reads again.
+ * </p>
+ */
+class BlockCache {
+
+	static final int BLOCK_SIZE = 64 * 1024;
+
+	private static final int PRECONDITION_FAILED = 412;
+
+	/**
+	 * Thrown when the blob no longer has the ETag being read.
+	 */
+	static final class ChangedException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		ChangedException(String message, Throwable cause) {
+			super(message, cause);
+		}
+	}
+
+	private final Cache<String, byte[]> blocks;
+
+	/**
+	 * @param maxBytes
+	 *            the most bytes of blocks kept; 0 disables caching
+	 */
+	BlockCache(long maxBytes) {
+		this.blocks = CacheBuilder.newBuilder().maximumWeight(maxBytes)
+				.weigher(new Weigher<String, byte[]>() {
+
+					@Override
+					public int weigh(String key, byte[] block) {
+						return block.length;
+					}
+				}).build();
+	}
+
+	/**
+	 * Reads up to <code>length</code> bytes of the blob starting at
+	 * <code>offset</code>.
+	 *
+	 * @param etag
+	 *            the ETag of the blob version to read
+	 * @param size
+	 *            the size of the blob
+	 * @return the bytes read; shorter than <code>length</code> only at the
+	 *         end of the blob
+	 * @throws ChangedException
+	 *             if the blob does not have the ETag anymore; its cached
+	 *             blocks have been dropped
+	 */
+	byte[] read(BlobStore blobStore, String containerName, String blobName,
+			String etag, long size, long offset, int length) throws IOException {
+		if (offset >= size || length <= 0) {
+			return new byte[0];
+		}
+		int total = (int) Math.min(length, size - offset);
+		byte[] bytes = new byte[total];
+
+		long first = offset / BLOCK_SIZE;
+		long last = (offset + total - 1) / BLOCK_SIZE;
+		String keyPrefix = containerName + "/" + blobName + "#" + etag + "#";
+
+		long block = first;
+		while (block <= last) {
+			byte[] cached = blocks.getIfPresent(keyPrefix + block);
+			if (cached != null) {
+				copy(cached, block, bytes, offset);
+				block++;
+				continue;
+			}
+			// fetch the whole run of missing blocks with one request
+			long end = block;
+			while (end < last
+					&& blocks.getIfPresent(keyPrefix + (end + 1)) == null) {
+				end++;
+			}
+			long start = block * BLOCK_SIZE;
+			long stop = Math.min((end + 1) * BLOCK_SIZE, size);
+			byte[] fetched;
+			try {
+				fetched = fetch(blobStore, containerName, blobName, etag,
+						start, (int) (stop - start));
+			} catch (ChangedException e) {
+				invalidate(keyPrefix);
+				throw e;
+			}
+			for (long b = block; b <= end; b++) {
+				int from = (int) ((b - block) * BLOCK_SIZE);
+				byte[] data = new byte[(int) Math.min(BLOCK_SIZE,
+						fetched.length - from)];
+				System.arraycopy(fetched, from, data, 0, data.length);
+				blocks.put(keyPrefix + b, data);
+				copy(data, b, bytes, offset);
+			}
+			block = end + 1;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Copies the part of a block that overlaps the requested range.
+	 */
+	private static void copy(byte[] data, long block, byte[] bytes,
+			long offset) {
+		long blockStart = block * BLOCK_SIZE;
+		long from = Math.max(offset, blockStart);
+		long to = Math.min(offset + bytes.length, blockStart + data.length);
+		if (to > from) {
+			System.arraycopy(data, (int) (from - blockStart), bytes,
+					(int) (from - offset), (int) (to - from));
+		}
+	}
+
+	private void invalidate(String keyPrefix) {
+		for (String key : blocks.asMap().keySet()) {
+			if (key.startsWith(keyPrefix)) {
+				blocks.invalidate(key);
+			}
+		}
+	}
+
+	private static byte[] fetch(BlobStore blobStore, String containerName,
+			String blobName, String etag, long start, int length)
+			throws IOException {
+		GetOptions options = range(start, start + length - 1);
+		if (etag != null) {
+			options.ifETagMatches(etag.replace("\"", ""));
+		}
+		Blob blob;
+		try {
+			blob = blobStore.getBlob(containerName, blobName, options);
+		} catch (RuntimeException e) {
+			if (isPreconditionFailed(e)) {
+				throw new ChangedException("Blob " + blobName + " of "
+						+ containerName + " changed since ETag " + etag, e);
+			}
+			throw e;
+		}
+		if (blob == null) {
+			throw new IOException("Blob " + blobName + " does not exist in "
+					+ containerName);
+		}
+		InputStream in = blob.getPayload().getInput();
+		try {
+			byte[] bytes = new byte[length];
+			IOUtils.readFully(in, bytes);
+			return bytes;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static boolean isPreconditionFailed(Throwable e) {
+		for (Throwable t = e; t != null; t = t.getCause()) {
+			if (t instanceof HttpResponseException
+					&& ((HttpResponseException) t).getResponse() != null
+					&& ((HttpResponseException) t).getResponse()
+							.getStatusCode() == PRECONDITION_FAILED) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
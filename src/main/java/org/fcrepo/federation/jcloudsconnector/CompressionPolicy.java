@@ -0,0 +1,65 @@
+package org.fcrepo.federation.jcloudsconnector;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Decides per binary which {@link BlobCodec} {@link JCloudsUtil#write} stores
+ * it with, based on its MIME type and size.
+ */
+public class CompressionPolicy {
+
+	/**
+	 * Stores everything as is.
+	 */
+	public static final CompressionPolicy NONE = new CompressionPolicy(
+			BlobCodec.IDENTITY, Long.MAX_VALUE, "");
+
+	private final BlobCodec codec;
+	private final long minSize;
+	private final List<String> mimeTypePrefixes;
+
+	/**
+	 * @param codec
+	 *            the codec compressible binaries are stored with
+	 * @param minSize
+	 *            binaries smaller than this many bytes are stored as is, as
+	 *            compressing them saves little
+	 * @param mimeTypePrefixes
+	 *            comma separated MIME types or MIME type prefixes (e.g.
+	 *            "text/,application/xml") of the binaries to compress
+	 */
+	public CompressionPolicy(BlobCodec codec, long minSize,
+			String mimeTypePrefixes) {
+		this.codec = codec;
+		this.minSize = minSize;
+		List<String> prefixes = new ArrayList<String>();
+		for (String prefix : mimeTypePrefixes.split(",")) {
+			if (!prefix.trim().isEmpty()) {
+				prefixes.add(prefix.trim().toLowerCase());
+			}
+		}
+		this.mimeTypePrefixes = Collections.unmodifiableList(prefixes);
+	}
+
+	/**
+	 * @param mimeType
+	 *            the MIME type of the binary; may be null if unknown
+	 * @param size
+	 *            the size of the binary in bytes
+	 * @return the codec to store the binary with; never null
+	 */
+	public BlobCodec codecFor(String mimeType, long size) {
+		if (codec == BlobCodec.IDENTITY || size < minSize || mimeType == null) {
+			return BlobCodec.IDENTITY;
+		}
+		String type = mimeType.toLowerCase();
+		for (String prefix : mimeTypePrefixes) {
+			if (type.startsWith(prefix)) {
+				return codec;
+			}
+		}
+		return BlobCodec.IDENTITY;
+	}
+}
@@ -0,0 +1,171 @@
+package org.fcrepo.federation.jcloudsconnector;
+
+import static org.jclouds.blobstore.options.GetOptions.Builder.range;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobMetadata;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.io.ByteStreams;
+
+/**
+ * A bounded pool of the content of small blobs, fetched together with their
+ * metadata.
+ * <p>
+ * Instead of a HEAD request, the document of a content node is built from a
+ * GET of the first <code>threshold + 1</code> bytes of the blob. If the blob
+ * is no larger than the threshold, that GET returned all of it, and the
+ * content is kept here for the {@link JCloudsBinaryValue}, so reading a
+ * small file takes one round trip. Larger blobs only cost the transfer of
+ * the threshold bytes, and their metadata is used as a HEAD would be. So are
+ * compressed blobs whose content decodes to more than the threshold.
+ * </p>
+ * <p>
+ * Pooled blobs are fetched again once they are older than the given maximum
+ * age, so blobs overwritten by other clients are not served from memory for
+ * longer than that; writes through the connector of any node drop them at
+ * once.
+ * </p>
+ */
+class InlinePool {
+
+	/**
+	 * A fetched blob: its metadata, and its decoded content if it is small.
+	 */
+	static final class Entry {
+
+		final byte[] bytes;
+		final String etag;
+		final Date lastModified;
+
+		Entry(byte[] bytes, String etag, Date lastModified) {
+			this.bytes = bytes;
+			this.etag = etag;
+			this.lastModified = lastModified;
+		}
+
+		boolean isInline() {
+			return bytes != null;
+		}
+	}
+
+	private final int threshold;
+	private final Cache<String, Entry> entries;
+
+	/**
+	 * @param threshold
+	 *            the largest size of inlined blobs
+	 * @param maxBytes
+	 *            the most bytes of content kept
+	 * @param maxAgeMillis
+	 *            the longest time content is kept without fetching it again
+	 */
+	InlinePool(int threshold, long maxBytes, long maxAgeMillis) {
+		this.threshold = threshold;
+		this.entries = CacheBuilder.newBuilder().maximumWeight(maxBytes)
+				.expireAfterWrite(maxAgeMillis, TimeUnit.MILLISECONDS)
+				.weigher(new Weigher<String, Entry>() {
+
+					@Override
+					public int weigh(String blobName, Entry entry) {
+						return entry.bytes.length;
+					}
+				}).build();
+	}
+
+	int threshold() {
+		return threshold;
+	}
+
+	/**
+	 * Returns the pooled content of a blob version, if any.
+	 */
+	byte[] get(String blobName, String etag) {
+		Entry entry = entries.getIfPresent(blobName);
+		return entry != null && Objects.equal(entry.etag, etag) ? entry.bytes
+				: null;
+	}
+
+	/**
+	 * Returns the pooled blob, or fetches its metadata and, if it is small,
+	 * its content.
+	 *
+	 * @return the blob, or null if it does not exist
+	 */
+	Entry fetch(BlobStore blobStore, String containerName, String blobName)
+			throws IOException {
+		Entry cached = entries.getIfPresent(blobName);
+		if (cached != null) {
+			return cached;
+		}
+
+		Blob blob = blobStore.getBlob(containerName, blobName,
+				range(0, threshold));
+		if (blob == null) {
+			return null;
+		}
+		BlobMetadata metadata = blob.getMetadata();
+		byte[] stored;
+		InputStream in = blob.getPayload().getInput();
+		try {
+			// never read more, even if the provider ignored the range
+			stored = ByteStreams.toByteArray(ByteStreams.limit(in,
+					threshold + 1));
+		} finally {
+			in.close();
+		}
+		if (stored.length > threshold) {
+			return new Entry(null, metadata.getETag(),
+					metadata.getLastModified());
+		}
+
+		InputStream decoded = BlobCodec.fromMetadata(
+				metadata.getUserMetadata().get(JCloudsUtil.CODEC_METADATA))
+				.decode(new ByteArrayInputStream(stored));
+		byte[] content;
+		try {
+			// a small blob may decode to any size
+			content = ByteStreams.toByteArray(ByteStreams.limit(decoded,
+					threshold + 1));
+		} finally {
+			decoded.close();
+		}
+		if (content.length > threshold) {
+			return new Entry(null, metadata.getETag(),
+					metadata.getLastModified());
+		}
+		Entry entry = new Entry(content, metadata.getETag(),
+				metadata.getLastModified());
+		entries.put(blobName, entry);
+		return entry;
+	}
+
+	/**
+	 * Drops the content of a blob that was written or removed.
+	 */
+	void invalidate(String blobName) {
+		entries.invalidate(blobName);
+	}
+
+	/**
+	 * Drops the content of the blobs below a removed folder.
+	 */
+	void invalidateTree(String directory) {
+		String prefix = directory + "/";
+		for (String blobName : entries.asMap().keySet()) {
+			if (blobName.startsWith(prefix)) {
+				entries.invalidate(blobName);
+			}
+		}
+	}
+}
@@ -1,58 +1,578 @@
 //package org.modeshape.connector.filesystem;
 package org.fcrepo.federation.jcloudsconnector;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Arrays;
 import javax.jcr.RepositoryException;
+
+import org.apache.commons.io.IOUtils;
 import org.modeshape.jcr.mimetype.MimeTypeDetector;
 import org.modeshape.jcr.value.BinaryKey;
 import org.modeshape.jcr.value.BinaryValue;
 import org.modeshape.jcr.value.binary.UrlBinaryValue;
 import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobMetadata;
 
 /**
  * A {@link BinaryValue} implementation used to read the content of a resolvable
  * URL. This class computes the {@link AbstractBinary#getMimeType() MIME type}
  * lazily.
+ * <p>
+ * Values serialize to a small {@link SerializedForm} that only names the blob.
+ * The deserialized value finds the connector of its repository and source
+ * through the {@link JCloudsConnectorRegistry} on the node it arrives at when
+ * it is first used, not when it is deserialized, so values can be replicated
+ * across a cluster and arrive before the source is started.
+ * </p>
+ * <p>
+ * Besides the whole content, slices can be read with {@link #read(long, int)}
+ * or through a {@link #newChannel() seekable channel}. Slices are read with
+ * ranged GETs through the {@link BlockCache} of the connector.
+ * </p>
  */
 public class JCloudsBinaryValue extends UrlBinaryValue {//ExternalBinaryValue {
 	private static final long serialVersionUID = 1L;
 
 	private URL url;
-	
-	private BlobStore blobStore;
+
+	private final String repositoryName;
+
+	private transient volatile BlobStore blobStore;
+	private transient volatile PackStore packStore;
 	private String containerName;
 	private String blobName ;
+	private volatile long logicalSize;
+	private volatile String etag;
+	private volatile BlobCodec codec;
+	private transient volatile BlockCache blockCache;
+	private transient volatile InlinePool inlinePool;
+
+	/**
+	 * Whether this value was deserialized without the connector of its
+	 * source, and so reads through {@link #resolved}.
+	 */
+	private final transient boolean detached;
+
+	/**
+	 * The value created by the connector of the source for a detached value.
+	 */
+	private transient volatile JCloudsBinaryValue resolved;
+
+	/**
+	 * The most bytes a channel reads with one ranged read.
+	 */
+	private static final int MAX_CHANNEL_READ = 16 * BlockCache.BLOCK_SIZE;
+
+	/**
+	 * Used when there is no connector to share its cache, e.g. for values
+	 * created outside of a repository.
+	 */
+	private static final BlockCache NO_CACHE = new BlockCache(0);
 
 	public JCloudsBinaryValue(BinaryKey key, String sourceName, URL content,
 			BlobStore blobStore,String containerName, String blobName, 
 			long size, String nameHint, MimeTypeDetector mimeTypeDetector) {
+		this(key, null, sourceName, content, blobStore, null, containerName,
+				blobName, size, nameHint, mimeTypeDetector);
+	}
+
+	/**
+	 * @param repositoryName
+	 *            the name of the repository of the source; null if the value
+	 *            is created outside of a repository
+	 * @param packStore
+	 *            the store of packed small binaries, consulted before the
+	 *            blob itself; may be null if packing is disabled
+	 */
+	JCloudsBinaryValue(BinaryKey key, String repositoryName,
+			String sourceName, URL content, BlobStore blobStore,
+			PackStore packStore, String containerName, String blobName,
+			long size, String nameHint, MimeTypeDetector mimeTypeDetector) {
 		super(key, sourceName, content, size, nameHint,	mimeTypeDetector);
 
 		this.url = content;//TODO
+		this.repositoryName = repositoryName;
+		this.detached = false;
 		
 		this.blobStore =blobStore;
+		this.packStore = packStore;
 		this.containerName=containerName;
 		this.blobName =blobName;
+		this.logicalSize = size;
+
+	}
 
+	/**
+	 * Creates a detached value, which connects to its source on first use.
+	 */
+	private JCloudsBinaryValue(BinaryKey key, String repositoryName,
+			String sourceName, String containerName, String blobName,
+			long size, String etag) {
+		super(key, sourceName, null, size, blobName, null);
+		this.repositoryName = repositoryName;
+		this.containerName = containerName;
+		this.blobName = blobName;
+		this.logicalSize = size;
+		this.etag = etag;
+		this.detached = true;
 	}
 
 	protected URL toUrl() {
+		if (detached) {
+			try {
+				return resolved().toUrl();
+			} catch (RepositoryException e) {
+				throw new IllegalStateException(e);
+			}
+		}
 		return url;
 	}
 
+	@Override
+	public String getMimeType() throws IOException, RepositoryException {
+		return detached ? resolved().getMimeType() : super.getMimeType();
+	}
+
+	@Override
+	public String getMimeType(String name) throws IOException,
+			RepositoryException {
+		return detached ? resolved().getMimeType(name) : super
+				.getMimeType(name);
+	}
+
 	@Override
 	public InputStream getStream() throws RepositoryException {
+		if (detached) {
+			return resolved().getStream();
+		}
 		try {
-			if(!blobStore.blobExists(containerName, blobName)){
+			byte[] inline = inlineBytes();
+			if (inline != null) {
+				return new ByteArrayInputStream(inline);
+			}
+
+			PackStore.Entry packed = packedEntry();
+			if (packed != null) {
+				logicalSize = packed.length;
+				return new ByteArrayInputStream(packStore.read(packed, 0,
+						packed.length));
+			}
+
+			Blob blob = blobStore().getBlob(containerName, blobName);
+			if (blob == null) {
 				throw new RepositoryException("Blob " + blobName + " does not exsit in container " + containerName);
-				
+
 			}
-			
-			return blobStore.getBlob(containerName, blobName).getPayload().getInput();
+			remember(blob.getMetadata());
+
+			return codecOf(blob.getMetadata()).decode(
+					blob.getPayload().getInput());
 
+		} catch (RepositoryException e) {
+			throw e;
 		} catch (Exception e) {
 			throw new RepositoryException(e);
 		}
 	}
+
+	/**
+	 * Returns the size of the original bytes, which for encoded blobs is not
+	 * the stored content length. Looked up with a HEAD request the first
+	 * time if the size was not known when this value was created.
+	 */
+	@Override
+	public long getSize() {
+		if (detached && logicalSize < 0) {
+			try {
+				logicalSize = resolved().getSize();
+			} catch (RepositoryException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		if (logicalSize < 0) {
+			try {
+				PackStore.Entry packed = packedEntry();
+				if (packed != null) {
+					logicalSize = packed.length;
+					return logicalSize;
+				}
+				BlobMetadata metadata = blobStore().blobMetadata(
+						containerName, blobName);
+				if (metadata != null) {
+					remember(metadata);
+				}
+			} catch (RepositoryException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		return logicalSize;
+	}
+
+	/**
+	 * Reads a slice of the original bytes. Only the blocks of the slice are
+	 * fetched, with ranged GETs, unless the blob is stored compressed.
+	 *
+	 * @param offset
+	 *            the position of the first byte to read
+	 * @param length
+	 *            the number of bytes to read
+	 * @return the bytes read; shorter than <code>length</code> only at the
+	 *         end of the content, and empty beyond it
+	 */
+	public byte[] read(long offset, int length) throws RepositoryException {
+		if (detached) {
+			return resolved().read(offset, length);
+		}
+		try {
+			byte[] inline = inlineBytes();
+			if (inline != null) {
+				if (offset >= inline.length) {
+					return new byte[0];
+				}
+				return Arrays.copyOfRange(inline, (int) offset,
+						(int) Math.min(inline.length, offset + length));
+			}
+
+			PackStore.Entry packed = packedEntry();
+			if (packed != null) {
+				if (offset >= packed.length) {
+					return new byte[0];
+				}
+				return packStore.read(packed, offset,
+						(int) Math.min(length, packed.length - offset));
+			}
+
+			BlobStore store = blobStore();
+			if (etag == null || codec == null) {
+				lookUp(store);
+			}
+			if (codec != BlobCodec.IDENTITY) {
+				// an encoded payload can only be decoded from the start
+				return readDecoded(offset, length);
+			}
+			try {
+				return blockCache().read(store, containerName, blobName, etag,
+						logicalSize, offset, length);
+			} catch (BlockCache.ChangedException e) {
+				// overwritten since the ETag was looked up
+				lookUp(store);
+				if (codec != BlobCodec.IDENTITY) {
+					return readDecoded(offset, length);
+				}
+				return blockCache().read(store, containerName, blobName, etag,
+						logicalSize, offset, length);
+			}
+
+		} catch (RepositoryException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RepositoryException(e);
+		}
+	}
+
+	/**
+	 * Looks up the current version of the blob with a HEAD request.
+	 */
+	private void lookUp(BlobStore store) throws RepositoryException {
+		BlobMetadata metadata = store.blobMetadata(containerName, blobName);
+		if (metadata == null) {
+			throw new RepositoryException("Blob " + blobName
+					+ " does not exist in " + containerName);
+		}
+		remember(metadata);
+	}
+
+	/**
+	 * Returns a read-only channel over the original bytes, which reads with
+	 * {@link #read(long, int)} from its current position.
+	 */
+	public SeekableByteChannel newChannel() {
+		return new BlobChannel();
+	}
+
+	private byte[] readDecoded(long offset, int length) throws IOException,
+			RepositoryException {
+		InputStream in = getStream();
+		try {
+			if (IOUtils.skip(in, offset) < offset) {
+				return new byte[0];
+			}
+			byte[] bytes = new byte[length];
+			int read = IOUtils.read(in, bytes);
+			return read == length ? bytes : Arrays.copyOf(bytes, read);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Serves this value from the {@link InlinePool} of the connector, which
+	 * holds the content fetched along with the document.
+	 */
+	void inline(InlinePool.Entry fetched) {
+		etag = fetched.etag;
+		logicalSize = fetched.bytes.length;
+	}
+
+	/**
+	 * @return the content of this blob version in the pool; null if it is
+	 *         not inlined or was evicted
+	 */
+	private byte[] inlineBytes() {
+		if (etag == null) {
+			return null;
+		}
+		InlinePool pool = inlinePool;
+		if (pool == null) {
+			JCloudsConnector connector = connector();
+			if (connector == null || connector.inlinePool() == null) {
+				return null;
+			}
+			pool = connector.inlinePool();
+			inlinePool = pool;
+		}
+		return pool.get(blobName, etag);
+	}
+
+	private BlockCache blockCache() {
+		BlockCache cache = blockCache;
+		if (cache == null) {
+			JCloudsConnector connector = connector();
+			cache = connector != null ? connector.blockCache() : NO_CACHE;
+			blockCache = cache;
+		}
+		return cache;
+	}
+
+	/**
+	 * @return whether this value reads a blob of the given container
+	 */
+	boolean isInContainer(String containerName) {
+		return this.containerName.equals(containerName);
+	}
+
+	/**
+	 * @return the name of the blob this value reads
+	 */
+	String blobName() {
+		return blobName;
+	}
+
+	/**
+	 * @return whether this value reads the given blob
+	 */
+	boolean isBlob(String containerName, String blobName) {
+		return this.containerName.equals(containerName)
+				&& this.blobName.equals(blobName);
+	}
+
+	/**
+	 * Returns the blob store, reconnecting through the
+	 * {@link JCloudsConnectorRegistry} after deserialization.
+	 */
+	private BlobStore blobStore() throws RepositoryException {
+		BlobStore store = blobStore;
+		if (store == null) {
+			JCloudsConnector connector = connector();
+			if (connector == null) {
+				throw new RepositoryException("External source "
+						+ getSourceName() + " of blob " + blobName
+						+ " is not available on this node");
+			}
+			packStore = connector.packStore();
+			store = connector.blobStore();
+			blobStore = store;
+		}
+		return store;
+	}
+
+	/**
+	 * @return the running connector of the source, or null if there is none
+	 */
+	private JCloudsConnector connector() {
+		return JCloudsConnectorRegistry.get(repositoryName, getSourceName());
+	}
+
+	/**
+	 * Returns the value the connector of the source creates for the blob of
+	 * this detached value, once the connector runs on this node.
+	 */
+	private JCloudsBinaryValue resolved() throws RepositoryException {
+		JCloudsBinaryValue value = resolved;
+		if (value == null) {
+			JCloudsConnector connector = connector();
+			if (connector == null) {
+				throw new RepositoryException("External source "
+						+ getSourceName() + " of blob " + blobName
+						+ " is not available on this node");
+			}
+			value = connector.binaryValue(getKey(), blobName, logicalSize);
+			if (value.etag == null) {
+				value.etag = etag;
+			}
+			resolved = value;
+		}
+		return value;
+	}
+
+	private PackStore.Entry packedEntry() throws RepositoryException {
+		blobStore();
+		return packStore == null ? null : packStore.entry(blobName);
+	}
+
+	private void remember(BlobMetadata metadata) {
+		etag = metadata.getETag();
+		codec = codecOf(metadata);
+		String recorded = metadata.getUserMetadata().get(
+				JCloudsUtil.LOGICAL_SIZE_METADATA);
+		if (recorded != null) {
+			logicalSize = Long.parseLong(recorded);
+		} else if (metadata.getContentMetadata().getContentLength() != null) {
+			logicalSize = metadata.getContentMetadata().getContentLength();
+		}
+	}
+
+	private static BlobCodec codecOf(BlobMetadata metadata) {
+		return BlobCodec.fromMetadata(metadata.getUserMetadata().get(
+				JCloudsUtil.CODEC_METADATA));
+	}
+
+	/**
+	 * A read-only {@link SeekableByteChannel} over the content.
+	 */
+	private final class BlobChannel implements SeekableByteChannel {
+
+		private long position;
+		private volatile boolean open = true;
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			ensureOpen();
+			long size = size();
+			if (position >= size) {
+				return -1;
+			}
+			int length = (int) Math.min(Math.min(dst.remaining(),
+					MAX_CHANNEL_READ), size - position);
+			byte[] bytes;
+			try {
+				bytes = JCloudsBinaryValue.this.read(position, length);
+			} catch (RepositoryException e) {
+				throw new IOException(e);
+			}
+			if (bytes.length == 0) {
+				// the blob shrank since its size was looked up
+				return -1;
+			}
+			dst.put(bytes);
+			position += bytes.length;
+			return bytes.length;
+		}
+
+		@Override
+		public int write(ByteBuffer src) {
+			throw new NonWritableChannelException();
+		}
+
+		@Override
+		public long position() throws IOException {
+			ensureOpen();
+			return position;
+		}
+
+		@Override
+		public SeekableByteChannel position(long newPosition)
+				throws IOException {
+			ensureOpen();
+			if (newPosition < 0) {
+				throw new IllegalArgumentException("Negative position "
+						+ newPosition);
+			}
+			position = newPosition;
+			return this;
+		}
+
+		@Override
+		public long size() throws IOException {
+			ensureOpen();
+			return getSize();
+		}
+
+		@Override
+		public SeekableByteChannel truncate(long size) {
+			throw new NonWritableChannelException();
+		}
+
+		@Override
+		public boolean isOpen() {
+			return open;
+		}
+
+		@Override
+		public void close() {
+			open = false;
+		}
+
+		private void ensureOpen() throws ClosedChannelException {
+			if (!open) {
+				throw new ClosedChannelException();
+			}
+		}
+	}
+
+	/**
+	 * Replaces this value by its {@link SerializedForm} on serialization.
+	 */
+	private Object writeReplace() throws ObjectStreamException {
+		return new SerializedForm(repositoryName, getSourceName(),
+				containerName, blobName, logicalSize, etag, getKey());
+	}
+
+	/**
+	 * The serialized form of a {@link JCloudsBinaryValue}: the coordinates of
+	 * the blob and what is known about it, without any connection state.
+	 */
+	static final class SerializedForm implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String repositoryName;
+		private final String sourceName;
+		private final String containerName;
+		private final String blobName;
+		private final long size;
+		private final String etag;
+		private final BinaryKey key;
+
+		SerializedForm(String repositoryName, String sourceName,
+				String containerName, String blobName, long size, String etag,
+				BinaryKey key) {
+			this.repositoryName = repositoryName;
+			this.sourceName = sourceName;
+			this.containerName = containerName;
+			this.blobName = blobName;
+			this.size = size;
+			this.etag = etag;
+			this.key = key;
+		}
+
+		/**
+		 * Resolves to a detached value, which finds the connector of its
+		 * source when it is first used.
+		 */
+		private Object readResolve() throws ObjectStreamException {
+			return new JCloudsBinaryValue(key, repositoryName, sourceName,
+					containerName, blobName, size, etag);
+		}
+	}
 }
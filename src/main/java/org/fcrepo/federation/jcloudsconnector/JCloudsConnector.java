@@ -24,16 +24,34 @@
 //package org.modeshape.connector.filesystem;
 package org.fcrepo.federation.jcloudsconnector;
 
+import static com.google.common.util.concurrent.MoreExecutors.sameThreadExecutor;
+
 import java.io.File;
 
 import java.io.IOException;
-
+import java.io.InputStream;
+import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import javax.jcr.NamespaceRegistry;
 import javax.jcr.RepositoryException;
+
+import org.apache.commons.io.IOUtils;
 import org.infinispan.schematic.document.Document;
 import org.modeshape.common.util.StringUtil;
 import org.modeshape.jcr.JcrI18n;
@@ -45,6 +63,8 @@ import org.modeshape.jcr.federation.spi.Connector;
 import org.modeshape.jcr.federation.spi.DocumentChanges;
 import org.modeshape.jcr.federation.spi.DocumentReader;
 import org.modeshape.jcr.federation.spi.DocumentWriter;
+import org.modeshape.jcr.federation.spi.DocumentChanges.ParentChanges;
+import org.modeshape.jcr.federation.spi.DocumentChanges.PropertyChanges;
 import org.modeshape.jcr.federation.spi.PageKey;
 import org.modeshape.jcr.federation.spi.Pageable;
 import org.modeshape.jcr.federation.spi.WritableConnector;
@@ -57,17 +77,25 @@ import org.modeshape.jcr.value.binary.UrlBinaryValue;
 import org.jclouds.ContextBuilder;
 import org.jclouds.blobstore.BlobStore;
 import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.blobstore.domain.BlobMetadata;
 import org.jclouds.blobstore.domain.PageSet;
 import org.jclouds.blobstore.domain.StorageMetadata;
 import org.jclouds.blobstore.options.ListContainerOptions;
 
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.SettableFuture;
+
 /**
  * {@link Connector} implementation that exposes a single directory on the local
  * file system. This connector has several properties that must be configured
  * via the {@link RepositoryConfiguration}:
  * <ul>
- * <li><strong><code>directoryPath</code></strong> - The path to the file or
- * folder that is to be accessed by this connector.</li>
+ * <li><strong><code>directoryPath</code></strong> - The path to a local
+ * directory the connector keeps its working files in, such as the listing
+ * snapshot.</li>
  * <li><strong><code>readOnly</code></strong> - A boolean flag that specifies
  * whether this source can create/modify/remove files and directories on the
  * file system to reflect changes in the JCR content. By default, sources are
@@ -93,6 +121,106 @@ import org.jclouds.blobstore.options.ListContainerOptions;
  * folders in the underlying file system are exposed through this connector.
  * Files and folders with a name that matches the provided regular expression
  * will be exposed by this source.</li>
+ * <li><strong><code>compressionCodec</code></strong> - Optional name of the
+ * {@link BlobCodec} (e.g. "gzip") compressible binaries are stored with. By
+ * default binaries are stored as is.</li>
+ * <li><strong><code>compressionMinSize</code></strong> - The size in bytes
+ * below which binaries are never compressed. Defaults to 4096.</li>
+ * <li><strong><code>compressibleMimeTypes</code></strong> - Comma separated
+ * MIME types or MIME type prefixes of the binaries that are compressed.
+ * Defaults to text, XML, JSON and RDF types.</li>
+ * <li><strong><code>packThreshold</code></strong> - Binaries up to this size
+ * in bytes are appended to shared pack objects instead of being stored as
+ * blobs of their own, see {@link PackStore}. 0 (the default) disables
+ * packing.</li>
+ * <li><strong><code>packSize</code></strong> - The size in bytes at which a
+ * pack is uploaded. Defaults to 8 MB.</li>
+ * <li><strong><code>packFlushMillis</code></strong> - The longest time a
+ * write of a packed binary waits for concurrent writes to share its pack.
+ * Writes return once their pack is stored, so this is the added latency, not
+ * a window of data loss. Defaults to 50; 0 uploads a pack per write.</li>
+ * <li><strong><code>packReloadMillis</code></strong> - The interval at which
+ * the pack index segments written by other nodes are merged in. Defaults to
+ * 30000; 0 merges them only on start and when a pack is gone.</li>
+ * <li><strong><code>listingSnapshot</code></strong> - A boolean flag that
+ * specifies whether folder listings and existence checks are answered from a
+ * local, memory-mapped {@link ListingSnapshot} of the container kept in
+ * <code>directoryPath</code>. The snapshot survives restarts and is
+ * re-synced in the background. This is <code>false</code> by default. In a
+ * cluster, set <code>metadataCacheConfig</code> too: the snapshot then
+ * follows the writes of the other nodes, which it otherwise only sees at its
+ * next re-sync.</li>
+ * <li><strong><code>snapshotSyncMillis</code></strong> - The interval of the
+ * background update of the listing snapshot. Defaults to 5 minutes. With
+ * <code>metadataCacheConfig</code> set, the update folds the writes the
+ * connectors of all nodes made since into the snapshot file, without listing
+ * the container, which is only listed as a whole when there is no usable
+ * snapshot file; blobs written by other clients are then not seen.
+ * Otherwise each update lists the whole container.</li>
+ * <li><strong><code>parallelism</code></strong> - The number of provider
+ * requests the connector runs in parallel for one operation, such as copying
+ * the blobs of a moved folder. Defaults to 16.</li>
+ * <li><strong><code>blockCacheSize</code></strong> - The most bytes of blob
+ * blocks kept in memory for ranged reads through
+ * {@link JCloudsBinaryValue#read(long, int)}. Defaults to 32 MB; 0 disables
+ * the cache.</li>
+ * <li><strong><code>maxRequests</code></strong> - The most provider requests
+ * running at once, admitted by priority through a {@link RequestScheduler}:
+ * interactive metadata requests first, then interactive reads, bulk writes
+ * and background jobs. Defaults to 20; 0 disables the scheduling.</li>
+ * <li><strong><code>bulkRequests</code></strong> - The most uploads, copies
+ * and removals running at once, the content uploads and copies of
+ * repository sessions included, leaving the rest of
+ * <code>maxRequests</code> to interactive requests. Defaults to 10.</li>
+ * <li><strong><code>backgroundRequests</code></strong> - The most requests of
+ * background jobs running at once. Defaults to 4.</li>
+ * <li><strong><code>asyncRequests</code></strong> - A boolean flag that
+ * specifies whether existence checks and the copies and removals of whole
+ * folders are sent as chained futures, see {@link AsyncRequests}, so the
+ * caller waits once for all of them and requests waiting for admission hold
+ * no thread; running requests still block a thread each of a pool of
+ * <code>maxRequests</code> threads, or <code>parallelism</code> without
+ * scheduling, as with the asynchronous blob store of jclouds 1.6. This is
+ * <code>false</code> by default.</li>
+ * <li><strong><code>inlineThreshold</code></strong> - Binaries up to this
+ * size in bytes are fetched together with the document of their content node
+ * and served from memory, so reading a small file takes one round trip, see
+ * {@link InlinePool}. 0 (the default) disables inlining.</li>
+ * <li><strong><code>inlinePoolSize</code></strong> - The most bytes of
+ * inlined binaries kept in memory. Defaults to 16 MB.</li>
+ * <li><strong><code>inlineMaxAgeMillis</code></strong> - The longest time an
+ * inlined binary is served from memory before it is fetched again, which
+ * bounds how long changes made by other clients go unseen. Defaults to one
+ * minute, like <code>journalMillis</code>.</li>
+ * <li><strong><code>journalMillis</code></strong> - The longest time the
+ * blobs written and removed through the connector are overlaid on provider
+ * listings and existence checks, which may lag behind on eventually
+ * consistent providers, see {@link WriteJournal}. An entry is dropped as soon
+ * as a listing confirms it, or another node announces a change of the blob
+ * through the <code>metadataCacheConfig</code> cache. Defaults to one minute; 0 disables the
+ * journal.</li>
+ * <li><strong><code>metadataCacheConfig</code></strong> - Optional path or
+ * classpath resource of an Infinispan configuration. If set, folder listings,
+ * existence checks and blob metadata are kept in a cache shared by the nodes
+ * of the cluster, and invalidated on all of them by writes through the
+ * connector, see {@link MetadataCache}. A folder listing is only shared once
+ * <code>journalMillis</code> passed since the last write of the folder on
+ * any node. A sample replicated configuration is
+ * <code>infinispan-jclouds-metadata.xml</code>.</li>
+ * <li><strong><code>metadataCacheName</code></strong> - The name of the cache
+ * in that configuration. Defaults to <code>jclouds-metadata</code>.</li>
+ * <li><strong><code>lazyContext</code></strong> - A boolean flag that
+ * specifies whether the jclouds context is built, and the pack index loaded,
+ * in the background, so repository startup does not wait for the provider.
+ * Requests wait until it is built; a failed attempt is retried with a
+ * growing delay of up to five minutes, and requests fail meanwhile. This is
+ * <code>true</code> by default.</li>
+ * <li><strong><code>warmUpPaths</code></strong> - Optional comma separated
+ * list of folders, e.g. the projected ones like <code>/dir1</code>, that are
+ * listed in parallel once the context is built, fetching the metadata of
+ * their first blobs into the shared metadata cache or the inline pool.
+ * {@link #isReady()} tells when the context is built and the warm-up is
+ * done.</li>
  * </ul>
  * Inclusion and exclusion patterns can be used separately or in combination.
  * For example, consider these cases:
@@ -131,6 +259,7 @@ public class JCloudsConnector extends WritableConnector implements Pageable {
 	private static final String FILE_SEPARATOR = System
 			.getProperty("file.separator");
 	private static final String DELIMITER = "/";
+	private static final int WARM_UP_BLOBS = 100;
 	private static final String NT_FOLDER = "nt:folder";
 	private static final String NT_FILE = "nt:file";
 	private static final String NT_RESOURCE = "nt:resource";
@@ -157,9 +286,9 @@ public class JCloudsConnector extends WritableConnector implements Pageable {
 	private String providerUrlPrefix; // "https://s3.amazonaws.com"
 
 	/**
-	 * The string path for a {@link File} object that represents the top-level
-	 * directory accessed by this connector. This is set via reflection and is
-	 * required for this connector.
+	 * The string path for a {@link File} object that represents the local
+	 * working directory of this connector. This is set via reflection and is
+	 * required when the listing snapshot is enabled.
 	 */
 	private String directoryPath;
 	private File directory;
@@ -195,6 +324,197 @@ public class JCloudsConnector extends WritableConnector implements Pageable {
 
 	private NamespaceRegistry registry;
 
+	/**
+	 * The name of the {@link BlobCodec} compressible binaries are stored with,
+	 * or null to store all binaries as is. Set via reflection.
+	 */
+	private String compressionCodec;
+
+	/**
+	 * Binaries smaller than this are never compressed. Set via reflection.
+	 */
+	private long compressionMinSize = 4096;
+
+	/**
+	 * Comma separated MIME types or MIME type prefixes of the binaries that
+	 * are compressed. Set via reflection.
+	 */
+	private String compressibleMimeTypes = "text/,application/xml,application/json,application/rdf+xml,application/javascript,application/n-triples";
+
+	private CompressionPolicy compressionPolicy = CompressionPolicy.NONE;
+
+	/**
+	 * Binaries up to this size are packed, 0 disables packing. Set via
+	 * reflection.
+	 */
+	private long packThreshold = 0;
+
+	/**
+	 * The size at which a pack is uploaded. Set via reflection.
+	 */
+	private int packSize = 8 * 1024 * 1024;
+
+	/**
+	 * The longest time a packed write waits for others to share its pack.
+	 * Set via reflection.
+	 */
+	private long packFlushMillis = 50;
+
+	/**
+	 * The interval at which pack index segments of other nodes are merged
+	 * in. Set via reflection.
+	 */
+	private long packReloadMillis = 30000;
+
+	private PackStore packStore;
+
+	/**
+	 * Whether listings are answered from a local snapshot. Set via reflection.
+	 */
+	private boolean listingSnapshot = false;
+
+	/**
+	 * The interval of the background snapshot re-sync. Set via reflection.
+	 */
+	private long snapshotSyncMillis = 5 * 60 * 1000;
+
+	private ListingSnapshot snapshot;
+
+	/**
+	 * Runs the background work of the connector, such as snapshot syncs.
+	 */
+	private ScheduledExecutorService background;
+
+	/**
+	 * The number of provider requests run in parallel for one operation. Set
+	 * via reflection.
+	 */
+	private int parallelism = 16;
+
+	/**
+	 * Runs the parallel provider requests of one operation.
+	 */
+	private ExecutorService workers;
+
+	private BlobCopier copier;
+
+	/**
+	 * The most bytes of blocks cached for ranged reads. Set via reflection.
+	 */
+	private long blockCacheSize = 32L * 1024 * 1024;
+
+	private BlockCache blockCache;
+
+	/**
+	 * The most provider requests running at once; 0 disables the scheduling.
+	 * Set via reflection.
+	 */
+	private int maxRequests = 20;
+
+	/**
+	 * The most bulk write requests running at once. Set via reflection.
+	 */
+	private int bulkRequests = 10;
+
+	/**
+	 * The most background requests running at once. Set via reflection.
+	 */
+	private int backgroundRequests = 4;
+
+	private RequestScheduler scheduler;
+
+	/**
+	 * Whether fan-out requests are sent asynchronously. Set via reflection.
+	 */
+	private boolean asyncRequests = false;
+
+	private AsyncRequests async;
+
+	/**
+	 * Blobs up to this size are fetched with their document. Set via
+	 * reflection.
+	 */
+	private int inlineThreshold = 0;
+
+	/**
+	 * The most bytes of inlined binaries kept. Set via reflection.
+	 */
+	private long inlinePoolSize = 16L * 1024 * 1024;
+
+	/**
+	 * The longest time inlined binaries are kept. Set via reflection.
+	 */
+	private long inlineMaxAgeMillis = 60 * 1000;
+
+	private InlinePool inlinePool;
+
+	/**
+	 * The longest time a write is overlaid on listings without being
+	 * confirmed by one; 0 disables the journal. Set via reflection.
+	 */
+	private long journalMillis = 60 * 1000;
+
+	private WriteJournal journal;
+
+	/**
+	 * How long a removed folder is remembered after the last removal of a
+	 * node below it, see {@link RemovedTrees}.
+	 */
+	private static final long REMOVED_TREE_IDLE_MILLIS = 60 * 1000;
+
+	private final RemovedTrees removedTrees = new RemovedTrees(
+			REMOVED_TREE_IDLE_MILLIS);
+
+	/**
+	 * The folders removed on other nodes whose part of the snapshot is
+	 * queued for a re-sync.
+	 */
+	private final Set<String> snapshotResyncs = new ConcurrentSkipListSet<String>();
+
+	/**
+	 * The Infinispan configuration of the shared metadata cache; none if
+	 * null. Set via reflection.
+	 */
+	private String metadataCacheConfig;
+
+	/**
+	 * The name of the shared metadata cache. Set via reflection.
+	 */
+	private String metadataCacheName = "jclouds-metadata";
+
+	private MetadataCache metadataCache;
+
+	/**
+	 * Whether the context is built in the background. Set via reflection.
+	 */
+	private boolean lazyContext = true;
+
+	/**
+	 * Comma separated folders listed once the context is built; none if
+	 * null. Set via reflection.
+	 */
+	private String warmUpPaths;
+
+	/**
+	 * The first and the longest delay between attempts to build the context
+	 * in the background.
+	 */
+	private static final long CONTEXT_RETRY_MIN_MILLIS = 1000;
+	private static final long CONTEXT_RETRY_MAX_MILLIS = 5 * 60 * 1000;
+
+	/**
+	 * The last attempt to build the context, which requests wait for.
+	 */
+	private volatile ListenableFuture<Void> context;
+
+	/**
+	 * Done once the context is built.
+	 */
+	private final SettableFuture<Void> connected = SettableFuture.create();
+	private volatile Runnable snapshotSync;
+	private ListenableFuture<?> warmedUp;
+	private boolean closed;
+
 	@Override
 	public void initialize(NamespaceRegistry registry,
 			NodeTypeManager nodeTypeManager) throws RepositoryException,
@@ -202,26 +522,408 @@ public class JCloudsConnector extends WritableConnector implements Pageable {
 		super.initialize(registry, nodeTypeManager);
 		this.registry = registry;
 
-		{
-			// Init
-			ctx = ContextBuilder.newBuilder(provider)
-					.credentials(identity, credential)
-					.buildView(BlobStoreContext.class);
+		if (compressionCodec != null) {
+			compressionPolicy = new CompressionPolicy(
+					BlobCodec.fromMetadata(compressionCodec),
+					compressionMinSize, compressibleMimeTypes);
+		}
+
+		background = Executors.newSingleThreadScheduledExecutor(JCloudsUtil
+				.daemonThreadFactory("jclouds-connector-" + getSourceName(),
+						RequestPriority.BACKGROUND));
+		workers = Executors.newFixedThreadPool(parallelism, JCloudsUtil
+				.daemonThreadFactory("jclouds-worker-" + getSourceName()));
+
+		SettableFuture<Void> building = SettableFuture.create();
+		context = building;
+		if (!lazyContext) {
+			buildContext();
+			building.set(null);
+			connected.set(null);
+		}
+
+		blockCache = new BlockCache(blockCacheSize);
+		if (inlineThreshold > 0) {
+			inlinePool = new InlinePool(inlineThreshold, inlinePoolSize,
+					inlineMaxAgeMillis);
+		}
+		if (journalMillis > 0) {
+			journal = new WriteJournal(journalMillis);
+			background.scheduleWithFixedDelay(new Runnable() {
+
+				@Override
+				public void run() {
+					journal.purge();
+				}
+			}, journalMillis, journalMillis, TimeUnit.MILLISECONDS);
+		}
+		if (metadataCacheConfig != null) {
+			metadataCache = MetadataCache.start(metadataCacheConfig,
+					metadataCacheName, getSourceName() + DELIMITER
+							+ containerName + DELIMITER);
+		}
 
-			if (ctx == null) {
-				throw new RepositoryException("ContextBuilder provider = "
-						+ provider + " ,identity  " + identity + " failed");
+		if (listingSnapshot) {
+			directory = new File(directoryPath);
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new RepositoryException("Cannot create directory "
+						+ directory.getAbsolutePath());
 			}
+			snapshot = new ListingSnapshot(new File(directory,
+					getSourceName() + "-" + containerName + ".snapshot"));
+			// a missing or outdated snapshot is built right away; until then
+			// listings go to the provider
+			long firstSync = snapshot.load() ? snapshotSyncMillis : 0;
+			snapshotSync = new Runnable() {
+
+				@Override
+				public void run() {
+					if (!connected.isDone()) {
+						// synced once a retry builds the context
+						return;
+					}
+					try {
+						if (metadataCache != null && snapshot.isReady()) {
+							// the other nodes tell about their writes
+							snapshot.merge();
+						} else {
+							snapshot.sync(blobStore, containerName);
+						}
+					} catch (Exception e) {
+						getLogger().warn(e,
+								JCloudsI18n.listingSnapshotSyncFailed,
+								containerName, getSourceName(), e.getMessage());
+					}
+				}
+			};
+			background.scheduleWithFixedDelay(snapshotSync, firstSync,
+					snapshotSyncMillis, TimeUnit.MILLISECONDS);
+		}
+		if (metadataCache != null) {
+			metadataCache
+					.addInvalidationListener(new MetadataCache.InvalidationListener() {
+
+						@Override
+						public void invalidated(String blobName) {
+							changedElsewhere(blobName);
+						}
+
+						@Override
+						public void treeInvalidated(String directory) {
+							removedElsewhere(directory);
+						}
+					});
+		}
+
+		JCloudsConnectorRegistry.register(getRepositoryName(),
+				getSourceName(), this);
 
-			blobStore = ctx.getBlobStore();
+		// last, so building and warming up see everything set up above
+		if (lazyContext) {
+			buildContextInBackground(building, 0);
+		}
+		if (warmUpPaths != null) {
+			warmUp();
+		}
+	}
 
-			if (blobStore == null) {
-				throw new RepositoryException("getBlobStore provider = "
-						+ provider + " ,identity  " + identity + " failed");
+	/**
+	 * Builds the context on the background thread after the given delay. A
+	 * failed attempt is retried with a growing delay until the connector is
+	 * shut down; meanwhile requests fail with the error of the last attempt.
+	 *
+	 * @param building
+	 *            the future of this attempt, done once it succeeds or fails
+	 * @param delayMillis
+	 *            the delay before this attempt
+	 */
+	private void buildContextInBackground(
+			final SettableFuture<Void> building, final long delayMillis) {
+		background.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				context = building;
+				try {
+					buildContext();
+					building.set(null);
+					connected.set(null);
+					if (delayMillis > 0 && snapshotSync != null) {
+						// the scheduled syncs skipped so far
+						background.execute(snapshotSync);
+					}
+				} catch (Exception e) {
+					discardContext();
+					building.setException(e);
+					if (isClosed()) {
+						return;
+					}
+					long retryMillis = Math.min(CONTEXT_RETRY_MAX_MILLIS,
+							Math.max(CONTEXT_RETRY_MIN_MILLIS, delayMillis * 2));
+					getLogger().error(e, JCloudsI18n.contextFailed,
+							getSourceName(), provider, e.getMessage(),
+							retryMillis);
+					buildContextInBackground(
+							SettableFuture.<Void> create(), retryMillis);
+				}
+			}
+		}, delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private synchronized boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Releases what a failed attempt to build the context left behind.
+	 */
+	private synchronized void discardContext() {
+		if (async != null) {
+			async.shutdown();
+			async = null;
+		}
+		if (ctx != null) {
+			ctx.close();
+			ctx = null;
+		}
+	}
+
+	/**
+	 * Builds the jclouds context, the blob stores of this connector and what
+	 * depends on them, and loads the pack index.
+	 */
+	private void buildContext() throws RepositoryException, IOException {
+		long start = System.currentTimeMillis();
+		BlobStoreContext built = ContextBuilder.newBuilder(provider)
+				.credentials(identity, credential)
+				.buildView(BlobStoreContext.class);
+
+		if (built == null) {
+			throw new RepositoryException("ContextBuilder provider = "
+					+ provider + " ,identity  " + identity + " failed");
+		}
+		synchronized (this) {
+			if (closed) {
+				built.close();
+				throw new RepositoryException("Source " + getSourceName()
+						+ " was shut down while connecting");
+			}
+			ctx = built;
+		}
+
+		BlobStore provided = blobStoreOf(ctx);
+		blobStore = provided;
+		if (maxRequests > 0) {
+			scheduler = new RequestScheduler(maxRequests, bulkRequests,
+					backgroundRequests);
+			blobStore = scheduler.schedule(provided);
+		}
+		if (asyncRequests && provided != null) {
+			async = new AsyncRequests(provided, containerName, scheduler,
+					maxRequests > 0 ? maxRequests : parallelism);
+		}
+
+		if (blobStore == null) {
+			throw new RepositoryException("getBlobStore provider = "
+					+ provider + " ,identity  " + identity + " failed");
+		}
+
+		if (packThreshold > 0) {
+			PackStore packs = new PackStore(blobStore, containerName,
+					packSize, packFlushMillis, packReloadMillis);
+			packs.start();
+			synchronized (this) {
+				if (closed) {
+					// shut down while the pack index was loaded
+					packs.shutdown();
+					throw new RepositoryException("Source " + getSourceName()
+							+ " was shut down while connecting");
+				}
+				packStore = packs;
 			}
+		}
+		copier = new BlobCopier(ctx, blobStore, provider, containerName,
+				workers, async, scheduler);
+
+		getLogger().info(JCloudsI18n.contextReady, getSourceName(), provider,
+				containerName, System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Waits until the context is built, see {@link #buildContext()}.
+	 *
+	 * @throws DocumentStoreException
+	 *             if building it failed
+	 */
+	private void awaitContext(String id) {
+		try {
+			context.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DocumentStoreException(id, e);
+		} catch (ExecutionException e) {
+			throw new DocumentStoreException(id, e.getCause());
+		}
+	}
+
+	/**
+	 * Once the context is built, lists the warm-up folders and fetches the
+	 * metadata of their first blobs in parallel, at background priority, so
+	 * the shared metadata cache and the inline pool are filled before the
+	 * first users ask.
+	 */
+	private void warmUp() {
+		final List<String> ids = new ArrayList<String>();
+		for (String path : warmUpPaths.split(",")) {
+			path = path.trim();
+			if (!path.isEmpty()) {
+				ids.add(isRoot(path) ? path : contentNodeId2BlobName(path));
+			}
+		}
+		final long start = System.currentTimeMillis();
+		final List<ListenableFuture<?>> folders = new ArrayList<ListenableFuture<?>>();
+		for (final String id : ids) {
+			folders.add(Futures.transform(connected,
+					new AsyncFunction<Void, Void>() {
+
+						@Override
+						public ListenableFuture<Void> apply(Void built) {
+							ListenableFutureTask<Void> task = ListenableFutureTask
+									.create(new Callable<Void>() {
+
+										@Override
+										public Void call() {
+											warmUp(id);
+											return null;
+										}
+									});
+							workers.execute(task);
+							return task;
+						}
+					}));
+		}
+		warmedUp = Futures.successfulAsList(folders);
+		warmedUp.addListener(new Runnable() {
+
+			@Override
+			public void run() {
+				if (isReady()) {
+					getLogger().info(JCloudsI18n.warmUpFinished,
+							getSourceName(), ids.size(),
+							System.currentTimeMillis() - start);
+				}
+			}
+		}, sameThreadExecutor());
+	}
+
+	private void warmUp(String id) {
+		RequestPriority previous = RequestPriority.BACKGROUND.enter();
+		try {
+			List<String> children = childNames(id);
+			for (String childName : children.subList(0,
+					Math.min(children.size(), WARM_UP_BLOBS))) {
+				if (inlinePool != null) {
+					fetchInline(childName);
+				} else if (metadataCache != null) {
+					getLastModified(childName);
+				}
+			}
+		} catch (RuntimeException e) {
+			getLogger().debug(e, "Warming up {0} failed: {1}", id,
+					e.getMessage());
+		} finally {
+			RequestPriority.restore(previous);
+		}
+	}
+
+	/**
+	 * Returns whether the source serves requests without waiting for the
+	 * provider connection or the cache warm-up, e.g. for a readiness check of
+	 * the node: the connector is looked up with
+	 * {@link JCloudsConnectorRegistry#get}. With <code>lazyContext</code> a
+	 * source that is not ready still accepts requests, which wait until the
+	 * context is built.
+	 *
+	 * @return whether the context is built and the warm-up, if any, is done
+	 */
+	public boolean isReady() {
+		return connected.isDone()
+				&& (warmedUp == null || warmedUp.isDone());
+	}
 
+	/**
+	 * Returns the blob store all requests of this connector go through, before
+	 * they are scheduled by priority, including those sent without blocking
+	 * by {@link AsyncRequests}. Subclasses may override this to wrap the store
+	 * of the context, e.g. to instrument the requests.
+	 */
+	protected BlobStore blobStoreOf(BlobStoreContext ctx) {
+		return ctx.getBlobStore();
+	}
+
+	/**
+	 * @return the blob store of the container, once the context is built;
+	 *         null before initialization
+	 */
+	BlobStore blobStore() {
+		if (context != null) {
+			awaitContext(containerName);
+		}
+		return blobStore;
+	}
+
+	/**
+	 * @return the name of the container of this source
+	 */
+	String containerName() {
+		return containerName;
+	}
+
+	/**
+	 * Returns an ingester into the container of this source whose uploads
+	 * share the request scheduling of the connector as bulk writes, so a
+	 * running ingest leaves capacity to the repository sessions. Every
+	 * uploaded blob goes through the same bookkeeping as a session write,
+	 * so the write journal, the listing snapshot and the metadata caches of
+	 * all nodes see it at once.
+	 */
+	public BagIngester bagIngester(int threads) {
+		return new BagIngester(blobStore(), containerName, threads,
+				new BagIngester.UploadListener() {
+
+					@Override
+					public void uploaded(String blobName, long size) {
+						written(blobName, size);
+					}
+				});
+	}
+
+	/**
+	 * Returns an auditor of a bag in the container of this source whose
+	 * requests share the request scheduling of the connector as background
+	 * requests, see {@link BagFixityAuditor}.
+	 */
+	public BagFixityAuditor fixityAuditor(String bagPrefix, String algorithm,
+			int threads, long bytesPerSecond, File workDir) {
+		return new BagFixityAuditor(blobStore(), containerName, bagPrefix,
+				algorithm, threads, bytesPerSecond, workDir);
+	}
+
+	/**
+	 * @return the store of packed binaries; null if packing is disabled
+	 */
+	PackStore packStore() {
+		if (context != null) {
+			awaitContext(containerName);
 		}
+		return packStore;
+	}
 
+	/**
+	 * @return the cache of blocks for ranged reads
+	 */
+	BlockCache blockCache() {
+		return blockCache;
 	}
 
 	/**
@@ -405,10 +1107,23 @@ public class JCloudsConnector extends WritableConnector implements Pageable {
 	protected ExternalBinaryValue createBinaryValue(BinaryKey key, String id)
 			throws IOException {
 
-		return new JCloudsBinaryValue(key, getSourceName(),
-				new URL(providerUrlPrefix + DELIMITER + containerName
-						+ DELIMITER + id), blobStore, // TODO
-				containerName, id, -1, id, getMimeTypeDetector());
+		return binaryValue(key, id, -1);
+	}
+
+	/**
+	 * Creates the binary value of a blob whose size may already be known,
+	 * e.g. when a value deserialized on this node is first used.
+	 */
+	JCloudsBinaryValue binaryValue(BinaryKey key, String id, long size) {
+		try {
+			return new JCloudsBinaryValue(key, getRepositoryName(),
+					getSourceName(), new URL(providerUrlPrefix + DELIMITER
+							+ containerName + DELIMITER + id), blobStore,
+					packStore, // TODO
+					containerName, id, size, id, getMimeTypeDetector());
+		} catch (MalformedURLException e) {
+			throw new IllegalArgumentException(e);
+		}
 	}
 
 	// /**
@@ -470,11 +1185,222 @@ public class JCloudsConnector extends WritableConnector implements Pageable {
 
 	@Override
 	public boolean hasDocument(String id) {
+		awaitContext(id);
 
 		id = contentNodeId2BlobName(id);
 
-		return JCloudsUtil.blobExists(containerName, blobStore, id) ? true
-				: false;
+		return exists(id);
+	}
+
+	/**
+	 * Returns whether a blob or directory with the given name exists, either
+	 * in the container or in the packs.
+	 */
+	private boolean exists(String blobName) {
+		if (packStore != null
+				&& (packStore.contains(blobName) || packStore
+						.containsDirectory(blobName))) {
+			return true;
+		}
+		if (isSnapshotReady()) {
+			return snapshot.get(blobName) != null
+					|| snapshot.containsDirectory(blobName);
+		}
+		if (journal != null) {
+			Boolean journaled = journal.exists(blobName);
+			if (journaled != null) {
+				return journaled;
+			}
+			if (journal.containsDirectory(blobName)) {
+				return true;
+			}
+		}
+		if (metadataCache != null) {
+			Boolean cached = metadataCache.exists(blobName);
+			if (cached != null) {
+				return cached;
+			}
+		}
+		boolean exists;
+		if (async != null) {
+			try {
+				exists = AsyncRequests.await(async.exists(blobName));
+			} catch (IOException e) {
+				throw new DocumentStoreException(containerName + DELIMITER
+						+ blobName, e);
+			}
+		} else {
+			exists = JCloudsUtil.blobExists(containerName, blobStore, blobName);
+		}
+		if (metadataCache != null) {
+			metadataCache.putExists(blobName, exists);
+		}
+		return exists;
+	}
+
+	/**
+	 * Returns whether the name is a directory, i.e. has a folder marker or
+	 * other names below it.
+	 */
+	private boolean isDirectory(String blobName) {
+		if (packStore != null && packStore.containsDirectory(blobName)) {
+			return true;
+		}
+		if (isSnapshotReady() && !blobName.equals("")) {
+			BlobEntry entry = snapshot.get(blobName);
+			return entry != null && entry.isDirectory()
+					|| snapshot.containsDirectory(blobName);
+		}
+		if (journal != null && journal.containsDirectory(blobName)) {
+			return true;
+		}
+		if (metadataCache != null) {
+			Boolean cached = metadataCache.isDirectory(blobName);
+			if (cached != null) {
+				return cached;
+			}
+		}
+		boolean directory = blobStore.directoryExists(containerName, blobName);
+		if (metadataCache != null) {
+			metadataCache.putDirectory(blobName, directory);
+		}
+		return directory;
+	}
+
+	private boolean isSnapshotReady() {
+		return snapshot != null && snapshot.isReady();
+	}
+
+	/**
+	 * Records a blob written through this connector in the local views of
+	 * the container.
+	 *
+	 * @param size
+	 *            the size of the blob, or -1 for a folder
+	 */
+	private void written(String blobName, long size) {
+		removedTrees.written(blobName);
+		if (journal != null) {
+			journal.recordPut(blobName);
+		}
+		if (inlinePool != null) {
+			inlinePool.invalidate(blobName);
+		}
+		if (metadataCache != null) {
+			metadataCache.invalidate(blobName);
+		}
+		if (snapshot != null) {
+			snapshot.recordPut(new BlobEntry(blobName, size, null, System
+					.currentTimeMillis()));
+		}
+	}
+
+	/**
+	 * Records a blob removed through this connector in the local views of
+	 * the container.
+	 */
+	private void removed(String blobName) {
+		if (journal != null) {
+			journal.recordRemove(blobName);
+		}
+		if (inlinePool != null) {
+			inlinePool.invalidate(blobName);
+		}
+		if (metadataCache != null) {
+			metadataCache.invalidate(blobName);
+		}
+		if (snapshot != null) {
+			snapshot.recordRemove(blobName);
+		}
+	}
+
+	/**
+	 * Brings the local views of the container up to date with a blob written
+	 * or removed through the connector of another node of the cluster, as
+	 * announced by the {@link MetadataCache}.
+	 */
+	private void changedElsewhere(final String blobName) {
+		removedTrees.written(blobName);
+		if (journal != null) {
+			journal.forget(blobName);
+		}
+		if (inlinePool != null) {
+			inlinePool.invalidate(blobName);
+		}
+		if (snapshot != null) {
+			// not on the thread of the cache
+			background.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						refreshSnapshot(blobName);
+					} catch (RuntimeException e) {
+						getLogger().warn(e,
+								JCloudsI18n.listingSnapshotSyncFailed,
+								containerName, getSourceName(), e.getMessage());
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Brings the local views of the container up to date with a folder
+	 * removed through the connector of another node. The part of the
+	 * snapshot below the folder is synced again with one listing rather than
+	 * asking for each blob of the folder; syncs queued for the same folder
+	 * are coalesced.
+	 */
+	private void removedElsewhere(final String directory) {
+		if (journal != null) {
+			journal.forgetTree(directory);
+		}
+		if (inlinePool != null) {
+			inlinePool.invalidate(directory);
+			inlinePool.invalidateTree(directory);
+		}
+		if (snapshot != null && snapshotResyncs.add(directory)) {
+			background.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					snapshotResyncs.remove(directory);
+					try {
+						snapshot.sync(blobStore(), containerName, directory);
+					} catch (Exception e) {
+						getLogger().warn(e,
+								JCloudsI18n.listingSnapshotSyncFailed,
+								containerName, getSourceName(), e.getMessage());
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Records the current state of a blob on the provider in the snapshot.
+	 */
+	private void refreshSnapshot(String blobName) {
+		BlobMetadata metadata = blobStore().blobMetadata(containerName,
+				blobName);
+		if (metadata != null) {
+			snapshot.recordPut(BlobEntry.of(metadata));
+		} else if (blobStore().directoryExists(containerName, blobName)) {
+			snapshot.recordPut(new BlobEntry(blobName, -1, null, System
+					.currentTimeMillis()));
+		} else {
+			snapshot.recordRemove(blobName);
+		}
+	}
+
+	/**
+	 * Returns whether the blob name is used by the connector itself and must
+	 * not be exposed as a node.
+	 */
+	private boolean isHidden(String blobName) {
+		return blobName.equals(PackStore.PACK_PREFIX)
+				|| blobName.startsWith(PackStore.PACK_PREFIX + DELIMITER);
 	}
 
 	private String getParentId(String id) {
@@ -498,16 +1424,79 @@ public class JCloudsConnector extends WritableConnector implements Pageable {
 		return id;
 	}
 
+	/**
+	 * Fetches the metadata of a blob together with its content if it is no
+	 * larger than the inline threshold, see {@link InlinePool}.
+	 *
+	 * @return the fetched blob, or null if inlining is disabled, the blob is
+	 *         known to be larger or packed, or the fetch failed
+	 */
+	private InlinePool.Entry fetchInline(String blobName) {
+		if (inlinePool == null || packStore != null
+				&& packStore.contains(blobName)) {
+			return null;
+		}
+		if (isSnapshotReady()) {
+			BlobEntry entry = snapshot.get(blobName);
+			if (entry != null && entry.size > inlinePool.threshold()) {
+				return null;
+			}
+		}
+		try {
+			return inlinePool.fetch(blobStore, containerName, blobName);
+		} catch (Exception e) {
+			getLogger().debug(e, "Could not inline {0}: {1}", blobName,
+					e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * @return the pool of inlined small binaries; null if inlining is
+	 *         disabled
+	 */
+	InlinePool inlinePool() {
+		return inlinePool;
+	}
+
 	private long getLastModified(String blobName) {
 
-		return blobStore.blobExists(containerName, blobName) ? blobStore
-				.getBlob(containerName, blobName).getMetadata()
+		if (isSnapshotReady()) {
+			BlobEntry entry = snapshot.get(blobName);
+			if (entry != null && entry.lastModified > 0) {
+				return entry.lastModified;
+			}
+		}
+
+		if (packStore != null) {
+			PackStore.Entry packed = packStore.entry(blobName);
+			if (packed != null) {
+				// packed binaries share the modification time of their pack
+				blobName = packed.pack;
+			}
+		}
+		if (metadataCache != null) {
+			BlobEntry cached = metadataCache.metadata(blobName);
+			if (cached != null) {
+				return cached.lastModified;
+			}
+		}
+		BlobMetadata metadata = blobStore.blobMetadata(containerName,
+				blobName);
+		if (metadata == null) {
+			return 0;
+		}
+		if (metadataCache != null) {
+			metadataCache.putMetadata(blobName, BlobEntry.of(metadata));
+		}
+		return metadata.getLastModified() != null ? metadata
 				.getLastModified().getTime() : 0;
 
 	}
 
 	@Override
 	public Document getDocumentById(String id) {
+		awaitContext(id);
 
 		boolean isRoot = isRoot(id);
 		DocumentWriter writer = null;
@@ -515,7 +1504,12 @@ public class JCloudsConnector extends WritableConnector implements Pageable {
 
 		if (isResource) {
 			writer = newDocument(id);
+			String blobName = blobNameFromPath(id);
+			InlinePool.Entry fetched = fetchInline(blobName);
 			BinaryValue binaryValue = binaryFor(id);
+			if (fetched != null && fetched.isInline()) {
+				((JCloudsBinaryValue) binaryValue).inline(fetched);
+			}
 			writer.setPrimaryType(NT_RESOURCE);
 			writer.addProperty(JCR_DATA, binaryValue);
 			if (addMimeTypeMixin) {
@@ -531,7 +1525,9 @@ public class JCloudsConnector extends WritableConnector implements Pageable {
 				writer.addProperty(JCR_MIME_TYPE, mimeType);
 			}
 			writer.addProperty(JCR_LAST_MODIFIED, factories().getDateFactory()
-					.create(getLastModified(blobNameFromPath(id))));
+					.create(fetched != null && fetched.lastModified != null
+							? fetched.lastModified.getTime()
+							: getLastModified(blobName)));
 			writer.addProperty(JCR_LAST_MODIFIED_BY, null); // ignored
 
 			// //TODO , in cnd file
@@ -544,7 +1540,7 @@ public class JCloudsConnector extends WritableConnector implements Pageable {
 													// recognized in clouds
 			if (blobName.equals("")
 					&& blobStore.blobExists(containerName, blobName)
-					|| blobStore.directoryExists(containerName, blobName)) {
+					|| isDirectory(blobName)) {
 
 				System.out.println("blobStore.directoryExists " + blobName);
 				getLogger().trace("blobStore.directoryExists " + blobName);
@@ -602,71 +1598,110 @@ public class JCloudsConnector extends WritableConnector implements Pageable {
 
 	private DocumentWriter newFolderWriter(String path, String id, int offset) {
 
-		long totalChildren = 0;
-		int nextOffset = 0;
-
-		boolean root = isRoot(id);
-
 		DocumentWriter writer = newDocument(path);
 		writer.setPrimaryType(NT_FOLDER);
 		writer.addProperty(JCR_CREATED, null);// ignored
 		writer.addProperty(JCR_CREATED_BY, null); // ignored
 
-		PageSet<? extends StorageMetadata> containersRetrieved = root ? blobStore
-				.list(containerName) : blobStore.list(containerName,
-				ListContainerOptions.Builder.inDirectory(id).maxResults(1000)); // TODO
-																				// ,
-																				// how
-																				// about
-																				// too
-																				// many
-																				// files???
-
-		for (StorageMetadata child : containersRetrieved) {
-			if (totalChildren >= offset && totalChildren < offset + pageSize) {
-				String childName = child.getName();
+		List<String> children = childNames(id);
+		int end = Math.min(children.size(), offset + pageSize);
+		for (String childName : children.subList(Math.min(offset, end), end)) {
+			writer.addChild(DELIMITER + childName, getChildName(childName));
+			getLogger().trace("child name is " + childName);
+		}
 
-				if (childName.equalsIgnoreCase(id)) {
-					continue;
-				}
-				String childId = getChildName(childName);
+		// if there are still accessible children add the next page
+		if (end < children.size()) {
+			writer.addPage(id, end, pageSize, children.size());
+		}
 
-				// TODO ???
-				// if(childId != null && !childId.equals(""))
-				// if(!root)
-				{
-					// writer.addChild(id+childName, childId);
-					writer.addChild(DELIMITER + childName, childId);
+		writer.setNotQueryable();
 
-					nextOffset++;
+		return writer;
+	}
 
-					System.out.println("child name is " + childName);
+	/**
+	 * Returns the full blob names of the children of a directory, from the
+	 * container listing merged with the packed binaries.
+	 */
+	private List<String> childNames(String id) {
+		if (isSnapshotReady()) {
+			List<String> children = new ArrayList<String>();
+			for (String childName : snapshot.childrenOf(id)) {
+				if (!isHidden(childName)) {
+					children.add(childName);
 				}
-			} else {
-				break;
 			}
-			totalChildren++;
+			if (packStore != null) {
+				Set<String> packed = new LinkedHashSet<String>(children);
+				packed.addAll(packStore.childrenOf(id));
+				return new ArrayList<String>(packed);
+			}
+			return children;
 		}
 
-		totalChildren = containersRetrieved.size() - 1;
+		MetadataCache.ListingVersion version = null;
+		List<String> listed = null;
+		if (metadataCache != null) {
+			version = metadataCache.listingVersion(id);
+			listed = metadataCache.children(id);
+		}
+		boolean fetched = listed == null;
+		long fetchedAt = System.currentTimeMillis();
+		if (fetched) {
+			listed = listChildNames(id);
+		}
 
-		// if there are still accessible children add the next page
-		if (nextOffset < totalChildren) {
-			writer.addPage(id, nextOffset, pageSize, totalChildren);
+		Set<String> children = new LinkedHashSet<String>(listed);
+		if (journal != null) {
+			children = journal.merge(id, children);
+		}
+		if (metadataCache != null && fetched
+				&& children.equals(new HashSet<String>(listed))
+				&& (version == null || version.isSettled(fetchedAt,
+						journalMillis))) {
+			// share the listing only if it agrees with the journal, and the
+			// last write of the folder, on any node, had time to show in it
+			metadataCache.putChildren(id, version, listed);
 		}
+		if (packStore != null) {
+			children.addAll(packStore.childrenOf(id));
+		}
+		return new ArrayList<String>(children);
+	}
 
-		writer.setNotQueryable();
+	/**
+	 * Lists the full blob names of the children of a directory in the
+	 * container.
+	 */
+	private List<String> listChildNames(String id) {
+		PageSet<? extends StorageMetadata> containersRetrieved = isRoot(id) ? blobStore
+				.list(containerName) : blobStore.list(containerName,
+				ListContainerOptions.Builder.inDirectory(id).maxResults(1000)); // TODO
+																				// ,
+																				// how
+																				// about
+																				// too
+																				// many
+																				// files???
 
-		return writer;
+		List<String> children = new ArrayList<String>();
+		for (StorageMetadata child : containersRetrieved) {
+			String childName = child.getName();
+			if (!childName.equalsIgnoreCase(id) && !isHidden(childName)) {
+				children.add(childName);
+			}
+		}
+		return children;
 	}
 
 	@Override
 	public String getDocumentId(String path) {
+		awaitContext(path);
 
 		String id = blobNameFromPath(path);
 
-		return (blobStore.blobExists(containerName, id) || blobStore
-				.directoryExists(containerName, id)) ? path : null;
+		return exists(id) ? path : null;
 	}
 
 	@Override
@@ -677,20 +1712,118 @@ public class JCloudsConnector extends WritableConnector implements Pageable {
 
 	@Override
 	public ExternalBinaryValue getBinaryValue(String id) {
+		awaitContext(id);
 		return binaryFor(blobNameFromUrlId(id));
 	}
 
 	@Override
 	public boolean removeDocument(String id) {
+		RequestPriority previous = RequestPriority.INTERACTIVE_METADATA.enter();
+		try {
+			return remove(id);
+		} finally {
+			RequestPriority.restore(previous);
+		}
+	}
+
+	private boolean remove(String id) {
+		awaitContext(id);
 		extraPropertiesStore().removeProperties(id);
 
 		id = contentNodeId2BlobName(id);
 
-		if (!JCloudsUtil.blobExists(containerName, blobStore, id))
+		try {
+			if (packStore != null && packStore.remove(id)) {
+				removed(id);
+				return true;
+			}
+		} catch (IOException e) {
+			throw new DocumentStoreException(id, e);
+		}
+
+		if (removedTrees.contains(id)) {
+			// already removed with its folder
 			return false;
+		}
+
+		if (!JCloudsUtil.blobExists(containerName, blobStore, id)) {
+			return isDirectory(id) && removeTree(id);
+		}
 
 		JCloudsUtil.remove(containerName, blobStore, id);
+		removed(id);
+
+		return true;
+	}
+
+	/**
+	 * Removes a folder with everything below it, with batched parallel
+	 * removals instead of one document at a time, see {@link BlobCopier}.
+	 * The extra properties and cached metadata of the removed nodes are
+	 * removed page by page; the journal and the other nodes are told once,
+	 * of the whole folder.
+	 *
+	 * @throws DocumentStoreException
+	 *             if some blobs could not be removed; the others are gone
+	 */
+	private boolean removeTree(final String directory) {
+		BlobCopier.RemovalListener listener = new BlobCopier.RemovalListener() {
+
+			@Override
+			public void removed(List<String> names) {
+				for (String name : names) {
+					extraPropertiesStore().removeProperties(DELIMITER + name);
+					extraPropertiesStore().removeProperties(
+							DELIMITER + name + JCR_CONTENT_SUFFIX);
+					if (inlinePool != null) {
+						inlinePool.invalidate(name);
+					}
+					if (snapshot != null) {
+						snapshot.recordRemove(name);
+					}
+				}
+				if (metadataCache != null) {
+					metadataCache.invalidateAll(names);
+				}
+			}
+		};
+
+		BlobCopier.RemovalReport report;
+		try {
+			report = copier.removeTree(directory, listener);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DocumentStoreException(DELIMITER + directory, e);
+		}
+		if (packStore != null) {
+			List<String> packed = packStore.namesBelow(directory);
+			try {
+				packStore.removeAll(packed);
+			} catch (IOException e) {
+				throw new DocumentStoreException(DELIMITER + directory, e);
+			}
+			listener.removed(packed);
+		}
 
+		if (metadataCache != null) {
+			metadataCache.invalidateTree(directory);
+		}
+		if (snapshot != null) {
+			snapshot.recordRemove(directory);
+		}
+		if (!report.isComplete()) {
+			getLogger().warn(JCloudsI18n.folderRemovalIncomplete, directory,
+					containerName, getSourceName(), report.failed.size(),
+					report.failed.get(0));
+			throw new DocumentStoreException(DELIMITER + directory,
+					report.failed.size() + " blobs below " + directory
+							+ " could not be removed, e.g. "
+							+ report.failed.get(0));
+		}
+		removedTrees.add(directory);
+		if (journal != null) {
+			journal.recordRemoveTree(directory);
+		}
 		return true;
 	}
 
@@ -706,9 +1839,19 @@ public class JCloudsConnector extends WritableConnector implements Pageable {
 
 	@Override
 	public void storeDocument(Document document) {
+		RequestPriority previous = RequestPriority.INTERACTIVE_METADATA.enter();
+		try {
+			store(document);
+		} finally {
+			RequestPriority.restore(previous);
+		}
+	}
+
+	private void store(Document document) {
 		// Create a new directory or file described by the document ...
 		DocumentReader reader = readDocument(document);
 		String id = reader.getDocumentId();
+		awaitContext(id);
 
 		String primaryType = reader.getPrimaryTypeName();
 		Map<Name, Property> properties = reader.getProperties();
@@ -725,8 +1868,9 @@ public class JCloudsConnector extends WritableConnector implements Pageable {
 				BinaryValue binary = factories().getBinaryFactory().create(
 						content.getFirstValue());
 
-				JCloudsUtil.write(containerName, blobStore, binary,
-						contentNodeId2BlobName(id));
+				String blobName = contentNodeId2BlobName(id);
+				writeBinary(blobName, binary,
+						mimeTypeOf(properties, binary, blobName), false);
 
 				if (!NT_RESOURCE.equals(primaryType)) {
 					// This is the "jcr:content" child, but the primary type is
@@ -741,6 +1885,261 @@ public class JCloudsConnector extends WritableConnector implements Pageable {
 		}
 	}
 
+	/**
+	 * Moves the blob of a file node, or all blobs below a folder node, to the
+	 * name of the new identifier, and carries over the extra properties of
+	 * the moved nodes. Blobs are copied by the provider where possible, see
+	 * {@link BlobCopier}.
+	 */
+	private void move(String fromId, String toId) throws IOException,
+			InterruptedException {
+		String from = contentNodeId2BlobName(fromId);
+		String to = contentNodeId2BlobName(toId);
+		if (from.equals(to)) {
+			return;
+		}
+
+		if (packStore != null && packStore.contains(from)) {
+			packStore.moveAll(Collections.singletonMap(from, to));
+			moved(from, to);
+		} else if (blobStore.blobExists(containerName, from)) {
+			copier.copy(from, to);
+			JCloudsUtil.remove(containerName, blobStore, from);
+			moved(from, to);
+		} else {
+			BlobCopier.MovedTree tree = copier.moveTree(from, to);
+			for (String name : tree.blobs) {
+				moved(name, to + name.substring(from.length()));
+			}
+			for (String folder : tree.folders) {
+				String target = to + folder.substring(from.length());
+				moveExtraProperties(DELIMITER + folder, DELIMITER + target);
+				removed(folder);
+				written(target, -1);
+			}
+			if (packStore != null) {
+				Map<String, String> moves = new LinkedHashMap<String, String>();
+				for (String name : packStore.namesBelow(from)) {
+					moves.put(name, to + name.substring(from.length()));
+				}
+				packStore.moveAll(moves);
+				for (Map.Entry<String, String> move : moves.entrySet()) {
+					moved(move.getKey(), move.getValue());
+				}
+			}
+			moveExtraProperties(fromId, toId);
+			removed(from);
+			written(to, -1);
+		}
+		getLogger().debug("Moved {0} to {1}", from, to);
+	}
+
+	/**
+	 * Carries the extra properties of a moved file node and its content node
+	 * over to the new names.
+	 */
+	private void moved(String from, String to) {
+		long size = 0;
+		if (isSnapshotReady()) {
+			BlobEntry entry = snapshot.get(from);
+			size = entry == null ? 0 : entry.size;
+		}
+		moveExtraProperties(DELIMITER + from, DELIMITER + to);
+		moveExtraProperties(DELIMITER + from + JCR_CONTENT_SUFFIX, DELIMITER
+				+ to + JCR_CONTENT_SUFFIX);
+		removed(from);
+		written(to, size);
+	}
+
+	private void moveExtraProperties(String fromId, String toId) {
+		Map<Name, Property> properties = extraPropertiesStore().getProperties(
+				fromId);
+		if (properties != null && !properties.isEmpty()) {
+			extraPropertiesStore().storeProperties(toId, properties);
+			extraPropertiesStore().removeProperties(fromId);
+		}
+	}
+
+	private static String childId(String parentId, String childName) {
+		return parentId.endsWith(DELIMITER) ? parentId + childName : parentId
+				+ DELIMITER + childName;
+	}
+
+	private static boolean isMimeTypeChanged(DocumentChanges documentChanges) {
+		PropertyChanges propertyChanges = documentChanges.getPropertyChanges();
+		return propertyChanges.getChanged().contains(JcrLexicon.MIME_TYPE)
+				|| propertyChanges.getAdded().contains(JcrLexicon.MIME_TYPE)
+				|| propertyChanges.getRemoved().contains(JcrLexicon.MIME_TYPE);
+	}
+
+	/**
+	 * Returns whether the binary of an updated content node differs from the
+	 * stored blob. The 'jcr:data' property must have been changed, and a
+	 * binary held by the repository must have a SHA-1 (its key) other than
+	 * the one recorded when the blob was written, so re-saving a node does
+	 * not upload its content again.
+	 */
+	private boolean isContentChanged(DocumentChanges documentChanges,
+			String blobName, BinaryValue binary) {
+		PropertyChanges propertyChanges = documentChanges.getPropertyChanges();
+		if (!propertyChanges.getChanged().contains(JcrLexicon.DATA)
+				&& !propertyChanges.getAdded().contains(JcrLexicon.DATA)) {
+			return false;
+		}
+		if (binary instanceof JCloudsBinaryValue) {
+			return !((JCloudsBinaryValue) binary).isBlob(containerName,
+					blobName);
+		}
+		if (binary instanceof ExternalBinaryValue
+				|| packStore != null && packStore.contains(blobName)) {
+			return true;
+		}
+		BlobEntry stored = storedMetadata(blobName);
+		return stored == null
+				|| !binary.getKey().toString().equals(
+						stored.userMetadata.get(JCloudsUtil.SHA1_METADATA));
+	}
+
+	/**
+	 * Returns the content type and user metadata of a stored blob, from the
+	 * metadata cache if it holds them.
+	 *
+	 * @return null if there is no such blob
+	 */
+	private BlobEntry storedMetadata(String blobName) {
+		if (metadataCache != null) {
+			BlobEntry cached = metadataCache.metadata(blobName);
+			if (cached != null && cached.userMetadata != null) {
+				return cached;
+			}
+		}
+		BlobMetadata metadata = blobStore.blobMetadata(containerName,
+				blobName);
+		if (metadata == null) {
+			return null;
+		}
+		BlobEntry entry = BlobEntry.of(metadata);
+		if (metadataCache != null) {
+			metadataCache.putMetadata(blobName, entry);
+		}
+		return entry;
+	}
+
+	/**
+	 * Brings the content type of a stored blob up to date with a changed
+	 * 'jcr:mimeType' of its unchanged content. The stored bytes are copied
+	 * onto the blob with the new type; only if the new type changes whether
+	 * the binary is compressed is it written again.
+	 */
+	private void updateMimeType(String blobName, BinaryValue binary,
+			String mimeType) throws IOException, RepositoryException {
+		if (packStore != null && packStore.contains(blobName)) {
+			// packed binaries have no content type of their own
+			return;
+		}
+		BlobEntry stored = storedMetadata(blobName);
+		String contentType = mimeType != null ? mimeType
+				: "application/octet-stream";
+		if (stored == null || contentType.equals(stored.contentType)) {
+			return;
+		}
+		boolean compressed = stored.userMetadata
+				.containsKey(JCloudsUtil.CODEC_METADATA);
+		boolean compress = compressionPolicy.codecFor(mimeType,
+				binary.getSize()) != BlobCodec.IDENTITY;
+		if (compressed != compress) {
+			writeBinary(blobName, binary, mimeType, true);
+		} else {
+			copier.replaceContentType(blobName, contentType);
+			written(blobName, binary.getSize());
+		}
+	}
+
+	/**
+	 * Stores the binary of a content node, packed if it is small enough and
+	 * as a blob of its own otherwise.
+	 *
+	 * @param replacing
+	 *            whether an earlier version may exist in the other form and
+	 *            must be removed
+	 */
+	private void writeBinary(String blobName, BinaryValue binary,
+			String mimeType, boolean replacing) throws IOException,
+			RepositoryException {
+		String source = copySourceOf(binary, blobName);
+		if (source != null) {
+			// a copy of a node of this source, e.g. Workspace.copy(...)
+			copier.copy(source, blobName);
+			if (packStore != null) {
+				packStore.remove(blobName);
+			}
+		} else if (packStore != null && binary.getSize() <= packThreshold) {
+			InputStream in = binary.getStream();
+			try {
+				packStore.write(blobName, IOUtils.toByteArray(in));
+			} finally {
+				in.close();
+			}
+			if (replacing) {
+				JCloudsUtil.remove(containerName, blobStore, blobName);
+			}
+		} else {
+			// the upload carries the content, so it does not take the
+			// capacity left to the interactive requests of other sessions
+			RequestPriority previous = RequestPriority.BULK_WRITE.enter();
+			try {
+				JCloudsUtil.write(containerName, blobStore, binary, blobName,
+						mimeType, compressionPolicy);
+			} finally {
+				RequestPriority.restore(previous);
+			}
+			if (packStore != null) {
+				packStore.remove(blobName);
+			}
+		}
+		written(blobName, binary.getSize());
+	}
+
+	/**
+	 * Returns the name of the blob of this container the binary is read from,
+	 * if it can be copied by the provider instead of being uploaded again.
+	 *
+	 * @return the source blob name, or null if the binary must be uploaded
+	 */
+	private String copySourceOf(BinaryValue binary, String blobName) {
+		if (!(binary instanceof JCloudsBinaryValue)) {
+			return null;
+		}
+		JCloudsBinaryValue value = (JCloudsBinaryValue) binary;
+		if (!getSourceName().equals(value.getSourceName())
+				|| !value.isInContainer(containerName)
+				|| value.isBlob(containerName, blobName)
+				|| packStore != null && packStore.contains(value.blobName())) {
+			return null;
+		}
+		return value.blobName();
+	}
+
+	/**
+	 * Returns the MIME type of the binary stored for a content node, from its
+	 * 'jcr:mimeType' property or else detected from the name.
+	 */
+	private String mimeTypeOf(Map<Name, Property> properties,
+			BinaryValue binary, String blobName) {
+		Property mimeType = properties.get(JcrLexicon.MIME_TYPE);
+		if (mimeType != null && !mimeType.isEmpty()) {
+			return factories().getStringFactory().create(
+					mimeType.getFirstValue());
+		}
+		try {
+			return binary.getMimeType(getChildName(blobName));
+		} catch (Throwable e) {
+			getLogger().debug(e, "Could not detect MIME type of {0}",
+					blobName);
+			return null;
+		}
+	}
+
 	@Override
 	public String newDocumentId(String parentId, Name newDocumentName,
 			Name newDocumentPrimaryType) {
@@ -780,7 +2179,17 @@ public class JCloudsConnector extends WritableConnector implements Pageable {
 
 	@Override
 	public void updateDocument(DocumentChanges documentChanges) {
+		RequestPriority previous = RequestPriority.INTERACTIVE_METADATA.enter();
+		try {
+			update(documentChanges);
+		} finally {
+			RequestPriority.restore(previous);
+		}
+	}
+
+	private void update(DocumentChanges documentChanges) {
 		String id = documentChanges.getDocumentId();
+		awaitContext(id);
 
 		Document document = documentChanges.getDocument();
 		DocumentReader reader = readDocument(document);
@@ -790,6 +2199,24 @@ public class JCloudsConnector extends WritableConnector implements Pageable {
 		extraProperties.addAll(properties).except(JCR_PRIMARY_TYPE,
 				JCR_CREATED, JCR_LAST_MODIFIED, JCR_DATA);
 		try {
+			// moves and renames are copies within the container; this
+			// connector uses the path as identifier, so the node's blobs
+			// get the new path as name
+			if (!isRoot(id)) {
+				ParentChanges parentChanges = documentChanges
+						.getParentChanges();
+				if (parentChanges.hasNewPrimaryParent()) {
+					move(id, childId(parentChanges.getNewPrimaryParent(),
+							getChildName(id)));
+				}
+			}
+			for (Map.Entry<String, Name> renamed : documentChanges
+					.getChildrenChanges().getRenamed().entrySet()) {
+				String childId = renamed.getKey();
+				move(childId, childId(getParentId(childId), renamed.getValue()
+						.getLocalName()));
+			}
+
 			if (NT_FILE.equals(primaryType)) {
 				// TODO file.createNewFile();
 			} else if (NT_FOLDER.equals(primaryType)) {
@@ -799,8 +2226,18 @@ public class JCloudsConnector extends WritableConnector implements Pageable {
 				BinaryValue binary = factories().getBinaryFactory().create(
 						content.getFirstValue());
 
-				JCloudsUtil.write(containerName, blobStore, binary,
-						contentNodeId2BlobName(id));
+				String blobName = contentNodeId2BlobName(id);
+				if (isContentChanged(documentChanges, blobName, binary)) {
+					writeBinary(blobName, binary,
+							mimeTypeOf(properties, binary, blobName), true);
+				} else if (isMimeTypeChanged(documentChanges)) {
+					updateMimeType(blobName, binary,
+							mimeTypeOf(properties, binary, blobName));
+				} else {
+					// only other extra properties changed
+					getLogger().debug(
+							"Content of {0} is unchanged, not uploading it", id);
+				}
 
 				if (!NT_RESOURCE.equals(primaryType)) {
 					// This is the "jcr:content" child, but the primary type is
@@ -830,8 +2267,38 @@ public class JCloudsConnector extends WritableConnector implements Pageable {
 	public void shutdown() {
 		getLogger().debug("shutdown is invoked. ");
 
-		if (ctx != null) {
-			ctx.close();
+		JCloudsConnectorRegistry.unregister(getRepositoryName(),
+				getSourceName(), this);
+
+		// a context or pack store built from now on is shut down at once
+		PackStore packs;
+		synchronized (this) {
+			closed = true;
+			packs = packStore;
+		}
+
+		if (background != null) {
+			background.shutdownNow();
+		}
+		if (async != null) {
+			async.shutdown();
+		}
+		if (workers != null) {
+			workers.shutdownNow();
+		}
+
+		if (packs != null) {
+			packs.shutdown();
+		}
+
+		if (metadataCache != null) {
+			metadataCache.stop();
+		}
+
+		synchronized (this) {
+			if (ctx != null) {
+				ctx.close();
+			}
 		}
 
 	}
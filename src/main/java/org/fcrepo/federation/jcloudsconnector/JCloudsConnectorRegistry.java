@@ -0,0 +1,59 @@
+package org.fcrepo.federation.jcloudsconnector;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The running {@link JCloudsConnector}s of this JVM, by repository name and
+ * external source name, since repositories of one JVM may use the same
+ * source names. Used by deserialized {@link JCloudsBinaryValue}s to find the
+ * blob store of their source on the node they arrive at.
+ */
+public final class JCloudsConnectorRegistry {
+
+	private static final String SEPARATOR = "\u0000";
+
+	private static final ConcurrentMap<String, JCloudsConnector> CONNECTORS = new ConcurrentHashMap<String, JCloudsConnector>();
+
+	private JCloudsConnectorRegistry() {
+	}
+
+	static void register(String repositoryName, String sourceName,
+			JCloudsConnector connector) {
+		CONNECTORS.put(key(repositoryName, sourceName), connector);
+	}
+
+	static void unregister(String repositoryName, String sourceName,
+			JCloudsConnector connector) {
+		CONNECTORS.remove(key(repositoryName, sourceName), connector);
+	}
+
+	/**
+	 * @param repositoryName
+	 *            the name of the repository; null for values created outside
+	 *            of a repository, which match the source of any repository if
+	 *            the source name is unique in this JVM
+	 * @return the running connector of the source, or null if there is none
+	 */
+	public static JCloudsConnector get(String repositoryName, String sourceName) {
+		if (repositoryName != null) {
+			return CONNECTORS.get(key(repositoryName, sourceName));
+		}
+		JCloudsConnector found = null;
+		String suffix = SEPARATOR + sourceName;
+		for (Map.Entry<String, JCloudsConnector> entry : CONNECTORS.entrySet()) {
+			if (entry.getKey().endsWith(suffix)) {
+				if (found != null) {
+					return null;
+				}
+				found = entry.getValue();
+			}
+		}
+		return found;
+	}
+
+	private static String key(String repositoryName, String sourceName) {
+		return repositoryName + SEPARATOR + sourceName;
+	}
+}
@@ -0,0 +1,27 @@
+package org.fcrepo.federation.jcloudsconnector;
+
+import org.modeshape.common.i18n.I18n;
+
+/**
+ * The internationalized messages the {@link JCloudsConnector} logs through
+ * the ModeShape logger. The texts are in <code>JCloudsI18n.properties</code>.
+ */
+public final class JCloudsI18n {
+
+	public static I18n listingSnapshotSyncFailed;
+	public static I18n folderRemovalIncomplete;
+	public static I18n contextReady;
+	public static I18n contextFailed;
+	public static I18n warmUpFinished;
+
+	static {
+		try {
+			I18n.initialize(JCloudsI18n.class);
+		} catch (final Exception err) {
+			System.err.println(err);
+		}
+	}
+
+	private JCloudsI18n() {
+	}
+}
@@ -1,11 +1,29 @@
 package org.fcrepo.federation.jcloudsconnector;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.jcr.RepositoryException;
+
+import org.apache.commons.io.IOUtils;
 import org.modeshape.jcr.cache.DocumentStoreException;
 import org.modeshape.jcr.value.BinaryValue;
+import org.modeshape.jcr.value.binary.ExternalBinaryValue;
 import org.jclouds.blobstore.BlobStore;
 import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobBuilder;
+import org.jclouds.blobstore.domain.BlobBuilder.PayloadBlobBuilder;
+import org.jclouds.blobstore.domain.BlobMetadata;
 import org.jclouds.blobstore.domain.MutableBlobMetadata;
+import org.jclouds.io.ContentMetadata;
 import org.jclouds.io.MutableContentMetadata;
 
 /**
@@ -15,34 +33,210 @@ import org.jclouds.io.MutableContentMetadata;
  */
 public class JCloudsUtil {
 
+	/**
+	 * Prefix of the user metadata entries that record the fixity of a blob as
+	 * it was verified on upload, e.g. <code>fixity-md5</code>. The suffix is
+	 * the BagIt name of the algorithm.
+	 */
+	public static final String FIXITY_METADATA_PREFIX = "fixity-";
+
+	/**
+	 * Returns the user metadata key under which the given BagIt algorithm
+	 * (e.g. "md5", "sha1") is recorded.
+	 */
+	public static String fixityMetadataKey(String bagItAlgorithm) {
+		return FIXITY_METADATA_PREFIX + bagItAlgorithm.toLowerCase();
+	}
+
+	/**
+	 * User metadata entry recording the {@link BlobCodec} the payload is
+	 * stored with. Absent for blobs stored as is.
+	 */
+	public static final String CODEC_METADATA = "codec";
+
+	/**
+	 * User metadata entry recording the size of the original bytes, which
+	 * differs from the content length of encoded blobs.
+	 */
+	public static final String LOGICAL_SIZE_METADATA = "logical-size";
+
+	/**
+	 * User metadata entry recording the SHA-1 of the original bytes, when
+	 * known from the binary key of a binary held by the repository.
+	 */
+	public static final String SHA1_METADATA = "content-sha1";
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**
+	 * Lower case hex encoding of a digest, as used in BagIt manifests.
+	 */
+	public static String toHex(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+			chars[2 * i + 1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(chars);
+	}
+
 	public static void write(String containerName, BlobStore blobStore,
 			BinaryValue binary, String blobName) {
+		write(containerName, blobStore, binary, blobName, null,
+				CompressionPolicy.NONE);
+	}
+
+	/**
+	 * Stores the binary, encoded with the codec the policy chooses for it.
+	 * The codec and the size of the original bytes are recorded in the
+	 * blob's user metadata, see {@link #CODEC_METADATA} and
+	 * {@link #LOGICAL_SIZE_METADATA}. Encoded payloads that do not come out
+	 * smaller are stored as is.
+	 *
+	 * @param mimeType
+	 *            the MIME type of the binary, may be null if unknown
+	 */
+	public static void write(String containerName, BlobStore blobStore,
+			BinaryValue binary, String blobName, String mimeType,
+			CompressionPolicy compression) {
 
+		File encoded = null;
 		try {
+			long size = binary.getSize();
+			BlobCodec codec = compression.codecFor(mimeType, size);
+
+			Map<String, String> userMetadata = new HashMap<String, String>();
+			userMetadata.put(LOGICAL_SIZE_METADATA, String.valueOf(size));
+			if (!(binary instanceof ExternalBinaryValue)) {
+				// keys of binaries in the repository are their SHA-1
+				userMetadata.put(SHA1_METADATA, binary.getKey().toString());
+			}
 
-			Blob blob = blobStore.blobBuilder(blobName)
-					.payload(binary.getStream()).build();
+			Blob blob = null;
+			if (codec != BlobCodec.IDENTITY) {
+				encoded = encode(binary, codec);
+				if (encoded.length() < size) {
+					userMetadata.put(CODEC_METADATA, codec.getMetadataValue());
+					blob = blobStore.blobBuilder(blobName).payload(encoded)
+							.contentLength(encoded.length()).build();
+				}
+			}
+			if (blob == null) {
+				blob = blobStore.blobBuilder(blobName)
+						.payload(binary.getStream()).contentLength(size)
+						.build();
+			}
 
 			MutableBlobMetadata bm = blob.getMetadata();
+			bm.setUserMetadata(userMetadata);
 
 			MutableContentMetadata md = bm.getContentMetadata();
-
-			// set metadata
-			md.setContentLength(binary.getSize());
-			// TODO "application/octet-stream" is default, but need get from
-			// file type
-			md.setContentType("application/octet-stream");
-
-			blob.getMetadata().setContentMetadata(md);
+			md.setContentType(mimeType != null ? mimeType
+					: "application/octet-stream");
+			if (userMetadata.containsKey(CODEC_METADATA)) {
+				// so clients dereferencing the blob URI can decode it
+				md.setContentEncoding(codec.getMetadataValue());
+			}
 
 			blobStore.putBlob(containerName, blob);
 
 		} catch (Exception e) {
 			throw new DocumentStoreException(containerName + "/" + blobName, e);
+		} finally {
+			if (encoded != null && !encoded.delete()) {
+				encoded.deleteOnExit();
+			}
 		}
 
 	}
 
+	/**
+	 * Builds a copy of a fetched blob, streaming its payload and keeping its
+	 * user metadata, content type and content encoding. The length is set
+	 * only if the provider reported it.
+	 *
+	 * @param builder
+	 *            the builder of the blob named as the copy
+	 */
+	static Blob copyOf(Blob source, BlobBuilder builder) {
+		BlobMetadata metadata = source.getMetadata();
+		ContentMetadata content = metadata.getContentMetadata();
+		PayloadBlobBuilder copy = builder.userMetadata(
+				metadata.getUserMetadata()).payload(
+				source.getPayload().getInput());
+		if (content.getContentLength() != null) {
+			copy.contentLength(content.getContentLength());
+		}
+		if (content.getContentType() != null) {
+			copy.contentType(content.getContentType());
+		}
+		if (content.getContentEncoding() != null) {
+			copy.contentEncoding(content.getContentEncoding());
+		}
+		return copy.build();
+	}
+
+	/**
+	 * Encodes the binary into a temporary file, so the encoded length is
+	 * known before the upload starts without holding the payload in memory.
+	 */
+	private static File encode(BinaryValue binary, BlobCodec codec)
+			throws IOException, RepositoryException {
+		File encoded = File.createTempFile("jclouds-", ".enc");
+		InputStream in = binary.getStream();
+		try {
+			OutputStream out = codec.encode(new BufferedOutputStream(
+					new FileOutputStream(encoded)));
+			try {
+				IOUtils.copy(in, out);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			encoded.delete();
+			throw e;
+		} finally {
+			in.close();
+		}
+		return encoded;
+	}
+
+	/**
+	 * Returns a factory of daemon threads for the background work of the
+	 * connector, so it never keeps the JVM alive.
+	 */
+	static ThreadFactory daemonThreadFactory(String name) {
+		return daemonThreadFactory(name, null);
+	}
+
+	/**
+	 * Returns a factory of daemon threads whose provider requests run with
+	 * the given {@link RequestPriority}.
+	 */
+	static ThreadFactory daemonThreadFactory(final String name,
+			final RequestPriority priority) {
+		return new ThreadFactory() {
+
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(final Runnable r) {
+				Runnable task = priority == null ? r : new Runnable() {
+
+					@Override
+					public void run() {
+						priority.enter();
+						r.run();
+					}
+				};
+				Thread thread = new Thread(task, name + "-"
+						+ count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
 	public static void remove(String containerName, BlobStore blobStore,
 			String blobName) {
 
@@ -0,0 +1,637 @@
+package org.fcrepo.federation.jcloudsconnector;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.PageSet;
+import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.domain.StorageType;
+import org.jclouds.blobstore.options.ListContainerOptions;
+import org.slf4j.Logger;
+
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Maps;
+import com.google.common.collect.PeekingIterator;
+
+/**
+ * A local, memory-mapped snapshot of the names in a container, so folder
+ * browsing and existence checks do not need provider requests, even right
+ * after a restart.
+ * <p>
+ * The snapshot file holds all names sorted, with an offset table for binary
+ * search:
+ *
+ * <pre>
+ * int magic, int version, int count, int reserved
+ * int[count] entry offsets
+ * entries: int nameLength, byte[] name (UTF-8), long size, long lastModified,
+ *          short etagLength, byte[] etag (UTF-8)
+ * </pre>
+ *
+ * Writes and removes made through the connector since the snapshot was taken,
+ * and those of other nodes it is told about, are kept in memory and merged
+ * into every answer. {@link #merge()} folds them into a new file without any
+ * provider request. {@link #sync(BlobStore, String)} lists the whole
+ * container, and {@link #sync(BlobStore, String, String)} only the names
+ * below one folder. Every new file is streamed from the old one, the changes
+ * and the listing, which is only held a page at a time, written next to the
+ * old file and swapped in atomically; a file of another version is ignored
+ * and rebuilt by the next full sync.
+ * </p>
+ */
+class ListingSnapshot {
+
+	private static final Logger LOGGER = getLogger(ListingSnapshot.class);
+
+	private static final int MAGIC = 0x4a434c53; // "JCLS"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+	private static final int PAGE_SIZE = 1000;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final String DELIMITER = "/";
+
+	/**
+	 * Changes recorded this long before a sync started are expected to show
+	 * up in its listing, even from eventually consistent providers.
+	 */
+	private static final long CONSISTENCY_WINDOW_MILLIS = TimeUnit.MINUTES
+			.toMillis(1);
+
+	/**
+	 * A write or remove made since the snapshot was taken.
+	 */
+	private static final class Change {
+
+		/**
+		 * The written entry; null for a remove.
+		 */
+		final BlobEntry entry;
+		final long recordedAt = System.currentTimeMillis();
+
+		Change(BlobEntry entry) {
+			this.entry = entry;
+		}
+	}
+
+	private final File file;
+	private final ConcurrentNavigableMap<String, Change> changes = new ConcurrentSkipListMap<String, Change>();
+	private volatile Mapped mapped;
+
+	ListingSnapshot(File file) {
+		this.file = file;
+		this.mapped = Mapped.EMPTY;
+	}
+
+	/**
+	 * Maps the snapshot file, if there is a usable one.
+	 *
+	 * @return true if a snapshot was loaded, false if it must be built first
+	 */
+	boolean load() {
+		if (!file.exists()) {
+			return false;
+		}
+		try {
+			mapped = Mapped.map(file);
+			LOGGER.info("Loaded listing snapshot {} with {} names", file,
+					mapped.count);
+			return true;
+		} catch (IOException e) {
+			LOGGER.warn("Ignoring listing snapshot {}: {}", file,
+					e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * @return whether the snapshot has been loaded or synced, i.e. whether
+	 *         its answers are meaningful
+	 */
+	boolean isReady() {
+		return mapped != Mapped.EMPTY;
+	}
+
+	void recordPut(BlobEntry entry) {
+		changes.put(entry.name, new Change(entry));
+	}
+
+	void recordRemove(String name) {
+		changes.put(name, new Change(null));
+	}
+
+	/**
+	 * @return the entry of the name, or null if there is none
+	 */
+	BlobEntry get(String name) {
+		Change change = changes.get(name);
+		if (change != null) {
+			return change.entry;
+		}
+		Mapped m = mapped;
+		int i = m.lowerBound(name);
+		return i < m.count && m.nameAt(i).equals(name) ? m.entryAt(i) : null;
+	}
+
+	/**
+	 * @return whether any name lives below the directory
+	 */
+	boolean containsDirectory(String directory) {
+		String prefix = directory + DELIMITER;
+		if (hasPutBelow(prefix)) {
+			return true;
+		}
+		Mapped m = mapped;
+		return hasLiveBelow(m, m.lowerBound(prefix), prefix);
+	}
+
+	/**
+	 * Returns the full names of the immediate children of the directory.
+	 *
+	 * @param directory
+	 *            the directory name, or "/" for the container root
+	 */
+	Set<String> childrenOf(String directory) {
+		String prefix = DELIMITER.equals(directory) ? "" : directory
+				+ DELIMITER;
+		Set<String> children = new TreeSet<String>();
+
+		Mapped m = mapped;
+		int i = m.lowerBound(prefix);
+		while (i < m.count) {
+			String name = m.nameAt(i);
+			if (!name.startsWith(prefix)) {
+				break;
+			}
+			int end = name.indexOf(DELIMITER, prefix.length());
+			if (end < 0) {
+				if (!isRemoved(name)) {
+					children.add(name);
+				}
+				i++;
+			} else {
+				// skip everything else below this sub-directory
+				String child = name.substring(0, end);
+				if (hasLiveBelow(m, i, child + DELIMITER)) {
+					children.add(child);
+				}
+				i = m.lowerBound(child + (char) (DELIMITER.charAt(0) + 1));
+			}
+		}
+
+		for (Map.Entry<String, Change> change : changes.tailMap(prefix)
+				.entrySet()) {
+			String name = change.getKey();
+			if (!name.startsWith(prefix)) {
+				break;
+			}
+			if (change.getValue().entry != null) {
+				int end = name.indexOf(DELIMITER, prefix.length());
+				children.add(end < 0 ? name : name.substring(0, end));
+			}
+		}
+		return children;
+	}
+
+	/**
+	 * Lists the whole container and replaces the snapshot with the result.
+	 * Changes older than the listing are dropped, as it contains them.
+	 */
+	void sync(BlobStore blobStore, String containerName) throws IOException {
+		long startedAt = System.currentTimeMillis();
+		int count = replace(new Listing(blobStore, containerName,
+				ListContainerOptions.Builder.recursive()));
+		for (Iterator<Change> it = changes.values().iterator(); it.hasNext();) {
+			if (it.next().recordedAt < startedAt - CONSISTENCY_WINDOW_MILLIS) {
+				it.remove();
+			}
+		}
+		LOGGER.info("Synced listing snapshot {} with {} names in {} ms",
+				new Object[] { file, count,
+						System.currentTimeMillis() - startedAt });
+	}
+
+	/**
+	 * Lists the names below the directory, e.g. one removed by another node,
+	 * and replaces those of the snapshot with the result. Changes below the
+	 * directory older than the listing are dropped, as it contains them.
+	 */
+	void sync(BlobStore blobStore, String containerName, final String directory)
+			throws IOException {
+		long startedAt = System.currentTimeMillis();
+		Iterator<BlobEntry> outside = Iterators.filter(mapped.entries(),
+				new Predicate<BlobEntry>() {
+
+					@Override
+					public boolean apply(BlobEntry entry) {
+						return !isBelow(entry.name, directory);
+					}
+				});
+		replace(merge(outside, Iterators.transform(new Listing(blobStore,
+				containerName, ListContainerOptions.Builder.inDirectory(
+						directory).recursive()),
+				new Function<BlobEntry, Map.Entry<String, BlobEntry>>() {
+
+					@Override
+					public Map.Entry<String, BlobEntry> apply(BlobEntry entry) {
+						return Maps.immutableEntry(entry.name, entry);
+					}
+				})));
+		for (Iterator<Map.Entry<String, Change>> it = changes
+				.tailMap(directory).entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String, Change> change = it.next();
+			if (!change.getKey().startsWith(directory)) {
+				break;
+			}
+			if (isBelow(change.getKey(), directory)
+					&& change.getValue().recordedAt < startedAt
+							- CONSISTENCY_WINDOW_MILLIS) {
+				it.remove();
+			}
+		}
+		LOGGER.debug("Synced {} of listing snapshot {} in {} ms",
+				new Object[] { directory, file,
+						System.currentTimeMillis() - startedAt });
+	}
+
+	/**
+	 * Folds the changes recorded so far into the snapshot file, without any
+	 * provider request, so they survive a restart and no longer take memory.
+	 */
+	void merge() throws IOException {
+		if (changes.isEmpty()) {
+			return;
+		}
+		List<Map.Entry<String, Change>> folded = new ArrayList<Map.Entry<String, Change>>(
+				changes.entrySet());
+		replace(merge(mapped.entries(), Iterators.transform(
+				folded.iterator(),
+				new Function<Map.Entry<String, Change>, Map.Entry<String, BlobEntry>>() {
+
+					@Override
+					public Map.Entry<String, BlobEntry> apply(
+							Map.Entry<String, Change> change) {
+						return Maps.immutableEntry(change.getKey(),
+								change.getValue().entry);
+					}
+				})));
+		for (Map.Entry<String, Change> change : folded) {
+			// unless recorded again meanwhile
+			changes.remove(change.getKey(), change.getValue());
+		}
+	}
+
+	/**
+	 * Writes the sorted entries to a new file and swaps it in.
+	 *
+	 * @return the number of entries
+	 */
+	private int replace(Iterator<BlobEntry> entries) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		int count = write(tmp, entries);
+		Files.move(tmp.toPath(), file.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+		mapped = Mapped.map(file);
+		return count;
+	}
+
+	private static boolean isBelow(String name, String directory) {
+		return name.equals(directory)
+				|| name.startsWith(directory + DELIMITER);
+	}
+
+	/**
+	 * Merges entries sorted by name with changes sorted by name: a change
+	 * replaces the entry of its name, or removes it if it has no entry.
+	 */
+	private static Iterator<BlobEntry> merge(Iterator<BlobEntry> entries,
+			Iterator<Map.Entry<String, BlobEntry>> changes) {
+		final PeekingIterator<BlobEntry> base = Iterators
+				.peekingIterator(entries);
+		final PeekingIterator<Map.Entry<String, BlobEntry>> over = Iterators
+				.peekingIterator(changes);
+		return new AbstractIterator<BlobEntry>() {
+
+			@Override
+			protected BlobEntry computeNext() {
+				while (base.hasNext() || over.hasNext()) {
+					int order = !over.hasNext() ? -1 : !base.hasNext() ? 1
+							: base.peek().name.compareTo(over.peek().getKey());
+					if (order < 0) {
+						return base.next();
+					}
+					if (order == 0) {
+						base.next();
+					}
+					BlobEntry entry = over.next().getValue();
+					if (entry != null) {
+						return entry;
+					}
+				}
+				return endOfData();
+			}
+		};
+	}
+
+	/**
+	 * The entries of a listing, fetched a page at a time.
+	 */
+	private static final class Listing extends AbstractIterator<BlobEntry> {
+
+		private final BlobStore blobStore;
+		private final String containerName;
+		private final ListContainerOptions options;
+		private Iterator<? extends StorageMetadata> page;
+		private String marker;
+
+		Listing(BlobStore blobStore, String containerName,
+				ListContainerOptions options) {
+			this.blobStore = blobStore;
+			this.containerName = containerName;
+			this.options = options.maxResults(PAGE_SIZE);
+		}
+
+		@Override
+		protected BlobEntry computeNext() {
+			while (true) {
+				if (page != null && page.hasNext()) {
+					StorageMetadata metadata = page.next();
+					if (metadata.getType() != StorageType.CONTAINER) {
+						return BlobEntry.of(metadata);
+					}
+					continue;
+				}
+				if (page != null && marker == null) {
+					return endOfData();
+				}
+				if (marker != null) {
+					options.afterMarker(marker);
+				}
+				PageSet<? extends StorageMetadata> listed = blobStore.list(
+						containerName, options);
+				page = listed.iterator();
+				marker = listed.getNextMarker();
+			}
+		}
+	}
+
+	private boolean isRemoved(String name) {
+		Change change = changes.get(name);
+		return change != null && change.entry == null;
+	}
+
+	private boolean hasPutBelow(String prefix) {
+		for (Map.Entry<String, Change> change : changes.tailMap(prefix)
+				.entrySet()) {
+			if (!change.getKey().startsWith(prefix)) {
+				return false;
+			}
+			if (change.getValue().entry != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean hasLiveBelow(Mapped m, int from, String prefix) {
+		for (int i = from; i < m.count; i++) {
+			String name = m.nameAt(i);
+			if (!name.startsWith(prefix)) {
+				return false;
+			}
+			if (!isRemoved(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Streams the entries into a body file, keeping only their offsets in
+	 * memory, then writes the header, the offset table and the body. Entries
+	 * are expected sorted by name, as providers list them; if they are not,
+	 * the offsets are sorted by the names in the body.
+	 *
+	 * @return the number of entries
+	 */
+	private static int write(File target, Iterator<BlobEntry> entries)
+			throws IOException {
+		File body = new File(target.getPath() + ".body");
+		int[] offsets = new int[1024];
+		int count = 0;
+		long offset = 0;
+		boolean sorted = true;
+		String previous = null;
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(body), 64 * 1024));
+		try {
+			while (entries.hasNext()) {
+				BlobEntry entry = entries.next();
+				if (previous != null && previous.compareTo(entry.name) > 0) {
+					sorted = false;
+				}
+				previous = entry.name;
+				if (count == offsets.length) {
+					offsets = Arrays.copyOf(offsets, count * 2);
+				}
+				offsets[count++] = (int) offset;
+				byte[] name = entry.name.getBytes(UTF_8);
+				byte[] etag = entry.etag == null ? new byte[0] : entry.etag
+						.getBytes(UTF_8);
+				out.writeInt(name.length);
+				out.write(name);
+				out.writeLong(entry.size);
+				out.writeLong(entry.lastModified);
+				out.writeShort(etag.length);
+				out.write(etag);
+				offset += 4 + name.length + 8 + 8 + 2 + etag.length;
+				if (HEADER_SIZE + 4L * count + offset > Integer.MAX_VALUE) {
+					throw new IOException("Listing snapshot exceeds 2 GB");
+				}
+			}
+		} finally {
+			out.close();
+		}
+
+		try {
+			if (!sorted) {
+				offsets = sortByName(body, offsets, count);
+			}
+			int start = HEADER_SIZE + 4 * count;
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(target), 64 * 1024));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(count);
+				out.writeInt(0);
+				for (int i = 0; i < count; i++) {
+					out.writeInt(start + offsets[i]);
+				}
+				Files.copy(body.toPath(), out);
+			} finally {
+				out.close();
+			}
+		} finally {
+			body.delete();
+		}
+		return count;
+	}
+
+	private static int[] sortByName(File body, int[] offsets, int count)
+			throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(body, "r");
+		try {
+			final ByteBuffer buffer = raf.getChannel().map(
+					FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			Integer[] order = new Integer[count];
+			for (int i = 0; i < count; i++) {
+				order[i] = offsets[i];
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+
+				@Override
+				public int compare(Integer a, Integer b) {
+					return nameAt(buffer, a).compareTo(nameAt(buffer, b));
+				}
+			});
+			int[] sorted = new int[count];
+			for (int i = 0; i < count; i++) {
+				sorted[i] = order[i];
+			}
+			return sorted;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return the name of the entry at the offset of the buffer
+	 */
+	private static String nameAt(ByteBuffer buffer, int offset) {
+		byte[] name = new byte[buffer.getInt(offset)];
+		ByteBuffer view = buffer.duplicate();
+		view.position(offset + 4);
+		view.get(name);
+		return new String(name, UTF_8);
+	}
+
+	/**
+	 * A mapped snapshot file. Immutable; all reads use absolute positions or
+	 * a private duplicate of the buffer, so it can be shared by all threads.
+	 */
+	private static final class Mapped {
+
+		static final Mapped EMPTY = new Mapped(ByteBuffer.allocate(0), 0);
+
+		final ByteBuffer buffer;
+		final int count;
+
+		private Mapped(ByteBuffer buffer, int count) {
+			this.buffer = buffer;
+			this.count = count;
+		}
+
+		static Mapped map(File file) throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				FileChannel channel = raf.getChannel();
+				if (channel.size() < HEADER_SIZE) {
+					throw new IOException("truncated snapshot");
+				}
+				MappedByteBuffer buffer = channel.map(
+						FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+					throw new IOException("unsupported snapshot format "
+							+ buffer.getInt(4));
+				}
+				return new Mapped(buffer, buffer.getInt(8));
+			} finally {
+				// the mapping stays valid after the channel is closed
+				raf.close();
+			}
+		}
+
+		private int offsetOf(int i) {
+			return buffer.getInt(HEADER_SIZE + 4 * i);
+		}
+
+		String nameAt(int i) {
+			return ListingSnapshot.nameAt(buffer, offsetOf(i));
+		}
+
+		/**
+		 * @return all entries, sorted by name
+		 */
+		Iterator<BlobEntry> entries() {
+			return new AbstractIterator<BlobEntry>() {
+
+				private int i;
+
+				@Override
+				protected BlobEntry computeNext() {
+					return i < count ? entryAt(i++) : endOfData();
+				}
+			};
+		}
+
+		BlobEntry entryAt(int i) {
+			int offset = offsetOf(i);
+			int nameLength = buffer.getInt(offset);
+			ByteBuffer view = buffer.duplicate();
+			view.position(offset + 4);
+			byte[] name = new byte[nameLength];
+			view.get(name);
+			long size = view.getLong();
+			long lastModified = view.getLong();
+			byte[] etag = new byte[view.getShort()];
+			view.get(etag);
+			return new BlobEntry(new String(name, UTF_8), size,
+					etag.length == 0 ? null : new String(etag, UTF_8),
+					lastModified);
+		}
+
+		/**
+		 * @return the index of the first name not less than the given one
+		 */
+		int lowerBound(String name) {
+			int low = 0;
+			int high = count;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (nameAt(mid).compareTo(name) < 0) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+	}
+}
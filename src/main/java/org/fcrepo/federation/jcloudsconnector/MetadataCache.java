@@ -0,0 +1,420 @@
+package org.fcrepo.federation.jcloudsconnector;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.infinispan.Cache;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryModified;
+import org.infinispan.notifications.cachelistener.event.CacheEntryModifiedEvent;
+import org.slf4j.Logger;
+
+import com.google.common.base.Objects;
+
+/**
+ * A cache of folder listings, existence checks and blob metadata shared by
+ * the nodes of a cluster through an Infinispan cache.
+ * <p>
+ * With a replicated or distributed cache, a listing or HEAD fetched by one
+ * node serves all others, so adding nodes does not multiply the requests to
+ * the provider. Writes through the connector remove the entries of the blob
+ * and of its folders, which invalidates them on every node; the expiration
+ * of the cache bounds how long changes made by other clients go unseen.
+ * Cache failures are logged and treated as misses.
+ * </p>
+ * <p>
+ * Every invalidation of a folder listing also puts a new
+ * {@link ListingVersion} of the folder, and a listing is only served with
+ * the version it was fetched under. A listing fetched while a write
+ * invalidated it, and put after the invalidation, e.g. by another node or
+ * through an asynchronous cache, is never served.
+ * </p>
+ * <p>
+ * Each invalidation also puts a short-lived marker naming the blob and the
+ * invalidating node. The other nodes pass it to their
+ * {@link InvalidationListener}s, so views of the container kept outside of
+ * the cache, such as the {@link ListingSnapshot}, can follow the writes of
+ * other nodes. A removed folder is announced with a single marker, however
+ * many blobs it held, see {@link #invalidateTree(String)}.
+ * </p>
+ */
+class MetadataCache {
+
+	private static final Logger LOGGER = getLogger(MetadataCache.class);
+
+	private static final String DELIMITER = "/";
+
+	private static final String LISTING = "L:";
+	private static final String EXISTS = "E:";
+	private static final String DIRECTORY = "D:";
+	private static final String METADATA = "M:";
+	private static final String INVALIDATION = "I:";
+	private static final String VERSION = "V:";
+	private static final String TREE_INVALIDATION = "T:";
+
+	/**
+	 * How long invalidation markers are kept; they only need to reach the
+	 * other nodes.
+	 */
+	private static final long INVALIDATION_LIFESPAN_MILLIS = 60000;
+
+	/**
+	 * Told about blobs written or removed by other nodes of the cluster.
+	 */
+	interface InvalidationListener {
+
+		/**
+		 * Called on every node but the invalidating one, on a thread of the
+		 * cache.
+		 */
+		void invalidated(String blobName);
+
+		/**
+		 * Called like {@link #invalidated(String)} for a folder removed with
+		 * everything below it.
+		 */
+		void treeInvalidated(String directory);
+	}
+
+	/**
+	 * The last invalidation of the listing of a folder.
+	 */
+	static final class ListingVersion implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * When the listing was invalidated, on the clock of the invalidating
+		 * node.
+		 */
+		final long changed;
+		private final String id;
+
+		ListingVersion(long changed) {
+			this.changed = changed;
+			this.id = UUID.randomUUID().toString();
+		}
+
+		/**
+		 * @return whether a listing fetched at the given time is at least
+		 *         <code>windowMillis</code> younger than this change, so an
+		 *         eventually consistent provider shows the change in it
+		 */
+		boolean isSettled(long fetched, long windowMillis) {
+			return fetched - changed >= windowMillis;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof ListingVersion
+					&& id.equals(((ListingVersion) other).id);
+		}
+
+		@Override
+		public int hashCode() {
+			return id.hashCode();
+		}
+	}
+
+	/**
+	 * A listing with the version of its folder it was fetched under.
+	 */
+	private static final class Listing implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		final ListingVersion version;
+		final ArrayList<String> children;
+
+		Listing(ListingVersion version, List<String> children) {
+			this.version = version;
+			this.children = new ArrayList<String>(children);
+		}
+	}
+
+	private final EmbeddedCacheManager cacheManager;
+	private final Cache<String, Object> cache;
+	private final String keyPrefix;
+	private final String nodeId = UUID.randomUUID().toString();
+	private final List<InvalidationListener> listeners = new CopyOnWriteArrayList<InvalidationListener>();
+	private final InvalidationNotifier notifier = new InvalidationNotifier();
+
+	/**
+	 * @param keyPrefix
+	 *            distinguishes the entries of this source and container
+	 *            from those of others sharing the cache
+	 */
+	MetadataCache(EmbeddedCacheManager cacheManager,
+			Cache<String, Object> cache, String keyPrefix) {
+		this.cacheManager = cacheManager;
+		this.cache = cache;
+		this.keyPrefix = keyPrefix;
+		cache.addListener(notifier);
+	}
+
+	/**
+	 * Starts a cache manager from an Infinispan configuration file, or a
+	 * resource of that name, and returns the named cache of it.
+	 */
+	static MetadataCache start(String configuration, String cacheName,
+			String keyPrefix) throws IOException {
+		EmbeddedCacheManager cacheManager;
+		if (new File(configuration).isFile()) {
+			cacheManager = new DefaultCacheManager(configuration);
+		} else {
+			InputStream in = MetadataCache.class.getClassLoader()
+					.getResourceAsStream(configuration);
+			if (in == null) {
+				throw new IOException("Infinispan configuration "
+						+ configuration + " not found");
+			}
+			try {
+				cacheManager = new DefaultCacheManager(in);
+			} finally {
+				in.close();
+			}
+		}
+		Cache<String, Object> cache = cacheManager.getCache(cacheName);
+		return new MetadataCache(cacheManager, cache, keyPrefix);
+	}
+
+	void addInvalidationListener(InvalidationListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * @return the cached full names of the children of a directory, if they
+	 *         were fetched under its current version
+	 */
+	List<String> children(String directory) {
+		Listing listing = (Listing) get(LISTING + directory);
+		if (listing == null
+				|| !Objects.equal(listing.version, listingVersion(directory))) {
+			return null;
+		}
+		return listing.children;
+	}
+
+	/**
+	 * @return the current version of the listing of a directory, to be
+	 *         taken before the listing is fetched; null if no invalidation
+	 *         of it is known
+	 */
+	ListingVersion listingVersion(String directory) {
+		return (ListingVersion) get(VERSION + directory);
+	}
+
+	/**
+	 * Shares a listing fetched under the given version of the directory.
+	 */
+	void putChildren(String directory, ListingVersion version,
+			List<String> children) {
+		put(LISTING + directory, new Listing(version, children));
+	}
+
+	Boolean exists(String blobName) {
+		return (Boolean) get(EXISTS + blobName);
+	}
+
+	void putExists(String blobName, boolean exists) {
+		put(EXISTS + blobName, exists);
+	}
+
+	Boolean isDirectory(String blobName) {
+		return (Boolean) get(DIRECTORY + blobName);
+	}
+
+	void putDirectory(String blobName, boolean directory) {
+		put(DIRECTORY + blobName, directory);
+	}
+
+	BlobEntry metadata(String blobName) {
+		return (BlobEntry) get(METADATA + blobName);
+	}
+
+	void putMetadata(String blobName, BlobEntry entry) {
+		put(METADATA + blobName, entry);
+	}
+
+	/**
+	 * Invalidates, on all nodes, what is cached about a blob that was
+	 * written or removed, and the listings and existence of its folders.
+	 */
+	void invalidate(String blobName) {
+		ListingVersion version = new ListingVersion(System.currentTimeMillis());
+		remove(EXISTS + blobName);
+		remove(DIRECTORY + blobName);
+		remove(METADATA + blobName);
+		invalidateListing(blobName, version);
+		String name = blobName;
+		for (int slash = name.lastIndexOf(DELIMITER); slash > 0; slash = name
+				.lastIndexOf(DELIMITER)) {
+			name = name.substring(0, slash);
+			invalidateListing(name, version);
+			remove(EXISTS + name);
+			remove(DIRECTORY + name);
+		}
+		invalidateListing(DELIMITER, version);
+		announce(INVALIDATION, blobName);
+	}
+
+	/**
+	 * Invalidates, on all nodes, what is cached about a page of blobs removed
+	 * with their folder, with one new version of each folder listing
+	 * involved rather than one per blob. The other nodes are told once the
+	 * folder is removed, see {@link #invalidateTree(String)}.
+	 */
+	void invalidateAll(Collection<String> blobNames) {
+		ListingVersion version = new ListingVersion(System.currentTimeMillis());
+		Set<String> directories = new HashSet<String>();
+		for (String blobName : blobNames) {
+			remove(EXISTS + blobName);
+			remove(DIRECTORY + blobName);
+			remove(METADATA + blobName);
+			String name = blobName;
+			for (int slash = name.lastIndexOf(DELIMITER); slash > 0
+					&& directories.add(name.substring(0, slash)); slash = name
+					.lastIndexOf(DELIMITER)) {
+				name = name.substring(0, slash);
+			}
+		}
+		for (String directory : directories) {
+			invalidateListing(directory, version);
+			remove(EXISTS + directory);
+			remove(DIRECTORY + directory);
+		}
+		invalidateListing(DELIMITER, version);
+	}
+
+	/**
+	 * Invalidates a removed folder and its folders like
+	 * {@link #invalidate(String)}, and tells the other nodes the folder was
+	 * removed with everything below it.
+	 */
+	void invalidateTree(String directory) {
+		ListingVersion version = new ListingVersion(System.currentTimeMillis());
+		remove(EXISTS + directory);
+		remove(DIRECTORY + directory);
+		invalidateListing(directory, version);
+		String name = directory;
+		for (int slash = name.lastIndexOf(DELIMITER); slash > 0; slash = name
+				.lastIndexOf(DELIMITER)) {
+			name = name.substring(0, slash);
+			invalidateListing(name, version);
+			remove(EXISTS + name);
+			remove(DIRECTORY + name);
+		}
+		invalidateListing(DELIMITER, version);
+		announce(TREE_INVALIDATION, directory);
+	}
+
+	/**
+	 * Puts the marker telling the other nodes of an invalidation.
+	 */
+	private void announce(String kind, String name) {
+		try {
+			cache.put(keyPrefix + kind + name, nodeId,
+					INVALIDATION_LIFESPAN_MILLIS, TimeUnit.MILLISECONDS);
+		} catch (RuntimeException e) {
+			LOGGER.warn("Metadata cache invalidation of {} failed: {}", name,
+					e.getMessage());
+		}
+	}
+
+	/**
+	 * Puts the new version of a listing before removing it, so a listing put
+	 * in between is never served. The versions do not expire, so an older
+	 * listing cannot match again.
+	 */
+	private void invalidateListing(String directory, ListingVersion version) {
+		try {
+			cache.put(keyPrefix + VERSION + directory, version, -1,
+					TimeUnit.MILLISECONDS);
+		} catch (RuntimeException e) {
+			LOGGER.warn("Metadata cache invalidation of {} failed: {}",
+					directory, e.getMessage());
+		}
+		remove(LISTING + directory);
+	}
+
+	void stop() {
+		cache.removeListener(notifier);
+		cacheManager.stop();
+	}
+
+	private Object get(String key) {
+		try {
+			return cache.get(keyPrefix + key);
+		} catch (RuntimeException e) {
+			LOGGER.debug("Metadata cache lookup of {} failed: {}", key,
+					e.getMessage());
+			return null;
+		}
+	}
+
+	private void put(String key, Object value) {
+		try {
+			cache.put(keyPrefix + key, value);
+		} catch (RuntimeException e) {
+			LOGGER.debug("Metadata cache update of {} failed: {}", key,
+					e.getMessage());
+		}
+	}
+
+	private void remove(String key) {
+		try {
+			cache.remove(keyPrefix + key);
+		} catch (RuntimeException e) {
+			LOGGER.warn("Metadata cache invalidation of {} failed: {}", key,
+					e.getMessage());
+		}
+	}
+
+	/**
+	 * Passes the invalidation markers of other nodes to the listeners.
+	 */
+	@Listener
+	public final class InvalidationNotifier {
+
+		@CacheEntryModified
+		public void modified(CacheEntryModifiedEvent<String, Object> event) {
+			if (event.isPre() || nodeId.equals(event.getValue())) {
+				return;
+			}
+			boolean tree = event.getKey().startsWith(
+					keyPrefix + TREE_INVALIDATION);
+			String prefix = keyPrefix
+					+ (tree ? TREE_INVALIDATION : INVALIDATION);
+			if (!event.getKey().startsWith(prefix)) {
+				return;
+			}
+			String name = event.getKey().substring(prefix.length());
+			for (InvalidationListener listener : listeners) {
+				try {
+					if (tree) {
+						listener.treeInvalidated(name);
+					} else {
+						listener.invalidated(name);
+					}
+				} catch (RuntimeException e) {
+					LOGGER.warn("Handling the invalidation of {} failed: {}",
+							name, e.getMessage());
+				}
+			}
+		}
+	}
+}
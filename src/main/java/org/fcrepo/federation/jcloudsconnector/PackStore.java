@@ -0,0 +1,1076 @@
+package org.fcrepo.federation.jcloudsconnector;
+
+import static org.jclouds.blobstore.options.GetOptions.Builder.range;
+import static org.jclouds.blobstore.options.ListContainerOptions.Builder.inDirectory;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.PageSet;
+import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.options.ListContainerOptions;
+import org.slf4j.Logger;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Stores small binaries appended to larger pack objects, so writing and
+ * reading thousands of tiny files does not cost one provider request each.
+ * <p>
+ * Writes and removes are collected in an open batch held in memory. The
+ * batch is committed when it reaches <code>packSize</code> bytes, while later
+ * writes go to a new batch, and at the latest about <code>flushMillis</code>
+ * after its first record: its bytes are uploaded as one pack, followed by an
+ * index segment listing the binaries written to that pack and the binaries
+ * removed. Commits run on a thread of their own, so merging segments and
+ * compacting never hold them up. A write or remove
+ * returns only once its batch is committed, so an acknowledged write is
+ * stored on the provider; <code>flushMillis</code> is the longest time a
+ * write waits for concurrent writes to share its pack. If the commit fails,
+ * the writers of the batch get the failure and nothing of the batch becomes
+ * visible.
+ * </p>
+ * <p>
+ * There is one index segment per batch, so a commit costs two PUTs whatever
+ * the number of packed binaries. Every record carries the version (time) of
+ * its write, and segments are merged on read: for each name the record of
+ * the highest version wins, ties going to the later segment. Segments
+ * written by other nodes sharing the container are merged in every
+ * <code>reloadMillis</code>, and right away when a pack turns out to be gone.
+ * Concurrent writes of the same name on different nodes are resolved by
+ * their times, i.e. the last writer wins.
+ * </p>
+ * <p>
+ * Removing or rewriting a packed binary leaves dead bytes in its pack. A
+ * background compactor copies the live entries of packs that are more than
+ * half dead, and of small packs, into new batches with their original
+ * versions, loading one old pack and committing about <code>packSize</code>
+ * bytes at a time, carries over the removals of the segments it retires,
+ * and deletes the old segments and packs once the new ones are stored.
+ * </p>
+ * Packs and segments are stored under {@link #PACK_PREFIX}, which the
+ * connector hides from listings.
+ */
+class PackStore {
+
+	private static final Logger LOGGER = getLogger(PackStore.class);
+
+	static final String PACK_PREFIX = ".packs";
+
+	private static final String DELIMITER = "/";
+	private static final String SEGMENT_PREFIX = PACK_PREFIX + DELIMITER
+			+ "segments";
+	private static final String SEGMENT_HEADER = "packs-segment 1";
+	private static final long COMPACT_INTERVAL_MILLIS = TimeUnit.MINUTES
+			.toMillis(10);
+	private static final long PACK_CACHE_BYTES = 64L * 1024 * 1024;
+	private static final int PAGE_SIZE = 1000;
+
+	/**
+	 * Location of one packed binary.
+	 */
+	static final class Entry {
+
+		final String name;
+		final String pack;
+		final long offset;
+		final int length;
+		final long version;
+
+		Entry(String name, String pack, long offset, int length, long version) {
+			this.name = name;
+			this.pack = pack;
+			this.offset = offset;
+			this.length = length;
+			this.version = version;
+		}
+
+		String segment() {
+			return segmentOf(pack);
+		}
+	}
+
+	/**
+	 * The removal of a packed binary, kept so older writes merged in later
+	 * stay removed.
+	 */
+	private static final class Tombstone {
+
+		final long version;
+		final String segment;
+
+		Tombstone(long version, String segment) {
+			this.version = version;
+			this.segment = segment;
+		}
+	}
+
+	/**
+	 * A write or removal of a batch. A write with an <code>expected</code>
+	 * location is a compaction move, applied only if the binary still has
+	 * that location.
+	 */
+	private static final class Record {
+
+		final String name;
+		final Entry entry;
+		final long version;
+		final Entry expected;
+
+		Record(String name, Entry entry, long version, Entry expected) {
+			this.name = name;
+			this.entry = entry;
+			this.version = version;
+			this.expected = expected;
+		}
+	}
+
+	private static final class PackStats {
+
+		final AtomicLong total = new AtomicLong();
+		final AtomicLong dead = new AtomicLong();
+	}
+
+	/**
+	 * Writes and removals committed together.
+	 */
+	private static final class Batch {
+
+		final String id;
+		final List<Record> records = new ArrayList<Record>();
+		final SettableFuture<Void> commit = SettableFuture.create();
+		byte[] buffer;
+		int size;
+		long openedAt;
+
+		Batch(String id, int capacity) {
+			this.id = id;
+			this.buffer = new byte[capacity];
+		}
+
+		String pack() {
+			return PACK_PREFIX + DELIMITER + id;
+		}
+	}
+
+	private final BlobStore blobStore;
+	private final String containerName;
+	private final int packSize;
+	private final long flushMillis;
+	private final long reloadMillis;
+
+	private final ConcurrentNavigableMap<String, Entry> index = new ConcurrentSkipListMap<String, Entry>();
+	private final ConcurrentMap<String, Tombstone> tombstones = new ConcurrentHashMap<String, Tombstone>();
+	private final ConcurrentMap<String, PackStats> packs = new ConcurrentHashMap<String, PackStats>();
+
+	/**
+	 * The ids of the merged segments.
+	 */
+	private final Set<String> segments = new ConcurrentSkipListSet<String>();
+
+	/**
+	 * The ids of merged segments without pack, which only remove binaries.
+	 */
+	private final Set<String> removalSegments = new ConcurrentSkipListSet<String>();
+
+	/**
+	 * Whole packs that were recently written or compacted.
+	 */
+	private final Cache<String, byte[]> packCache;
+
+	/**
+	 * Held while committing and merging, so records are applied in order.
+	 */
+	private final Object flushLock = new Object();
+
+	/**
+	 * Runs the commits of batches.
+	 */
+	private final ScheduledExecutorService committer;
+
+	/**
+	 * Runs the merges of segments and the compaction.
+	 */
+	private final ScheduledExecutorService scheduler;
+
+	// guarded by this, null until something is staged
+	private Batch open;
+
+	/**
+	 * Full batches waiting for their commit, oldest first. Guarded by this.
+	 */
+	private final List<Batch> sealed = new ArrayList<Batch>();
+	private long lastMillis;
+
+	/**
+	 * @param packSize
+	 *            the size in bytes at which the open batch is committed
+	 * @param flushMillis
+	 *            the longest time a write waits for others to share its
+	 *            batch; 0 commits every write on its own
+	 * @param reloadMillis
+	 *            the interval at which segments written by other nodes are
+	 *            merged in; 0 merges only on start and when a pack is gone
+	 */
+	PackStore(BlobStore blobStore, String containerName, int packSize,
+			long flushMillis, long reloadMillis) {
+		this.blobStore = blobStore;
+		this.containerName = containerName;
+		this.packSize = packSize;
+		this.flushMillis = flushMillis;
+		this.reloadMillis = reloadMillis;
+		this.packCache = CacheBuilder.newBuilder()
+				.maximumWeight(PACK_CACHE_BYTES)
+				.weigher(new Weigher<String, byte[]>() {
+
+					@Override
+					public int weigh(String pack, byte[] bytes) {
+						return bytes.length;
+					}
+				}).build();
+		this.committer = Executors.newSingleThreadScheduledExecutor(JCloudsUtil
+				.daemonThreadFactory("jclouds-pack-commit-" + containerName,
+						RequestPriority.BULK_WRITE));
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(JCloudsUtil
+				.daemonThreadFactory("jclouds-pack-store-" + containerName,
+						RequestPriority.BACKGROUND));
+	}
+
+	/**
+	 * Merges the stored segments and starts the periodic commits, merges and
+	 * compaction.
+	 */
+	void start() throws IOException {
+		reload();
+		if (flushMillis > 0) {
+			long period = Math.max(1, flushMillis / 2);
+			committer.scheduleWithFixedDelay(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						if (openBatchAge() >= flushMillis) {
+							flush();
+						}
+					} catch (Exception e) {
+						// the writers of the batch get the failure
+						LOGGER.warn("Committing pack batch failed", e);
+					}
+				}
+			}, period, period, TimeUnit.MILLISECONDS);
+		}
+		if (reloadMillis > 0) {
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						reload();
+					} catch (Exception e) {
+						LOGGER.warn("Merging pack index segments failed", e);
+					}
+				}
+			}, reloadMillis, reloadMillis, TimeUnit.MILLISECONDS);
+		}
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					compact();
+				} catch (Exception e) {
+					LOGGER.warn("Compacting packs failed", e);
+				}
+			}
+		}, COMPACT_INTERVAL_MILLIS, COMPACT_INTERVAL_MILLIS,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Commits pending writes and stops the background tasks.
+	 */
+	void shutdown() {
+		scheduler.shutdown();
+		committer.shutdown();
+		try {
+			flush();
+		} catch (Exception e) {
+			LOGGER.error("Committing pack batch on shutdown failed", e);
+		}
+	}
+
+	boolean contains(String blobName) {
+		return index.containsKey(blobName);
+	}
+
+	/**
+	 * @return the location of the packed binary, or null if it is not packed
+	 */
+	Entry entry(String blobName) {
+		return index.get(blobName);
+	}
+
+	/**
+	 * Returns whether a packed binary lives below the given directory, i.e.
+	 * whether the directory exists only because of packed binaries.
+	 */
+	boolean containsDirectory(String directory) {
+		String prefix = directory + DELIMITER;
+		String name = index.ceilingKey(prefix);
+		return name != null && name.startsWith(prefix);
+	}
+
+	/**
+	 * @return the names of all packed binaries below the directory
+	 */
+	List<String> namesBelow(String directory) {
+		String prefix = directory + DELIMITER;
+		List<String> names = new ArrayList<String>();
+		for (String name : index.tailMap(prefix).keySet()) {
+			if (!name.startsWith(prefix)) {
+				break;
+			}
+			names.add(name);
+		}
+		return names;
+	}
+
+	/**
+	 * Returns the full names of the immediate children of the directory that
+	 * exist because of packed binaries: the packed binaries directly in the
+	 * directory, and the sub-directories holding packed binaries.
+	 *
+	 * @param directory
+	 *            the directory blob name, or "/" for the container root
+	 */
+	Set<String> childrenOf(String directory) {
+		String prefix = DELIMITER.equals(directory) ? "" : directory
+				+ DELIMITER;
+		Set<String> children = new LinkedHashSet<String>();
+		String name = index.ceilingKey(prefix);
+		while (name != null && name.startsWith(prefix)) {
+			int end = name.indexOf(DELIMITER, prefix.length());
+			if (end < 0) {
+				children.add(name);
+				name = index.higherKey(name);
+			} else {
+				// skip everything else below this sub-directory
+				String child = name.substring(0, end);
+				children.add(child);
+				name = index.ceilingKey(child + (char) (DELIMITER.charAt(0) + 1));
+			}
+		}
+		return children;
+	}
+
+	/**
+	 * Packs the binary, replacing any earlier packed version, and returns
+	 * once it is stored.
+	 */
+	void write(String blobName, byte[] bytes) throws IOException {
+		ListenableFuture<Void> commit;
+		synchronized (this) {
+			commit = stageWrite(blobName, bytes, nextVersion(), null);
+		}
+		await(commit);
+	}
+
+	/**
+	 * Removes the binary if it is packed, and returns once the removal is
+	 * stored.
+	 *
+	 * @return true if the binary was packed and is now removed
+	 */
+	boolean remove(String blobName) throws IOException {
+		return removeAll(Arrays.asList(blobName)) > 0;
+	}
+
+	/**
+	 * Removes the packed binaries among the names, committed together.
+	 *
+	 * @return the number of removed binaries
+	 */
+	int removeAll(Collection<String> blobNames) throws IOException {
+		List<ListenableFuture<Void>> commits = new ArrayList<ListenableFuture<Void>>();
+		int removed = 0;
+		synchronized (this) {
+			for (String name : blobNames) {
+				if (index.containsKey(name)) {
+					commits.add(stageRemove(name, nextVersion()));
+					removed++;
+				}
+			}
+		}
+		await(commits);
+		return removed;
+	}
+
+	/**
+	 * Moves packed binaries to new names, committing each copy together with
+	 * the removal of its source.
+	 *
+	 * @param moves
+	 *            the new names by the current names
+	 */
+	void moveAll(Map<String, String> moves) throws IOException {
+		List<ListenableFuture<Void>> commits = new ArrayList<ListenableFuture<Void>>();
+		for (Map.Entry<String, String> move : moves.entrySet()) {
+			byte[] bytes = read(move.getKey());
+			if (bytes == null) {
+				continue;
+			}
+			synchronized (this) {
+				long version = nextVersion();
+				stageRemove(move.getKey(), version);
+				commits.add(stageWrite(move.getValue(), bytes, version, null));
+			}
+		}
+		await(commits);
+	}
+
+	/**
+	 * Reads a packed binary.
+	 *
+	 * @return the bytes, or null if the binary is not packed
+	 */
+	byte[] read(String blobName) throws IOException {
+		Entry entry = index.get(blobName);
+		return entry == null ? null : read(entry, 0, entry.length);
+	}
+
+	/**
+	 * Reads <code>length</code> bytes starting at <code>position</code> of a
+	 * packed binary. If its pack is gone, e.g. compacted by another node, the
+	 * segments are merged again and the binary read from its new pack.
+	 */
+	byte[] read(Entry entry, long position, int length) throws IOException {
+		byte[] bytes = readFrom(entry, position, length);
+		if (bytes != null) {
+			return bytes;
+		}
+		reload();
+		Entry moved = index.get(entry.name);
+		if (moved != null && !moved.pack.equals(entry.pack)) {
+			bytes = readFrom(moved, position, length);
+		}
+		if (bytes == null) {
+			throw new IOException("Pack " + entry.pack + " of " + entry.name
+					+ " does not exist in " + containerName);
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return the bytes, or null if the pack does not exist
+	 */
+	private byte[] readFrom(Entry entry, long position, int length)
+			throws IOException {
+		if (length == 0) {
+			return new byte[0];
+		}
+		long start = entry.offset + position;
+
+		byte[] pack = packCache.getIfPresent(entry.pack);
+		if (pack != null) {
+			return Arrays.copyOfRange(pack, (int) start, (int) start + length);
+		}
+
+		Blob blob = blobStore.getBlob(containerName, entry.pack,
+				range(start, start + length - 1));
+		if (blob == null) {
+			return null;
+		}
+		InputStream in = blob.getPayload().getInput();
+		try {
+			byte[] bytes = new byte[length];
+			IOUtils.readFully(in, bytes);
+			return bytes;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Commits the full batches and the open batch, if they hold anything:
+	 * uploads the pack and the index segment of each, then applies its
+	 * records. A failed batch does not keep the later ones from being
+	 * committed; the first failure is thrown once all are done.
+	 */
+	void flush() throws IOException {
+		synchronized (flushLock) {
+			List<Batch> batches;
+			synchronized (this) {
+				batches = new ArrayList<Batch>(sealed);
+				sealed.clear();
+				if (open != null) {
+					batches.add(open);
+					open = null;
+				}
+			}
+			IOException ioFailure = null;
+			RuntimeException failure = null;
+			for (Batch batch : batches) {
+				try {
+					commit(batch);
+				} catch (IOException e) {
+					ioFailure = ioFailure == null ? e : ioFailure;
+				} catch (RuntimeException e) {
+					failure = failure == null ? e : failure;
+				}
+			}
+			if (ioFailure != null) {
+				throw ioFailure;
+			}
+			if (failure != null) {
+				throw failure;
+			}
+		}
+	}
+
+	/**
+	 * Uploads the pack and the index segment of a batch, then applies its
+	 * records. Must be called holding the flush lock.
+	 */
+	private void commit(Batch batch) throws IOException {
+		byte[] bytes = Arrays.copyOf(batch.buffer, batch.size);
+		try {
+			if (bytes.length > 0) {
+				blobStore.putBlob(containerName, blobStore
+						.blobBuilder(batch.pack()).payload(bytes)
+						.contentLength((long) bytes.length)
+						.contentType("application/octet-stream").build());
+			}
+			storeSegment(batch);
+		} catch (IOException e) {
+			failed(batch, e);
+			throw e;
+		} catch (RuntimeException e) {
+			failed(batch, e);
+			throw e;
+		}
+		if (bytes.length > 0) {
+			packCache.put(batch.pack(), bytes);
+		}
+		segments.add(batch.id);
+		if (bytes.length == 0) {
+			removalSegments.add(batch.id);
+		}
+		for (Record record : batch.records) {
+			apply(batch.id, record);
+		}
+		batch.commit.set(null);
+	}
+
+	/**
+	 * Copies the live entries of packs that are mostly dead, or small, into
+	 * new packs, and folds the segments that only remove binaries into the
+	 * new segment, then deletes the old packs and segments.
+	 */
+	void compact() throws IOException {
+		reload();
+		Set<String> compacted = new HashSet<String>();
+		Set<String> small = new HashSet<String>();
+		for (Map.Entry<String, PackStats> pack : packs.entrySet()) {
+			PackStats stats = pack.getValue();
+			if (stats.dead.get() * 2 > stats.total.get()) {
+				compacted.add(pack.getKey());
+			} else if (stats.total.get() < packSize / 4) {
+				small.add(pack.getKey());
+			}
+		}
+		if (small.size() > 1) {
+			compacted.addAll(small);
+		}
+		Set<String> retired = new TreeSet<String>();
+		for (String pack : compacted) {
+			retired.add(segmentOf(pack));
+		}
+		if (removalSegments.size() > 1 || !retired.isEmpty()) {
+			retired.addAll(removalSegments);
+		}
+		if (retired.isEmpty()) {
+			return;
+		}
+
+		Map<String, List<Entry>> live = new HashMap<String, List<Entry>>();
+		for (Entry entry : index.values()) {
+			if (compacted.contains(entry.pack)) {
+				List<Entry> entries = live.get(entry.pack);
+				if (entries == null) {
+					entries = new ArrayList<Entry>();
+					live.put(entry.pack, entries);
+				}
+				entries.add(entry);
+			}
+		}
+		// one old pack and about one new pack in memory at a time
+		List<ListenableFuture<Void>> commits = new ArrayList<ListenableFuture<Void>>();
+		long staged = 0;
+		for (Map.Entry<String, List<Entry>> pack : live.entrySet()) {
+			byte[] bytes = loadPack(pack.getKey());
+			for (Entry entry : pack.getValue()) {
+				byte[] copy = Arrays.copyOfRange(bytes, (int) entry.offset,
+						(int) entry.offset + entry.length);
+				synchronized (this) {
+					commits.add(stageWrite(entry.name, copy, entry.version,
+							entry));
+				}
+				staged += copy.length;
+				if (staged >= packSize) {
+					flush();
+					await(commits);
+					commits.clear();
+					staged = 0;
+				}
+			}
+		}
+		for (Map.Entry<String, Tombstone> tombstone : tombstones.entrySet()) {
+			if (retired.contains(tombstone.getValue().segment)) {
+				synchronized (this) {
+					commits.add(stageRemove(tombstone.getKey(),
+							tombstone.getValue().version));
+				}
+			}
+		}
+		flush();
+		await(commits);
+
+		// the segments first, so nobody merges entries of a deleted pack
+		for (String segment : retired) {
+			blobStore.removeBlob(containerName, segmentBlob(segment));
+		}
+		for (String segment : retired) {
+			segments.remove(segment);
+			removalSegments.remove(segment);
+		}
+		for (String pack : compacted) {
+			blobStore.removeBlob(containerName, pack);
+			packs.remove(pack);
+			packCache.invalidate(pack);
+		}
+		LOGGER.info("Compacted {} packs and {} segments in {}", new Object[] {
+				compacted.size(), retired.size(), containerName });
+	}
+
+	/**
+	 * Merges the segments not merged yet, e.g. written by other nodes, and
+	 * forgets segments other nodes retired.
+	 */
+	void reload() throws IOException {
+		// every segment this node committed so far sorts before the horizon
+		String horizon;
+		synchronized (flushLock) {
+			horizon = horizon();
+		}
+		Set<String> stored = new TreeSet<String>();
+		String marker = null;
+		do {
+			ListContainerOptions options = inDirectory(SEGMENT_PREFIX)
+					.recursive().maxResults(PAGE_SIZE);
+			if (marker != null) {
+				options.afterMarker(marker);
+			}
+			PageSet<? extends StorageMetadata> page = blobStore.list(
+					containerName, options);
+			for (StorageMetadata metadata : page) {
+				String name = metadata.getName();
+				if (name.startsWith(SEGMENT_PREFIX + DELIMITER)) {
+					stored.add(name.substring(SEGMENT_PREFIX.length()
+							+ DELIMITER.length()));
+				}
+			}
+			marker = page.getNextMarker();
+		} while (marker != null);
+
+		int merged = 0;
+		for (String segment : stored) {
+			if (segments.contains(segment)) {
+				continue;
+			}
+			List<Record> records = new ArrayList<Record>();
+			boolean hasPack = loadSegment(segment, records);
+			if (records.isEmpty() && !hasPack) {
+				// retired since it was listed
+				continue;
+			}
+			synchronized (flushLock) {
+				if (segments.add(segment)) {
+					if (!hasPack) {
+						removalSegments.add(segment);
+					}
+					for (Record record : records) {
+						apply(segment, record);
+					}
+					merged++;
+				}
+			}
+		}
+		for (String segment : segments) {
+			if (!stored.contains(segment) && segment.compareTo(horizon) < 0
+					&& !blobStore.blobExists(containerName,
+							segmentBlob(segment))) {
+				// retired by another node, which merged its entries
+				synchronized (flushLock) {
+					segments.remove(segment);
+					removalSegments.remove(segment);
+					packs.remove(PACK_PREFIX + DELIMITER + segment);
+				}
+			}
+		}
+		if (merged > 0) {
+			LOGGER.info(
+					"Merged {} pack index segments of {}, {} entries in {} packs",
+					new Object[] { merged, containerName, index.size(),
+							packs.size() });
+		}
+	}
+
+	/**
+	 * Adds a write to the open batch, committing the batch if it is full.
+	 * Must be called holding the monitor of this store.
+	 *
+	 * @return the commit of the batch
+	 */
+	private ListenableFuture<Void> stageWrite(String blobName, byte[] bytes,
+			long version, Entry expected) {
+		Batch batch = openBatch();
+		if (batch.size + bytes.length > batch.buffer.length) {
+			batch.buffer = Arrays.copyOf(batch.buffer, Math.max(
+					batch.buffer.length * 2, batch.size + bytes.length));
+		}
+		System.arraycopy(bytes, 0, batch.buffer, batch.size, bytes.length);
+		Entry entry = new Entry(blobName, batch.pack(), batch.size,
+				bytes.length, version);
+		batch.size += bytes.length;
+		batch.records.add(new Record(blobName, entry, version, expected));
+		return staged(batch);
+	}
+
+	/**
+	 * Adds a removal to the open batch. Must be called holding the monitor
+	 * of this store.
+	 */
+	private ListenableFuture<Void> stageRemove(String blobName, long version) {
+		Batch batch = openBatch();
+		batch.records.add(new Record(blobName, null, version, null));
+		return staged(batch);
+	}
+
+	private ListenableFuture<Void> staged(Batch batch) {
+		boolean full = batch.size >= packSize;
+		if (full) {
+			// later writes go to a new batch while this one is committed
+			open = null;
+			sealed.add(batch);
+		}
+		if (full || flushMillis == 0 || committer.isShutdown()) {
+			// not on this thread, which holds the monitor
+			Runnable commit = new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						flush();
+					} catch (Exception e) {
+						LOGGER.warn("Committing pack batch failed", e);
+					}
+				}
+			};
+			try {
+				committer.execute(commit);
+			} catch (RejectedExecutionException e) {
+				// shut down: commit on a thread of its own
+				new Thread(commit, "jclouds-pack-commit").start();
+			}
+		}
+		return batch.commit;
+	}
+
+	/**
+	 * Applies a committed or merged record to the index. Must be called
+	 * holding the flush lock.
+	 */
+	private void apply(String segment, Record record) {
+		observeVersion(record.version);
+		String name = record.name;
+		Entry current = index.get(name);
+		if (record.entry == null) {
+			if (current != null
+					&& !newer(record.version, segment, current.version,
+							current.segment())) {
+				return;
+			}
+			Tombstone tombstone = tombstones.get(name);
+			if (tombstone == null
+					|| newer(record.version, segment, tombstone.version,
+							tombstone.segment)) {
+				tombstones.put(name, new Tombstone(record.version, segment));
+			}
+			if (current != null) {
+				index.remove(name);
+				markDead(current);
+			}
+			return;
+		}
+
+		Entry entry = record.entry;
+		stats(entry.pack).total.addAndGet(entry.length);
+		Tombstone tombstone = tombstones.get(name);
+		boolean moved = record.expected == null
+				|| current != null && current.pack.equals(record.expected.pack)
+				&& current.version == record.expected.version;
+		if (!moved
+				|| tombstone != null
+				&& !newer(entry.version, segment, tombstone.version,
+						tombstone.segment)
+				|| current != null
+				&& !newer(entry.version, segment, current.version,
+						current.segment())) {
+			markDead(entry);
+			return;
+		}
+		index.put(name, entry);
+		tombstones.remove(name);
+		if (current != null) {
+			markDead(current);
+		}
+	}
+
+	/**
+	 * @return whether a record of the version and segment supersedes one of
+	 *         the other version and segment
+	 */
+	private static boolean newer(long version, String segment,
+			long otherVersion, String otherSegment) {
+		return version > otherVersion || version == otherVersion
+				&& segment.compareTo(otherSegment) >= 0;
+	}
+
+	private void failed(Batch batch, Exception e) {
+		batch.commit.setException(e);
+		try {
+			blobStore.removeBlob(containerName, batch.pack());
+		} catch (RuntimeException cleanup) {
+			LOGGER.debug("Removing pack {} of a failed commit failed: {}",
+					batch.pack(), cleanup.getMessage());
+		}
+	}
+
+	/**
+	 * Returns the open batch, opening one whose id sorts after the ids of
+	 * all segments committed or merged so far. Must be called holding the
+	 * monitor of this store.
+	 */
+	private Batch openBatch() {
+		if (open == null) {
+			open = new Batch(String.format("%013d-%s", nextVersion(),
+					UUID.randomUUID()), Math.min(packSize, 1024 * 1024));
+			open.openedAt = System.currentTimeMillis();
+		}
+		return open;
+	}
+
+	/**
+	 * @return a version later than all versions written or merged so far, so
+	 *         a write after merging another node's write supersedes it
+	 */
+	private synchronized long nextVersion() {
+		long millis = Math.max(System.currentTimeMillis(), lastMillis + 1);
+		lastMillis = millis;
+		return millis;
+	}
+
+	private synchronized void observeVersion(long version) {
+		lastMillis = Math.max(lastMillis, version);
+	}
+
+	private synchronized long openBatchAge() {
+		return open == null ? 0 : System.currentTimeMillis() - open.openedAt;
+	}
+
+	/**
+	 * @return an id sorting after the ids of all segments committed so far
+	 */
+	private synchronized String horizon() {
+		return String.format("%013d", lastMillis + 1);
+	}
+
+	private void markDead(Entry entry) {
+		stats(entry.pack).dead.addAndGet(entry.length);
+	}
+
+	private PackStats stats(String pack) {
+		PackStats stats = packs.get(pack);
+		if (stats == null) {
+			PackStats created = new PackStats();
+			stats = packs.putIfAbsent(pack, created);
+			if (stats == null) {
+				stats = created;
+			}
+		}
+		return stats;
+	}
+
+	private byte[] loadPack(String pack) throws IOException {
+		byte[] bytes = packCache.getIfPresent(pack);
+		if (bytes != null) {
+			return bytes;
+		}
+		Blob blob = blobStore.getBlob(containerName, pack);
+		if (blob == null) {
+			throw new IOException("Pack " + pack + " does not exist in "
+					+ containerName);
+		}
+		InputStream in = blob.getPayload().getInput();
+		try {
+			return IOUtils.toByteArray(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static String segmentOf(String pack) {
+		return pack.substring(PACK_PREFIX.length() + DELIMITER.length());
+	}
+
+	private static String segmentBlob(String segment) {
+		return SEGMENT_PREFIX + DELIMITER + segment;
+	}
+
+	/**
+	 * Waits for the commit of a batch, which is shared with other writers
+	 * and so never cancelled.
+	 */
+	private static void await(ListenableFuture<Void> commit)
+			throws IOException {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					commit.get();
+					return;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof IOException) {
+						throw (IOException) e.getCause();
+					}
+					throw new IOException(e.getCause());
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static void await(List<ListenableFuture<Void>> commits)
+			throws IOException {
+		for (ListenableFuture<Void> commit : commits) {
+			await(commit);
+		}
+	}
+
+	private void storeSegment(Batch batch) throws UnsupportedEncodingException {
+		StringBuilder text = new StringBuilder(SEGMENT_HEADER).append('\n');
+		if (batch.size > 0) {
+			text.append("pack\n");
+		}
+		for (Record record : batch.records) {
+			String name = URLEncoder.encode(record.name, "UTF-8");
+			if (record.entry == null) {
+				text.append("R\t").append(name).append('\t')
+						.append(record.version).append('\n');
+			} else {
+				text.append("E\t").append(name).append('\t')
+						.append(record.entry.offset).append('\t')
+						.append(record.entry.length).append('\t')
+						.append(record.version).append('\n');
+			}
+		}
+		byte[] bytes = text.toString().getBytes("UTF-8");
+		blobStore.putBlob(containerName, blobStore
+				.blobBuilder(segmentBlob(batch.id)).payload(bytes)
+				.contentLength((long) bytes.length).contentType("text/plain")
+				.build());
+	}
+
+	/**
+	 * Reads the records of a segment.
+	 *
+	 * @return whether the segment has a pack
+	 */
+	private boolean loadSegment(String segment, List<Record> records)
+			throws IOException {
+		Blob blob = blobStore.getBlob(containerName, segmentBlob(segment));
+		if (blob == null) {
+			return false;
+		}
+		String pack = PACK_PREFIX + DELIMITER + segment;
+		boolean hasPack = false;
+		BufferedReader reader = new BufferedReader(new InputStreamReader(blob
+				.getPayload().getInput(), "UTF-8"));
+		try {
+			String header = reader.readLine();
+			if (!SEGMENT_HEADER.equals(header)) {
+				throw new IOException("Unsupported pack index segment "
+						+ header + " in " + containerName);
+			}
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t");
+				if ("pack".equals(fields[0])) {
+					hasPack = true;
+				} else if ("E".equals(fields[0])) {
+					String name = URLDecoder.decode(fields[1], "UTF-8");
+					long version = Long.parseLong(fields[4]);
+					records.add(new Record(name, new Entry(name, pack, Long
+							.parseLong(fields[2]), Integer.parseInt(fields[3]),
+							version), version, null));
+				} else if ("R".equals(fields[0])) {
+					records.add(new Record(URLDecoder.decode(fields[1],
+							"UTF-8"), null, Long.parseLong(fields[2]), null));
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return hasPack;
+	}
+}
@@ -0,0 +1,62 @@
+package org.fcrepo.federation.jcloudsconnector;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * The folders recently removed through the connector with everything below
+ * them.
+ * <p>
+ * After a folder is removed, ModeShape removes the nodes below it one by
+ * one; their blobs are gone already, so those removals need no provider
+ * request. Unlike the {@link WriteJournal}, which may be disabled, a folder
+ * is kept here as long as such removals keep coming, up to
+ * <code>idleMillis</code> after the last one, and until something is written
+ * below it, through this connector or that of another node.
+ * </p>
+ */
+class RemovedTrees {
+
+	private static final String DELIMITER = "/";
+
+	private static final int MAX_FOLDERS = 1000;
+
+	private final Cache<String, Boolean> folders;
+
+	RemovedTrees(long idleMillis) {
+		this.folders = CacheBuilder.newBuilder().maximumSize(MAX_FOLDERS)
+				.expireAfterAccess(idleMillis, TimeUnit.MILLISECONDS).build();
+	}
+
+	void add(String directory) {
+		folders.put(directory, true);
+	}
+
+	/**
+	 * @return whether the blob, or one of its folders, is a removed folder
+	 */
+	boolean contains(String blobName) {
+		for (String name = blobName; name != null; name = parentOf(name)) {
+			if (folders.getIfPresent(name) != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Forgets the removed folders a written blob is in.
+	 */
+	void written(String blobName) {
+		for (String name = blobName; name != null; name = parentOf(name)) {
+			folders.invalidate(name);
+		}
+	}
+
+	private static String parentOf(String name) {
+		int slash = name.lastIndexOf(DELIMITER);
+		return slash > 0 ? name.substring(0, slash) : null;
+	}
+}
@@ -0,0 +1,95 @@
+package org.fcrepo.federation.jcloudsconnector;
+
+/**
+ * The priority classes of provider requests, highest first, see
+ * {@link RequestScheduler}.
+ * <p>
+ * A request is classified by the {@link org.jclouds.blobstore.BlobStore}
+ * method it calls, unless the calling thread runs with a priority of its
+ * own, set with {@link #enter()}. The connector runs the document writes of
+ * repository sessions as interactive, except the requests carrying content,
+ * i.e. uploads and copies of blobs, which run as {@link #BULK_WRITE} like
+ * the bulk tools, such as {@link BagIngester}; its background threads run
+ * with {@link #BACKGROUND}. Requests of other threads are classified by
+ * method.
+ * </p>
+ */
+enum RequestPriority {
+
+	/**
+	 * Existence checks, metadata and listings, e.g. for
+	 * <code>getDocumentById</code>.
+	 */
+	INTERACTIVE_METADATA,
+
+	/**
+	 * Reads of blob content, e.g. for {@link JCloudsBinaryValue#getStream()}.
+	 */
+	INTERACTIVE_READ,
+
+	/**
+	 * Uploads, copies and removals.
+	 */
+	BULK_WRITE,
+
+	/**
+	 * Requests of background jobs, such as pack compaction and snapshot
+	 * syncs.
+	 */
+	BACKGROUND;
+
+	private static final ThreadLocal<RequestPriority> CURRENT = new ThreadLocal<RequestPriority>();
+
+	/**
+	 * Runs all requests of the current thread with this priority, until
+	 * {@link #restore(RequestPriority)} is called. On a thread entering
+	 * either interactive class all requests are interactive: content reads
+	 * run as {@link #INTERACTIVE_READ} and all others, writes included, as
+	 * {@link #INTERACTIVE_METADATA}.
+	 *
+	 * @return the priority the thread had before, to be restored
+	 */
+	RequestPriority enter() {
+		RequestPriority previous = CURRENT.get();
+		CURRENT.set(this);
+		return previous;
+	}
+
+	/**
+	 * Restores the priority of the current thread returned by
+	 * {@link #enter()}.
+	 */
+	static void restore(RequestPriority previous) {
+		if (previous == null) {
+			CURRENT.remove();
+		} else {
+			CURRENT.set(previous);
+		}
+	}
+
+	/**
+	 * @return the priority of a request calling the blob store method, on the
+	 *         current thread
+	 */
+	static RequestPriority of(String method) {
+		RequestPriority current = CURRENT.get();
+		if (method.equals("getBlob")
+				&& (current == null || current.isInteractive())) {
+			return INTERACTIVE_READ;
+		}
+		if (current != null) {
+			return current.isInteractive() ? INTERACTIVE_METADATA : current;
+		}
+		if (method.startsWith("put") || method.startsWith("copy")
+				|| method.startsWith("remove")
+				|| method.startsWith("create") || method.startsWith("delete")
+				|| method.startsWith("clear")) {
+			return BULK_WRITE;
+		}
+		return INTERACTIVE_METADATA;
+	}
+
+	private boolean isInteractive() {
+		return this == INTERACTIVE_METADATA || this == INTERACTIVE_READ;
+	}
+}
@@ -0,0 +1,279 @@
+package org.fcrepo.federation.jcloudsconnector;
+
+import static com.google.common.util.concurrent.MoreExecutors.sameThreadExecutor;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.jclouds.blobstore.BlobStore;
+
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Admits provider requests by {@link RequestPriority}, so interactive
+ * traffic does not queue behind bulk uploads and background jobs on the same
+ * connections.
+ * <p>
+ * At most <code>maxRequests</code> requests run at once. Each class has a
+ * budget of its own within that: bulk writes and background requests are
+ * capped below the total, so the remaining capacity is always left to
+ * interactive requests, while bulk traffic still uses the capacity
+ * interactive traffic leaves idle. A free slot goes to the highest class
+ * with a waiting request within its budget, and requests of one class are
+ * admitted in arrival order.
+ * </p>
+ * <p>
+ * Admission is a future, so asynchronous requests wait for a slot without
+ * holding a thread, see {@link #call(RequestPriority, Callable)}. A request
+ * holds its slot until the blob store call returns; the content of a blob
+ * returned by <code>getBlob</code> is streamed afterwards.
+ * </p>
+ */
+class RequestScheduler {
+
+	private static final RequestPriority[] PRIORITIES = RequestPriority
+			.values();
+
+	private final int maxRequests;
+	private final int[] budgets = new int[PRIORITIES.length];
+	private final int[] running = new int[PRIORITIES.length];
+	private final List<Deque<Ticket>> waiting = new ArrayList<Deque<Ticket>>();
+	private int total;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * @param maxRequests
+	 *            the most requests running at once
+	 * @param bulkRequests
+	 *            the most bulk write requests running at once
+	 * @param backgroundRequests
+	 *            the most background requests running at once
+	 */
+	RequestScheduler(int maxRequests, int bulkRequests, int backgroundRequests) {
+		this.maxRequests = maxRequests;
+		budgets[RequestPriority.INTERACTIVE_METADATA.ordinal()] = maxRequests;
+		budgets[RequestPriority.INTERACTIVE_READ.ordinal()] = maxRequests;
+		budgets[RequestPriority.BULK_WRITE.ordinal()] = Math.max(1,
+				Math.min(bulkRequests, maxRequests));
+		budgets[RequestPriority.BACKGROUND.ordinal()] = Math.max(1,
+				Math.min(backgroundRequests, maxRequests));
+		for (int i = 0; i < PRIORITIES.length; i++) {
+			waiting.add(new ArrayDeque<Ticket>());
+		}
+	}
+
+	/**
+	 * Queues a request of the class.
+	 *
+	 * @return a future done once the request may start; cancelling it
+	 *         withdraws the request
+	 */
+	ListenableFuture<Void> admit(RequestPriority priority) {
+		Ticket ticket = new Ticket(priority);
+		List<Ticket> admitted;
+		lock.lock();
+		try {
+			waiting.get(priority.ordinal()).addLast(ticket);
+			admitted = grant();
+		} finally {
+			lock.unlock();
+		}
+		start(admitted);
+		return ticket.admission;
+	}
+
+	/**
+	 * Waits until a request of the class may start.
+	 */
+	void acquire(RequestPriority priority) throws InterruptedException {
+		ListenableFuture<Void> ticket = admit(priority);
+		try {
+			ticket.get();
+		} catch (InterruptedException e) {
+			if (!ticket.cancel(false)) {
+				// admitted in the meantime
+				release(priority);
+			}
+			throw e;
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * Frees the slot of a finished request.
+	 */
+	void release(RequestPriority priority) {
+		List<Ticket> admitted;
+		lock.lock();
+		try {
+			running[priority.ordinal()]--;
+			total--;
+			admitted = grant();
+		} finally {
+			lock.unlock();
+		}
+		start(admitted);
+	}
+
+	/**
+	 * Runs an asynchronous request once it is admitted, and frees its slot
+	 * when the returned future is done. No thread waits for the slot.
+	 */
+	<T> ListenableFuture<T> call(final RequestPriority priority,
+			final Callable<ListenableFuture<T>> request) {
+		final ListenableFuture<Void> ticket = admit(priority);
+		ListenableFuture<T> result = Futures.transform(ticket,
+				new AsyncFunction<Void, T>() {
+
+					@Override
+					public ListenableFuture<T> apply(Void admitted)
+							throws Exception {
+						return request.call();
+					}
+				});
+		result.addListener(new Runnable() {
+
+			@Override
+			public void run() {
+				// a withdrawn request never held a slot
+				if (!ticket.isCancelled()) {
+					release(priority);
+				}
+			}
+		}, sameThreadExecutor());
+		return result;
+	}
+
+	/**
+	 * Takes the waiting requests that may start now, highest class first.
+	 * Must be called holding the lock.
+	 */
+	private List<Ticket> grant() {
+		List<Ticket> admitted = new ArrayList<Ticket>();
+		for (int c = 0; c < PRIORITIES.length; c++) {
+			Deque<Ticket> queue = waiting.get(c);
+			while (!queue.isEmpty() && queue.peekFirst().isWithdrawn()) {
+				queue.removeFirst();
+			}
+			while (!queue.isEmpty() && total < maxRequests
+					&& running[c] < budgets[c]) {
+				Ticket ticket = queue.removeFirst();
+				if (!ticket.isWithdrawn()) {
+					running[c]++;
+					total++;
+					admitted.add(ticket);
+				}
+			}
+			if (!queue.isEmpty() && running[c] < budgets[c]) {
+				// waiting for a slot it could take; lower classes wait too
+				break;
+			}
+		}
+		return admitted;
+	}
+
+	/**
+	 * Completes the tickets of admitted requests, outside of the lock since
+	 * listeners of asynchronous requests run right away. A ticket withdrawn
+	 * after it was granted gives its slot back.
+	 */
+	private void start(List<Ticket> admitted) {
+		for (Ticket ticket : admitted) {
+			if (!ticket.admission.set(null)) {
+				release(ticket.priority);
+			}
+		}
+	}
+
+	/**
+	 * A waiting request.
+	 */
+	private static final class Ticket {
+
+		final RequestPriority priority;
+		final SettableFuture<Void> admission = SettableFuture.create();
+
+		Ticket(RequestPriority priority) {
+			this.priority = priority;
+		}
+
+		boolean isWithdrawn() {
+			return admission.isCancelled();
+		}
+	}
+
+	/**
+	 * Returns a blob store that sends every request of the given store
+	 * through this scheduler.
+	 */
+	BlobStore schedule(BlobStore blobStore) {
+		return schedule(BlobStore.class, blobStore, "getContext",
+				"blobBuilder");
+	}
+
+	/**
+	 * Returns a proxy of a provider API that sends every call through this
+	 * scheduler, such as the S3 client the provider copies blobs with.
+	 *
+	 * @param local
+	 *            the names of the methods that send no request
+	 */
+	<T> T schedule(Class<T> api, final T target, String... local) {
+		final Set<String> unscheduled = new HashSet<String>(
+				Arrays.asList(local));
+		return api.cast(Proxy.newProxyInstance(api.getClassLoader(),
+				new Class<?>[] { api }, new InvocationHandler() {
+
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) throws Throwable {
+						String name = method.getName();
+						if (unscheduled.contains(name)
+								|| method.getDeclaringClass() == Object.class) {
+							return invokeOn(target, method, args);
+						}
+
+						RequestPriority priority = RequestPriority.of(name);
+						try {
+							acquire(priority);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							throw new IllegalStateException(
+									"Interrupted while waiting to call "
+											+ name, e);
+						}
+						try {
+							return invokeOn(target, method, args);
+						} finally {
+							release(priority);
+						}
+					}
+				}));
+	}
+
+	private static Object invokeOn(Object target, Method method,
+			Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+}
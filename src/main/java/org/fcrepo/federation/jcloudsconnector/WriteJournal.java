@@ -0,0 +1,260 @@
+package org.fcrepo.federation.jcloudsconnector;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * A journal of the blobs recently written and removed through the connector,
+ * overlaid on provider listings and existence checks, which can lag behind
+ * the writes on eventually consistent providers.
+ * <p>
+ * A written blob is shown in the listings of its folders, and a removed one
+ * is hidden, until a listing of its folder agrees with the journal; the
+ * entry is dropped then. An entry of a blob another node of the cluster
+ * wrote or removed since is dropped as soon as that node announces it, see
+ * {@link #forget(String)}, so the provider is asked again. Entries that are
+ * never confirmed, e.g. because the blob was changed by another client, are
+ * dropped after <code>maxAgeMillis</code>.
+ * </p>
+ * <p>
+ * A removed folder is one entry, whatever it held: everything below it is
+ * hidden, unless written again later, until a listing of its parent no
+ * longer shows it.
+ * </p>
+ */
+class WriteJournal {
+
+	private static final String DELIMITER = "/";
+
+	private static final class Entry {
+
+		final boolean removed;
+		final long time;
+
+		Entry(boolean removed, long time) {
+			this.removed = removed;
+			this.time = time;
+		}
+	}
+
+	private final ConcurrentSkipListMap<String, Entry> entries = new ConcurrentSkipListMap<String, Entry>();
+	private final ConcurrentSkipListMap<String, Entry> trees = new ConcurrentSkipListMap<String, Entry>();
+	private final long maxAgeMillis;
+
+	WriteJournal(long maxAgeMillis) {
+		this.maxAgeMillis = maxAgeMillis;
+	}
+
+	void recordPut(String blobName) {
+		entries.put(blobName, new Entry(false, System.currentTimeMillis()));
+	}
+
+	void recordRemove(String blobName) {
+		entries.put(blobName, new Entry(true, System.currentTimeMillis()));
+	}
+
+	/**
+	 * Records the removal of a folder with everything below it.
+	 */
+	void recordRemoveTree(String directory) {
+		treesBelow(directory).clear();
+		trees.put(directory, new Entry(true, System.currentTimeMillis()));
+		// the writes below it are gone, the removals are covered
+		entries.remove(directory);
+		below(directory).clear();
+	}
+
+	/**
+	 * Drops the entry of a blob changed by someone else, whose state on the
+	 * provider now wins over the journal.
+	 */
+	void forget(String blobName) {
+		entries.remove(blobName);
+		for (String name = blobName; name != null; name = parentOf(name)) {
+			trees.remove(name);
+		}
+	}
+
+	/**
+	 * Drops the entries at and below a folder removed by someone else.
+	 */
+	void forgetTree(String directory) {
+		entries.remove(directory);
+		below(directory).clear();
+		trees.remove(directory);
+		treesBelow(directory).clear();
+	}
+
+	/**
+	 * @return true if the blob was written, false if it was removed, and
+	 *         null if the journal does not know it
+	 */
+	Boolean exists(String blobName) {
+		Entry entry = live(blobName, entries.get(blobName));
+		if (entry != null) {
+			return !entry.removed;
+		}
+		return isInRemovedTree(blobName) && !isWritten(blobName) ? false
+				: null;
+	}
+
+	/**
+	 * @return whether a blob was written below the directory
+	 */
+	boolean containsDirectory(String directory) {
+		for (Map.Entry<String, Entry> entry : below(directory).entrySet()) {
+			if (!entry.getValue().removed
+					&& live(entry.getKey(), entry.getValue()) != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Merges the journal into the listing of a directory, and drops the
+	 * entries of its direct children the listing confirms.
+	 *
+	 * @param directory
+	 *            the directory name; empty for the root
+	 * @param listed
+	 *            the full names of the listed children
+	 * @return the full names of the children
+	 */
+	Set<String> merge(String directory, Collection<String> listed) {
+		Set<String> children = new LinkedHashSet<String>(listed);
+		String prefix = prefixOf(directory);
+		Iterator<Map.Entry<String, Entry>> iterator = below(directory)
+				.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, Entry> entry = iterator.next();
+			String name = entry.getKey();
+			if (live(name, entry.getValue()) == null) {
+				continue;
+			}
+			int slash = name.indexOf(DELIMITER, prefix.length());
+			boolean direct = slash < 0;
+			String child = direct ? name : name.substring(0, slash);
+			if (entry.getValue().removed) {
+				if (!direct) {
+					continue;
+				}
+				if (children.remove(child)) {
+					continue;
+				}
+				// the provider no longer lists it
+				entries.remove(name, entry.getValue());
+			} else if (!children.add(child) && direct
+					&& !isInRemovedTree(name)) {
+				// the provider lists it already; below a removed folder the
+				// entry is kept, as it shows the blob despite the removal
+				entries.remove(name, entry.getValue());
+			}
+		}
+		if (!trees.isEmpty()) {
+			for (Map.Entry<String, Entry> tree : treesBelow(directory)
+					.entrySet()) {
+				if (tree.getKey().indexOf(DELIMITER, prefix.length()) < 0
+						&& !children.contains(tree.getKey())) {
+					// the provider no longer lists the folder
+					trees.remove(tree.getKey(), tree.getValue());
+				}
+			}
+			for (Iterator<String> it = children.iterator(); it.hasNext();) {
+				String child = it.next();
+				if (isInRemovedTree(child) && !isWritten(child)) {
+					it.remove();
+				}
+			}
+		}
+		return children;
+	}
+
+	/**
+	 * Drops the expired entries.
+	 */
+	void purge() {
+		for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+			live(entry.getKey(), entry.getValue());
+		}
+		for (Map.Entry<String, Entry> tree : trees.entrySet()) {
+			liveTree(tree.getKey(), tree.getValue());
+		}
+	}
+
+	boolean isEmpty() {
+		return entries.isEmpty() && trees.isEmpty();
+	}
+
+	/**
+	 * @return the entry, or null if it is missing or expired, dropping it
+	 *         then
+	 */
+	private Entry live(String name, Entry entry) {
+		if (entry != null
+				&& System.currentTimeMillis() - entry.time > maxAgeMillis) {
+			entries.remove(name, entry);
+			return null;
+		}
+		return entry;
+	}
+
+	/**
+	 * @return whether the name or one of its folders was removed as a folder
+	 */
+	private boolean isInRemovedTree(String name) {
+		if (trees.isEmpty()) {
+			return false;
+		}
+		for (; name != null; name = parentOf(name)) {
+			if (liveTree(name, trees.get(name)) != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return whether the name, or a name below it, was written
+	 */
+	private boolean isWritten(String name) {
+		Entry entry = live(name, entries.get(name));
+		return entry != null && !entry.removed || containsDirectory(name);
+	}
+
+	private Entry liveTree(String directory, Entry entry) {
+		if (entry != null
+				&& System.currentTimeMillis() - entry.time > maxAgeMillis) {
+			trees.remove(directory, entry);
+			return null;
+		}
+		return entry;
+	}
+
+	private static String parentOf(String name) {
+		int slash = name.lastIndexOf(DELIMITER);
+		return slash > 0 ? name.substring(0, slash) : null;
+	}
+
+	private ConcurrentNavigableMap<String, Entry> treesBelow(String directory) {
+		String prefix = prefixOf(directory);
+		return prefix.isEmpty() ? trees : trees.subMap(prefix, true, prefix
+				+ Character.MAX_VALUE, false);
+	}
+
+	private ConcurrentNavigableMap<String, Entry> below(String directory) {
+		String prefix = prefixOf(directory);
+		return prefix.isEmpty() ? entries : entries.subMap(prefix, true,
+				prefix + Character.MAX_VALUE, false);
+	}
+
+	private static String prefixOf(String directory) {
+		return directory.isEmpty() || directory.equals(DELIMITER) ? ""
+				: directory + DELIMITER;
+	}
+}
@@ -0,0 +1,170 @@
+package org.fcrepo.federation.jcloudsconnector;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.io.IOUtils;
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.blobstore.domain.Blob;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AsyncRequestsTest {
+
+	private static final String CONTAINER = "async-test";
+
+	private BlobStoreContext ctx;
+	private BlobStore blobStore;
+	private final List<String> calls = new CopyOnWriteArrayList<String>();
+	private AsyncRequests async;
+
+	@Before
+	public void before() {
+		ctx = ContextBuilder.newBuilder("transient")
+				.buildView(BlobStoreContext.class);
+		blobStore = (BlobStore) Proxy.newProxyInstance(
+				BlobStore.class.getClassLoader(),
+				new Class<?>[] { BlobStore.class }, new InvocationHandler() {
+
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) throws Throwable {
+						calls.add(method.getName());
+						try {
+							return method.invoke(ctx.getBlobStore(), args);
+						} catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+					}
+				});
+		blobStore.createContainerInLocation(null, CONTAINER);
+		async = new AsyncRequests(blobStore, CONTAINER, new RequestScheduler(
+				2, 1, 1), 2);
+	}
+
+	@After
+	public void after() {
+		async.shutdown();
+		ctx.close();
+	}
+
+	@Test
+	public void shouldAskForDirectoryOnlyWithoutBlob() throws Exception {
+		put("dir1/a.txt", "a");
+		blobStore.createDirectory(CONTAINER, "dir2");
+		calls.clear();
+
+		assertTrue(AsyncRequests.await(async.exists("dir1/a.txt")));
+		assertEquals(Arrays.asList("blobExists"), calls);
+
+		assertTrue(AsyncRequests.await(async.exists("dir2")));
+		assertFalse(AsyncRequests.await(async.exists("missing")));
+	}
+
+	@Test
+	public void shouldCopyWithMetadata() throws Exception {
+		blobStore.putBlob(CONTAINER, blobStore.blobBuilder("a.txt")
+				.payload(bytes("content")).contentType("text/plain")
+				.userMetadata(Collections.singletonMap("key", "value"))
+				.build());
+
+		AsyncRequests.await(async.copyAll(Arrays.asList("a.txt"),
+				Arrays.asList("dir1/b.txt")));
+
+		Blob copy = blobStore.getBlob(CONTAINER, "dir1/b.txt");
+		assertEquals("value", copy.getMetadata().getUserMetadata().get("key"));
+		assertEquals("text/plain", copy.getMetadata().getContentMetadata()
+				.getContentType());
+		InputStream in = copy.getPayload().getInput();
+		try {
+			assertArrayEquals(bytes("content"), IOUtils.toByteArray(in));
+		} finally {
+			in.close();
+		}
+	}
+
+	@Test
+	public void shouldCopyOnePageAsBulkWrites() throws Exception {
+		List<String> names = new ArrayList<String>();
+		List<String> targets = new ArrayList<String>();
+		for (int i = 0; i < 10; i++) {
+			put("file" + i, "content" + i);
+			names.add("file" + i);
+			targets.add("copy/file" + i);
+		}
+		calls.clear();
+
+		RequestPriority previous = RequestPriority.INTERACTIVE_READ.enter();
+		try {
+			AsyncRequests.await(async.copyAll(names, targets));
+		} finally {
+			RequestPriority.restore(previous);
+		}
+
+		// one copy at a time with a bulk budget of one: each GET is
+		// followed by its PUT
+		List<String> requests = new ArrayList<String>(calls);
+		requests.removeAll(Collections.singleton("blobBuilder"));
+		assertEquals(20, requests.size());
+		for (int i = 0; i < requests.size(); i += 2) {
+			assertEquals("getBlob", requests.get(i));
+			assertEquals("putBlob", requests.get(i + 1));
+		}
+		for (int i = 0; i < 10; i++) {
+			assertTrue(blobStore.blobExists(CONTAINER, "copy/file" + i));
+		}
+	}
+
+	@Test
+	public void shouldFailCopyOfMissingBlob() throws Exception {
+		try {
+			AsyncRequests.await(async.copy("missing", "target"));
+			fail("the source is missing");
+		} catch (IOException e) {
+			// expected
+		}
+		assertFalse(blobStore.blobExists(CONTAINER, "target"));
+	}
+
+	@Test
+	public void shouldRemoveAll() throws Exception {
+		for (int i = 0; i < 10; i++) {
+			put("file" + i, "content");
+		}
+
+		AsyncRequests.await(async.removeAll(Arrays.asList("file0", "file1",
+				"file2", "file3", "file4", "file5", "file6", "file7",
+				"file8", "file9")));
+
+		for (int i = 0; i < 10; i++) {
+			assertFalse(blobStore.blobExists(CONTAINER, "file" + i));
+		}
+	}
+
+	private void put(String name, String content) throws IOException {
+		blobStore.putBlob(CONTAINER, blobStore.blobBuilder(name)
+				.payload(bytes(content)).build());
+	}
+
+	private static byte[] bytes(String content) throws IOException {
+		return content.getBytes("UTF-8");
+	}
+}
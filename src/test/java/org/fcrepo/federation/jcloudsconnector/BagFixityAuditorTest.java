@@ -0,0 +1,120 @@
+package org.fcrepo.federation.jcloudsconnector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.ImmutableMap;
+
+public class BagFixityAuditorTest {
+
+	private static final String CONTAINER = "audit-test";
+
+	// md5 of "good" and of "bad"
+	private static final String GOOD_MD5 = "755f85c2723bb39381c7379a604160d8";
+	private static final String BAD_MD5 = "bae60998ffe4923b131e3d6e4c19993e";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private BlobStoreContext ctx;
+	private BlobStore blobStore;
+
+	@Before
+	public void before() {
+		ctx = ContextBuilder.newBuilder("transient")
+				.buildView(BlobStoreContext.class);
+		blobStore = ctx.getBlobStore();
+		blobStore.createContainerInLocation(null, CONTAINER);
+	}
+
+	@After
+	public void after() {
+		ctx.close();
+	}
+
+	@Test
+	public void shouldAuditDecodedContent() throws Exception {
+		put("bag/manifest-md5.txt", (GOOD_MD5 + "  data/plain.txt\n"
+				+ GOOD_MD5 + "  data/compressed.txt\n" + BAD_MD5
+				+ "  data/corrupted.txt\n" + GOOD_MD5 + "  data/missing.txt\n")
+				.getBytes("UTF-8"), null);
+		put("bag/data/plain.txt", "good".getBytes("UTF-8"), null);
+		put("bag/data/corrupted.txt", "corrupted".getBytes("UTF-8"), null);
+		ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+		OutputStream out = BlobCodec.GZIP.encode(gzipped);
+		out.write("good".getBytes("UTF-8"));
+		out.close();
+		put("bag/data/compressed.txt", gzipped.toByteArray(),
+				ImmutableMap.of(JCloudsUtil.CODEC_METADATA,
+						BlobCodec.GZIP.getMetadataValue()));
+
+		File workDir = folder.newFolder("audit");
+		new BagFixityAuditor(blobStore, CONTAINER, "bag", "md5", 2,
+				1024 * 1024, workDir).audit();
+
+		Map<String, String> statuses = new HashMap<String, String>();
+		for (String line : FileUtils.readLines(new File(workDir,
+				"fixity-md5.results"), "UTF-8")) {
+			String[] result = line.split("\t");
+			statuses.put(result[1], result[0]);
+		}
+		assertTrue(statuses.get("data/plain.txt").startsWith("VERIFIED"));
+		assertEquals("VERIFIED_DIGEST", statuses.get("data/compressed.txt"));
+		assertEquals("MISMATCH", statuses.get("data/corrupted.txt"));
+		assertEquals("MISSING", statuses.get("data/missing.txt"));
+		assertFalse(new File(workDir, "fixity-md5.checkpoint").exists());
+	}
+
+	@Test
+	public void shouldReportMissingFilesAfterResume() throws Exception {
+		put("bag/manifest-md5.txt", (GOOD_MD5 + "  data/a.txt\n" + GOOD_MD5
+				+ "  data/b.txt\n" + GOOD_MD5 + "  data/c.txt\n")
+				.getBytes("UTF-8"), null);
+		put("bag/data/b.txt", "good".getBytes("UTF-8"), null);
+		put("bag/data/c.txt", "good".getBytes("UTF-8"), null);
+		// interrupted after the page holding b.txt, which came after the
+		// missing a.txt
+		File workDir = folder.newFolder("audit");
+		FileUtils.writeStringToFile(new File(workDir, "fixity-md5.checkpoint"),
+				"bag/data/b.txt", "UTF-8");
+		FileUtils.writeStringToFile(new File(workDir, "fixity-md5.checked"),
+				"data/b.txt\n", "UTF-8");
+
+		Map<BagFixityAuditor.Status, Integer> totals = new BagFixityAuditor(
+				blobStore, CONTAINER, "bag", "md5", 2, 1024 * 1024, workDir)
+				.audit();
+
+		List<String> lines = FileUtils.readLines(new File(workDir,
+				"fixity-md5.results"), "UTF-8");
+		assertEquals(2, lines.size());
+		assertTrue(lines.contains("MISSING\tdata/a.txt\t"));
+		assertEquals(Integer.valueOf(1),
+				totals.get(BagFixityAuditor.Status.MISSING));
+		assertFalse(new File(workDir, "fixity-md5.checked").exists());
+	}
+
+	private void put(String name, byte[] content, Map<String, String> metadata) {
+		blobStore.putBlob(CONTAINER, blobStore.blobBuilder(name)
+				.payload(content).contentLength((long) content.length)
+				.userMetadata(metadata == null ? ImmutableMap.<String, String> of()
+						: metadata).build());
+	}
+}
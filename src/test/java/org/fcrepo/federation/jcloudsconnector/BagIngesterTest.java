@@ -0,0 +1,113 @@
+package org.fcrepo.federation.jcloudsconnector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.commons.io.FileUtils;
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BagIngesterTest {
+
+	private static final String CONTAINER = "ingest-test";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private BlobStoreContext ctx;
+	private BlobStore blobStore;
+
+	@Before
+	public void before() {
+		ctx = ContextBuilder.newBuilder("transient")
+				.buildView(BlobStoreContext.class);
+		blobStore = ctx.getBlobStore();
+		blobStore.createContainerInLocation(null, CONTAINER);
+	}
+
+	@After
+	public void after() {
+		ctx.close();
+	}
+
+	@Test
+	public void shouldUploadOnlyVerifiedPayload() throws Exception {
+		File bag = folder.newFolder("bag");
+		write(bag, "bagit.txt",
+				"BagIt-Version: 0.97\nTag-File-Character-Encoding: UTF-8\n");
+		write(bag, "data/good.txt", "good");
+		write(bag, "data/bad.txt", "corrupted");
+		write(bag, "data/extra.txt", "unlisted");
+		// md5 of "good", and of "bad" instead of "corrupted"
+		write(bag, "manifest-md5.txt",
+				"755f85c2723bb39381c7379a604160d8  data/good.txt\n"
+						+ "bae60998ffe4923b131e3d6e4c19993e  data/bad.txt\n");
+
+		BagIngester.IngestReport report = new BagIngester(blobStore,
+				CONTAINER, 2).ingest(bag, "dir1/bag");
+
+		Map<String, String> failures = report.getFailures();
+		assertEquals(2, failures.size());
+		assertTrue(failures.get("data/bad.txt").contains("mismatch"));
+		assertTrue(failures.get("data/extra.txt").contains("manifest"));
+		assertFalse(report.isSuccessful());
+
+		Map<String, String> metadata = blobStore
+				.blobMetadata(CONTAINER, "dir1/bag/data/good.txt")
+				.getUserMetadata();
+		assertEquals("755f85c2723bb39381c7379a604160d8",
+				metadata.get(JCloudsUtil.fixityMetadataKey("md5")));
+		assertNull(blobStore.blobMetadata(CONTAINER, "dir1/bag/data/bad.txt"));
+		assertNull(blobStore
+				.blobMetadata(CONTAINER, "dir1/bag/data/extra.txt"));
+		assertTrue(blobStore.blobExists(CONTAINER, "dir1/bag/bagit.txt"));
+		assertTrue(blobStore.blobExists(CONTAINER,
+				"dir1/bag/manifest-md5.txt"));
+	}
+
+	@Test
+	public void shouldTellAboutStoredBlobs() throws Exception {
+		File bag = folder.newFolder("bag");
+		write(bag, "bagit.txt",
+				"BagIt-Version: 0.97\nTag-File-Character-Encoding: UTF-8\n");
+		write(bag, "data/good.txt", "good");
+		write(bag, "data/bad.txt", "corrupted");
+		write(bag, "manifest-md5.txt",
+				"755f85c2723bb39381c7379a604160d8  data/good.txt\n"
+						+ "bae60998ffe4923b131e3d6e4c19993e  data/bad.txt\n");
+		final Set<String> uploaded = Collections
+				.synchronizedSet(new TreeSet<String>());
+
+		new BagIngester(blobStore, CONTAINER, 2,
+				new BagIngester.UploadListener() {
+
+					@Override
+					public void uploaded(String blobName, long size) {
+						uploaded.add(blobName);
+					}
+				}).ingest(bag, "bag");
+
+		assertEquals(new TreeSet<String>(Arrays.asList("bag/bagit.txt",
+				"bag/data/good.txt", "bag/manifest-md5.txt")), uploaded);
+	}
+
+	private static void write(File bag, String path, String content)
+			throws Exception {
+		FileUtils.writeStringToFile(new File(bag, path), content, "UTF-8");
+	}
+}
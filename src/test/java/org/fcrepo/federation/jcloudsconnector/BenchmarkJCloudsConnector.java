@@ -0,0 +1,73 @@
+package org.fcrepo.federation.jcloudsconnector;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.jcr.NamespaceRegistry;
+import javax.jcr.RepositoryException;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.modeshape.jcr.api.nodetype.NodeTypeManager;
+
+/**
+ * A {@link TransientJCloudsConnector} whose requests take the latency set
+ * with the <code>benchmark.latencyMillis</code> system property (default 20)
+ * and are counted, and which seeds the container with the files of a
+ * {@link WorkloadTrace} before the projection is created.
+ */
+public class BenchmarkJCloudsConnector extends TransientJCloudsConnector {
+
+	private static final long LATENCY_MILLIS = Long.getLong(
+			"benchmark.latencyMillis", 20);
+
+	private static volatile WorkloadTrace seed;
+	private static volatile LatencyBlobStore latency;
+
+	/**
+	 * Sets the trace whose seed files the next started connector writes.
+	 */
+	static void seedWith(WorkloadTrace trace) {
+		seed = trace;
+	}
+
+	/**
+	 * @return the instrumentation of the last started connector
+	 */
+	static LatencyBlobStore latency() {
+		return latency;
+	}
+
+	@Override
+	protected BlobStore blobStoreOf(BlobStoreContext ctx) {
+		latency = LatencyBlobStore.of(ctx.getBlobStore(), LATENCY_MILLIS);
+		return latency.blobStore();
+	}
+
+	@Override
+	public void initialize(NamespaceRegistry registry,
+			NodeTypeManager nodeTypeManager) throws RepositoryException,
+			IOException {
+		super.initialize(registry, nodeTypeManager);
+		if (seed == null) {
+			return;
+		}
+		// write around the instrumentation so seeding is neither slowed down
+		// nor counted
+		BlobStore blobStore = latency.delegate();
+		Set<String> directories = new HashSet<String>();
+		for (WorkloadTrace.Step step : seed.seedSteps()) {
+			String blobName = PROJECTED_DIRECTORY + step.path;
+			for (int slash = blobName.indexOf('/'); slash > 0; slash = blobName
+					.indexOf('/', slash + 1)) {
+				String directory = blobName.substring(0, slash);
+				if (directories.add(directory)) {
+					blobStore.createDirectory(containerName(), directory);
+				}
+			}
+			blobStore.putBlob(containerName(), blobStore
+					.blobBuilder(blobName).payload(step.content()).build());
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package org.fcrepo.federation.jcloudsconnector;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+public class BlobCodecTest {
+
+	@Test
+	public void shouldRoundTripOriginalBytes() throws Exception {
+		StringBuilder xml = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			xml.append("<dc:title>Title ").append(i).append("</dc:title>\n");
+		}
+		byte[] original = xml.toString().getBytes("UTF-8");
+
+		for (BlobCodec codec : BlobCodec.values()) {
+			ByteArrayOutputStream stored = new ByteArrayOutputStream();
+			OutputStream out = codec.encode(stored);
+			out.write(original);
+			out.close();
+
+			byte[] read = IOUtils.toByteArray(codec.decode(new ByteArrayInputStream(
+					stored.toByteArray())));
+			assertArrayEquals(codec.name(), original, read);
+		}
+	}
+
+	@Test
+	public void shouldReadUnrecordedCodecAsIdentity() {
+		assertEquals(BlobCodec.IDENTITY, BlobCodec.fromMetadata(null));
+		assertEquals(BlobCodec.GZIP, BlobCodec.fromMetadata("gzip"));
+	}
+
+	@Test
+	public void shouldCompressOnlyConfiguredTypesAboveMinSize() {
+		CompressionPolicy policy = new CompressionPolicy(BlobCodec.GZIP, 1024,
+				"text/,application/xml");
+
+		assertEquals(BlobCodec.GZIP, policy.codecFor("text/plain", 2048));
+		assertEquals(BlobCodec.GZIP, policy.codecFor("application/xml", 2048));
+		assertEquals(BlobCodec.IDENTITY, policy.codecFor("image/png", 2048));
+		assertEquals(BlobCodec.IDENTITY, policy.codecFor("text/plain", 100));
+		assertEquals(BlobCodec.IDENTITY, policy.codecFor(null, 2048));
+		assertEquals(BlobCodec.IDENTITY,
+				CompressionPolicy.NONE.codecFor("text/plain", 2048));
+	}
+}
@@ -0,0 +1,97 @@
+package org.fcrepo.federation.jcloudsconnector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BlobCopierTest {
+
+	private static final String CONTAINER = "copier-test";
+
+	private BlobStoreContext ctx;
+	private BlobStore blobStore;
+	private ExecutorService workers;
+
+	@Before
+	public void before() {
+		ctx = ContextBuilder.newBuilder("transient")
+				.buildView(BlobStoreContext.class);
+		blobStore = ctx.getBlobStore();
+		blobStore.createContainerInLocation(null, CONTAINER);
+		workers = Executors.newFixedThreadPool(4);
+	}
+
+	@After
+	public void after() {
+		workers.shutdownNow();
+		ctx.close();
+	}
+
+	@Test
+	public void shouldRemoveTreeInPages() throws Exception {
+		// more than one listing page
+		for (int i = 0; i < 1500; i++) {
+			put("big/" + (i % 3) + "/file" + i);
+		}
+		put("bigger/keep");
+		BlobCopier copier = new BlobCopier(ctx, blobStore, "transient",
+				CONTAINER, workers, null, null);
+		final List<String> reported = Collections
+				.synchronizedList(new ArrayList<String>());
+
+		BlobCopier.RemovalReport report = copier.removeTree("big",
+				new BlobCopier.RemovalListener() {
+
+					@Override
+					public void removed(List<String> names) {
+						reported.addAll(names);
+					}
+				});
+
+		assertTrue(report.isComplete());
+		assertEquals(1500, report.removed);
+		assertTrue(reported.contains("big/2/file1499"));
+		assertTrue(reported.contains("big"));
+		assertTrue(copier.list("big").isEmpty());
+		assertFalse(blobStore.blobExists(CONTAINER, "big/0/file0"));
+		assertTrue(blobStore.blobExists(CONTAINER, "bigger/keep"));
+	}
+
+	@Test
+	public void shouldMoveTreeWithFolders() throws Exception {
+		put("src/a.txt");
+		put("src/sub/b.txt");
+		blobStore.createDirectory(CONTAINER, "src/empty");
+		BlobCopier copier = new BlobCopier(ctx, blobStore, "transient",
+				CONTAINER, workers, null, null);
+
+		BlobCopier.MovedTree tree = copier.moveTree("src", "dst");
+
+		assertEquals(2, tree.blobs.size());
+		assertTrue(tree.folders.contains("src/empty"));
+		assertTrue(blobStore.blobExists(CONTAINER, "dst/a.txt"));
+		assertTrue(blobStore.blobExists(CONTAINER, "dst/sub/b.txt"));
+		assertTrue(blobStore.directoryExists(CONTAINER, "dst/empty"));
+		assertFalse(blobStore.blobExists(CONTAINER, "src/a.txt"));
+		assertFalse(blobStore.directoryExists(CONTAINER, "src/empty"));
+		assertTrue(copier.list("src").isEmpty());
+	}
+
+	private void put(String name) {
+		blobStore.putBlob(CONTAINER, blobStore.blobBuilder(name)
+				.payload(name).build());
+	}
+}
@@ -0,0 +1,97 @@
+package org.fcrepo.federation.jcloudsconnector;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BlockCacheTest {
+
+	private static final String CONTAINER = "block-cache-test";
+	private static final String BLOB = "dir/large.bin";
+
+	private BlobStoreContext ctx;
+	private BlobStore blobStore;
+	private byte[] content;
+	private String etag;
+
+	@Before
+	public void before() {
+		ctx = ContextBuilder.newBuilder("transient")
+				.buildView(BlobStoreContext.class);
+		blobStore = ctx.getBlobStore();
+		blobStore.createContainerInLocation(null, CONTAINER);
+		content = new byte[3 * BlockCache.BLOCK_SIZE + 123];
+		new Random(42).nextBytes(content);
+		blobStore.putBlob(CONTAINER, blobStore.blobBuilder(BLOB)
+				.payload(content).build());
+		etag = blobStore.blobMetadata(CONTAINER, BLOB).getETag();
+	}
+
+	@After
+	public void after() {
+		ctx.close();
+	}
+
+	@Test
+	public void shouldReadSlicesAcrossBlocks() throws Exception {
+		BlockCache cache = new BlockCache(1024 * 1024);
+		int offset = BlockCache.BLOCK_SIZE - 10;
+
+		byte[] slice = cache.read(blobStore, CONTAINER, BLOB, etag,
+				content.length, offset, BlockCache.BLOCK_SIZE + 20);
+		assertArrayEquals(Arrays.copyOfRange(content, offset, offset
+				+ BlockCache.BLOCK_SIZE + 20), slice);
+
+		// served partly from cached blocks
+		slice = cache.read(blobStore, CONTAINER, BLOB, etag, content.length,
+				5, 2 * BlockCache.BLOCK_SIZE);
+		assertArrayEquals(Arrays.copyOfRange(content, 5,
+				5 + 2 * BlockCache.BLOCK_SIZE), slice);
+	}
+
+	@Test
+	public void shouldStopAtEndOfBlob() throws Exception {
+		BlockCache cache = new BlockCache(0);
+		int offset = content.length - 50;
+
+		byte[] slice = cache.read(blobStore, CONTAINER, BLOB, etag,
+				content.length, offset, 1000);
+		assertArrayEquals(Arrays.copyOfRange(content, offset, content.length),
+				slice);
+		assertEquals(0, cache.read(blobStore, CONTAINER, BLOB, etag,
+				content.length, content.length, 10).length);
+	}
+
+	@Test
+	public void shouldNotMixVersionsOfOverwrittenBlob() throws Exception {
+		BlockCache cache = new BlockCache(1024 * 1024);
+		cache.read(blobStore, CONTAINER, BLOB, etag, content.length, 0, 10);
+		blobStore.putBlob(CONTAINER, blobStore.blobBuilder(BLOB)
+				.payload(new byte[content.length]).build());
+
+		try {
+			cache.read(blobStore, CONTAINER, BLOB, etag, content.length,
+					BlockCache.BLOCK_SIZE, 10);
+			fail("the blob changed");
+		} catch (BlockCache.ChangedException e) {
+			// expected
+		}
+		try {
+			// the cached block of the old version is dropped as well
+			cache.read(blobStore, CONTAINER, BLOB, etag, content.length, 0, 10);
+			fail("the blob changed");
+		} catch (BlockCache.ChangedException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package org.fcrepo.federation.jcloudsconnector;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+
+public class InlinePoolTest {
+
+	private static final String CONTAINER = "inline-test";
+
+	private BlobStoreContext ctx;
+	private BlobStore blobStore;
+
+	@Before
+	public void before() {
+		ctx = ContextBuilder.newBuilder("transient")
+				.buildView(BlobStoreContext.class);
+		blobStore = ctx.getBlobStore();
+		blobStore.createContainerInLocation(null, CONTAINER);
+	}
+
+	@After
+	public void after() {
+		ctx.close();
+	}
+
+	@Test
+	public void shouldInlineSmallBlobs() throws Exception {
+		byte[] content = "<metadata/>".getBytes("UTF-8");
+		blobStore.putBlob(CONTAINER, blobStore.blobBuilder("small.xml")
+				.payload(content).build());
+		InlinePool pool = new InlinePool(100, 1024, 60000);
+
+		InlinePool.Entry entry = pool.fetch(blobStore, CONTAINER, "small.xml");
+		assertTrue(entry.isInline());
+		assertArrayEquals(content, entry.bytes);
+		assertArrayEquals(content, pool.get("small.xml", entry.etag));
+		assertNull(pool.get("small.xml", "other-version"));
+		assertSame(entry, pool.fetch(blobStore, CONTAINER, "small.xml"));
+
+		pool.invalidate("small.xml");
+		assertNull(pool.get("small.xml", entry.etag));
+	}
+
+	@Test
+	public void shouldOnlyReturnMetadataOfLargerBlobs() throws Exception {
+		blobStore.putBlob(CONTAINER, blobStore.blobBuilder("large.bin")
+				.payload(new byte[101]).build());
+		InlinePool pool = new InlinePool(100, 1024, 60000);
+
+		InlinePool.Entry entry = pool.fetch(blobStore, CONTAINER, "large.bin");
+		assertNotNull(entry);
+		assertFalse(entry.isInline());
+		assertNull(pool.get("large.bin", entry.etag));
+		assertNull(pool.fetch(blobStore, CONTAINER, "missing.bin"));
+	}
+
+	@Test
+	public void shouldDecodeCompressedBlobs() throws Exception {
+		byte[] content = "some text that was stored compressed"
+				.getBytes("UTF-8");
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		OutputStream out = BlobCodec.GZIP.encode(encoded);
+		out.write(content);
+		out.close();
+		blobStore.putBlob(
+				CONTAINER,
+				blobStore
+						.blobBuilder("text.txt")
+						.payload(encoded.toByteArray())
+						.userMetadata(
+								ImmutableMap.of(JCloudsUtil.CODEC_METADATA,
+										BlobCodec.GZIP.getMetadataValue()))
+						.build());
+		InlinePool pool = new InlinePool(1000, 4096, 60000);
+
+		assertArrayEquals(content,
+				pool.fetch(blobStore, CONTAINER, "text.txt").bytes);
+	}
+
+	@Test
+	public void shouldNotInlineBlobsDecodingToMore() throws Exception {
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		OutputStream out = BlobCodec.GZIP.encode(encoded);
+		out.write(new byte[100000]);
+		out.close();
+		blobStore.putBlob(
+				CONTAINER,
+				blobStore
+						.blobBuilder("zeros.bin")
+						.payload(encoded.toByteArray())
+						.userMetadata(
+								ImmutableMap.of(JCloudsUtil.CODEC_METADATA,
+										BlobCodec.GZIP.getMetadataValue()))
+						.build());
+		InlinePool pool = new InlinePool(1000, 4096, 60000);
+
+		InlinePool.Entry entry = pool.fetch(blobStore, CONTAINER, "zeros.bin");
+		assertNotNull(entry);
+		assertFalse(entry.isInline());
+	}
+
+	@Test
+	public void shouldFetchAgainAfterMaxAge() throws Exception {
+		blobStore.putBlob(CONTAINER, blobStore.blobBuilder("aging.txt")
+				.payload("first".getBytes("UTF-8")).build());
+		InlinePool pool = new InlinePool(100, 1024, 50);
+		pool.fetch(blobStore, CONTAINER, "aging.txt");
+
+		// overwritten by another client
+		byte[] second = "second".getBytes("UTF-8");
+		blobStore.putBlob(CONTAINER, blobStore.blobBuilder("aging.txt")
+				.payload(second).build());
+		Thread.sleep(100);
+
+		assertArrayEquals(second,
+				pool.fetch(blobStore, CONTAINER, "aging.txt").bytes);
+	}
+}
@@ -0,0 +1,153 @@
+package org.fcrepo.federation.jcloudsconnector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+import javax.jcr.RepositoryException;
+
+import org.apache.commons.io.IOUtils;
+import org.jclouds.blobstore.BlobStore;
+import org.junit.Before;
+import org.junit.Test;
+import org.modeshape.jcr.SingleUseAbstractTest;
+import org.modeshape.jcr.api.JcrTools;
+import org.modeshape.jcr.value.BinaryKey;
+
+public class JCloudsBinaryValueTest extends SingleUseAbstractTest {
+
+	private static final String CONTENT = "0123456789abcdefghij";
+
+	private JcrTools tools;
+
+	@Before
+	public void before() throws Exception {
+		tools = new JcrTools();
+		startRepositoryWithConfiguration(getClass().getClassLoader()
+				.getResourceAsStream("repo-config-transient.json"));
+		registerNodeTypes("bagitCloudFile.cnd");
+	}
+
+	@Test
+	public void shouldReadAfterSerialization() throws Exception {
+		JCloudsBinaryValue value = upload("/bags/serialized.txt");
+
+		JCloudsBinaryValue copy = (JCloudsBinaryValue) roundTrip(value);
+
+		assertEquals(value.getKey(), copy.getKey());
+		assertEquals(CONTENT, toString(copy.getStream()));
+		assertEquals(CONTENT.length(), copy.getSize());
+		assertEquals("abc", new String(copy.read(10, 3), "UTF-8"));
+		assertEquals(value.getMimeType(), copy.getMimeType());
+	}
+
+	@Test
+	public void shouldDeserializeBeforeSourceIsAvailable() throws Exception {
+		JCloudsBinaryValue.SerializedForm form = new JCloudsBinaryValue.SerializedForm(
+				"another repository", "jcloudsfiles", "stress",
+				"dir1/elsewhere.txt", 3, null, new BinaryKey("abc"));
+
+		JCloudsBinaryValue value = (JCloudsBinaryValue) roundTrip(form);
+
+		assertTrue(value.isBlob("stress", "dir1/elsewhere.txt"));
+		try {
+			value.getStream();
+			fail("the source is not available");
+		} catch (RepositoryException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void shouldReadSlices() throws Exception {
+		JCloudsBinaryValue value = upload("/bags/slices.txt");
+
+		assertEquals("01234", new String(value.read(0, 5), "UTF-8"));
+		assertEquals("fghij", new String(value.read(15, 100), "UTF-8"));
+		assertEquals(0, value.read(CONTENT.length(), 5).length);
+	}
+
+	@Test
+	public void shouldReadThroughChannel() throws Exception {
+		JCloudsBinaryValue value = upload("/bags/channel.txt");
+		SeekableByteChannel channel = value.newChannel();
+
+		assertEquals(CONTENT.length(), channel.size());
+		channel.position(10);
+		ByteBuffer buffer = ByteBuffer.allocate(4);
+		assertEquals(4, channel.read(buffer));
+		assertEquals("abcd", new String(buffer.array(), "UTF-8"));
+		buffer = ByteBuffer.allocate(100);
+		while (channel.read(buffer) >= 0) {
+			// until the end
+		}
+		assertEquals("efghij", new String(buffer.array(), 0,
+				buffer.position(), "UTF-8"));
+		assertEquals(CONTENT.length(), channel.position());
+
+		channel.close();
+		try {
+			channel.read(ByteBuffer.allocate(1));
+			fail("the channel is closed");
+		} catch (ClosedChannelException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void shouldReadOverwrittenBlob() throws Exception {
+		JCloudsBinaryValue value = upload("/bags/overwritten.txt");
+		assertEquals("012", new String(value.read(0, 3), "UTF-8"));
+
+		// overwritten by another client
+		BlobStore blobStore = JCloudsConnectorRegistry.get(null,
+				"jcloudsfiles").blobStore();
+		String changed = "changed content, longer than before";
+		blobStore.putBlob("stress", blobStore.blobBuilder(value.blobName())
+				.payload(changed.getBytes("UTF-8")).build());
+
+		assertEquals("changed", new String(value.read(0, 7), "UTF-8"));
+		assertEquals(changed.length(), value.getSize());
+	}
+
+	private JCloudsBinaryValue upload(String path) throws Exception {
+		tools.uploadFile(session, path,
+				new ByteArrayInputStream(CONTENT.getBytes("UTF-8")),
+				"nt:folder", "bagit:cloudsFile");
+		session.save();
+		session.refresh(false);
+		return (JCloudsBinaryValue) session.getNode(path + "/jcr:content")
+				.getProperty("jcr:data").getBinary();
+	}
+
+	private static Object roundTrip(Object value) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(value);
+		out.close();
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(
+				bytes.toByteArray()));
+		try {
+			return in.readObject();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static String toString(InputStream in) throws Exception {
+		try {
+			return IOUtils.toString(in, "UTF-8");
+		} finally {
+			in.close();
+		}
+	}
+}
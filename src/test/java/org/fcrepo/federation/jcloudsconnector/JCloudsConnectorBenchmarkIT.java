@@ -0,0 +1,310 @@
+package org.fcrepo.federation.jcloudsconnector;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.modeshape.jcr.SingleUseAbstractTest;
+import org.modeshape.jcr.api.JcrTools;
+import org.modeshape.jcr.api.Session;
+
+/**
+ * Replays workloads through JCR sessions against a repository configured
+ * like <code>repo-config-federation-projections.json</code>, on the
+ * <code>transient</code> provider with injected request latency (see
+ * {@link BenchmarkJCloudsConnector}), and reports throughput, latency
+ * percentiles and blob store requests per JCR operation.
+ * <p>
+ * The steps of a trace are spread over <code>benchmark.clients</code>
+ * sessions (default 4); all steps on one path run on the same session, in
+ * trace order. A trace file, e.g. one recorded from real use, is replayed
+ * with <code>-Dbenchmark.trace=&lt;file&gt;</code>, otherwise the
+ * hand-written synthetic sample trace of the test resources is.
+ * </p>
+ * <p>
+ * The requests of a step are counted from all threads, including the
+ * workers of the connector, but only for steps no other step overlapped;
+ * with <code>-Dbenchmark.clients=1</code> every step is counted.
+ * </p>
+ */
+public class JCloudsConnectorBenchmarkIT extends SingleUseAbstractTest {
+
+	private static final int CLIENTS = Integer.getInteger("benchmark.clients",
+			4);
+
+	private static final String FOLDER = "/bags";
+
+	/**
+	 * The steps running now and the steps started so far, which tell whether
+	 * a step ran alone.
+	 */
+	private final AtomicInteger running = new AtomicInteger();
+	private final AtomicLong started = new AtomicLong();
+
+	@Test
+	public void deepBrowsing() throws Exception {
+		replay(WorkloadTrace.deepBrowsing(4, 3, 50, 1));
+	}
+
+	@Test
+	public void bulkIngest() throws Exception {
+		replay(WorkloadTrace.bulkIngest(200, 64 * 1024));
+	}
+
+	@Test
+	public void mixedReadWrite() throws Exception {
+		replay(WorkloadTrace.mixedReadWrite(100, 500, 4096, 1));
+	}
+
+	@Test
+	public void hotFileReads() throws Exception {
+		replay(WorkloadTrace.hotFileReads(100, 5, 500, 16 * 1024, 1));
+	}
+
+	@Test
+	public void traceFile() throws Exception {
+		String file = System.getProperty("benchmark.trace");
+		InputStream in = file != null ? new FileInputStream(file) : getClass()
+				.getClassLoader().getResourceAsStream(
+						"traces/synthetic-sample.trace");
+		try {
+			replay(WorkloadTrace.load(file != null ? file : "synthetic-sample",
+					in));
+		} finally {
+			in.close();
+		}
+	}
+
+	private void replay(WorkloadTrace trace) throws Exception {
+		BenchmarkJCloudsConnector.seedWith(trace);
+		try {
+			startRepositoryWithConfiguration(getClass().getClassLoader()
+					.getResourceAsStream("repo-config-benchmark.json"));
+			registerNodeTypes("bagitCloudFile.cnd");
+		} finally {
+			BenchmarkJCloudsConnector.seedWith(null);
+		}
+		LatencyBlobStore latency = BenchmarkJCloudsConnector.latency();
+		Map<String, Long> callsBefore = latency.calls();
+
+		List<List<WorkloadTrace.Step>> partitions = partition(trace.steps());
+		final Map<WorkloadTrace.Kind, Samples> samples = Collections
+				.synchronizedMap(new EnumMap<WorkloadTrace.Kind, Samples>(
+						WorkloadTrace.Kind.class));
+		for (WorkloadTrace.Kind kind : WorkloadTrace.Kind.values()) {
+			samples.put(kind, new Samples());
+		}
+		final Map<String, WorkloadTrace.Step> written = new HashMap<String, WorkloadTrace.Step>();
+		for (WorkloadTrace.Step seed : trace.seedSteps()) {
+			written.put(seed.path, seed);
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(CLIENTS);
+		List<Future<Void>> clients = new ArrayList<Future<Void>>();
+		long start = System.nanoTime();
+		for (final List<WorkloadTrace.Step> steps : partitions) {
+			clients.add(executor.submit(new Callable<Void>() {
+
+				@Override
+				public Void call() throws Exception {
+					run(steps, new HashMap<String, WorkloadTrace.Step>(
+							written), samples);
+					return null;
+				}
+			}));
+		}
+		for (Future<Void> client : clients) {
+			client.get();
+		}
+		long elapsed = System.nanoTime() - start;
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.MINUTES);
+
+		report(trace, elapsed, samples, callsBefore, latency.calls());
+	}
+
+	/**
+	 * Spreads the steps over the clients: the steps on one file all go to the
+	 * same client, listings round-robin.
+	 */
+	private static List<List<WorkloadTrace.Step>> partition(
+			List<WorkloadTrace.Step> steps) {
+		List<List<WorkloadTrace.Step>> partitions = new ArrayList<List<WorkloadTrace.Step>>();
+		for (int i = 0; i < CLIENTS; i++) {
+			partitions.add(new ArrayList<WorkloadTrace.Step>());
+		}
+		int listings = 0;
+		for (WorkloadTrace.Step step : steps) {
+			int client = step.kind == WorkloadTrace.Kind.LIST ? listings++
+					% CLIENTS : (step.path.hashCode() & Integer.MAX_VALUE)
+					% CLIENTS;
+			partitions.get(client).add(step);
+		}
+		return partitions;
+	}
+
+	/**
+	 * Runs the steps of one client, checking that reads return the content
+	 * last written to the path.
+	 */
+	private void run(List<WorkloadTrace.Step> steps,
+			Map<String, WorkloadTrace.Step> contents,
+			Map<WorkloadTrace.Kind, Samples> samples) throws Exception {
+		LatencyBlobStore latency = BenchmarkJCloudsConnector.latency();
+		JcrTools tools = new JcrTools();
+		Session session = repository.login();
+		try {
+			for (WorkloadTrace.Step step : steps) {
+				String path = step.path.equals("/") ? FOLDER : FOLDER
+						+ step.path;
+				boolean alone = running.incrementAndGet() == 1;
+				long startedWith = started.incrementAndGet();
+				long calls = latency.totalCalls();
+				long start = System.nanoTime();
+				switch (step.kind) {
+				case READ:
+					byte[] content = read(session, path);
+					WorkloadTrace.Step last = contents.get(step.path);
+					if (last != null) {
+						assertArrayEquals(step.toString(), last.content(),
+								content);
+					}
+					break;
+				case LIST:
+					for (NodeIterator children = session.getNode(path)
+							.getNodes(); children.hasNext();) {
+						children.nextNode().getName();
+					}
+					break;
+				case CREATE:
+					tools.uploadFile(session, path, new ByteArrayInputStream(
+							step.content()), "nt:folder", "bagit:cloudsFile");
+					session.save();
+					contents.put(step.path, step);
+					break;
+				case UPDATE:
+					Node resource = session.getNode(path + "/jcr:content");
+					resource.setProperty("jcr:data", session.getValueFactory()
+							.createBinary(
+									new ByteArrayInputStream(step.content())));
+					session.save();
+					contents.put(step.path, step);
+					break;
+				case REMOVE:
+					session.getNode(path).remove();
+					session.save();
+					contents.remove(step.path);
+					break;
+				default:
+					throw new IllegalArgumentException(step.toString());
+				}
+				long elapsed = System.nanoTime() - start;
+				long stepCalls = latency.totalCalls() - calls;
+				alone &= started.get() == startedWith;
+				running.decrementAndGet();
+				samples.get(step.kind).add(elapsed, alone ? stepCalls : -1);
+			}
+		} finally {
+			session.logout();
+		}
+	}
+
+	private static byte[] read(Session session, String path) throws Exception {
+		InputStream in = session.getNode(path + "/jcr:content")
+				.getProperty("jcr:data").getBinary().getStream();
+		try {
+			return IOUtils.toByteArray(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void report(WorkloadTrace trace, long elapsedNanos,
+			Map<WorkloadTrace.Kind, Samples> samples,
+			Map<String, Long> callsBefore, Map<String, Long> callsAfter) {
+		int total = 0;
+		for (Samples kind : samples.values()) {
+			total += kind.count();
+		}
+		System.out.println(String.format(
+				"%s: %d operations on %d clients in %.1f s, %.1f ops/s",
+				trace.name(), total, CLIENTS, elapsedNanos / 1e9, total * 1e9
+						/ elapsedNanos));
+		for (Map.Entry<WorkloadTrace.Kind, Samples> kind : samples.entrySet()) {
+			if (kind.getValue().count() > 0) {
+				System.out.println("  " + kind.getKey() + ": "
+						+ kind.getValue().summary(elapsedNanos));
+			}
+		}
+		StringBuilder calls = new StringBuilder("  requests:");
+		for (Map.Entry<String, Long> method : callsAfter.entrySet()) {
+			Long before = callsBefore.get(method.getKey());
+			long count = method.getValue() - (before == null ? 0 : before);
+			if (count > 0) {
+				calls.append(' ').append(method.getKey()).append('=')
+						.append(count);
+			}
+		}
+		System.out.println(calls);
+	}
+
+	/**
+	 * Latencies in nanoseconds and request counts of one kind of step; the
+	 * count is -1 for steps that overlapped others.
+	 */
+	private static final class Samples {
+
+		private final List<long[]> samples = new ArrayList<long[]>();
+
+		synchronized void add(long latency, long calls) {
+			samples.add(new long[] { latency, calls });
+		}
+
+		synchronized int count() {
+			return samples.size();
+		}
+
+		synchronized String summary(long elapsedNanos) {
+			long[] latencies = new long[samples.size()];
+			long calls = 0;
+			int counted = 0;
+			for (int i = 0; i < latencies.length; i++) {
+				latencies[i] = samples.get(i)[0];
+				if (samples.get(i)[1] >= 0) {
+					calls += samples.get(i)[1];
+					counted++;
+				}
+			}
+			Arrays.sort(latencies);
+			return String.format("%d ops, %.1f ops/s, p50 %.2f ms, "
+					+ "p95 %.2f ms, p99 %.2f ms, %s requests/op (%d counted)",
+					latencies.length, latencies.length * 1e9 / elapsedNanos,
+					Percentiles.millis(latencies, 50),
+					Percentiles.millis(latencies, 95),
+					Percentiles.millis(latencies, 99), counted > 0 ? String
+							.format("%.2f", (double) calls / counted) : "n/a",
+					counted);
+		}
+	}
+}
@@ -0,0 +1,383 @@
+package org.fcrepo.federation.jcloudsconnector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.modeshape.jcr.SingleUseAbstractTest;
+import org.modeshape.jcr.api.JcrTools;
+import org.modeshape.jcr.api.Session;
+
+/**
+ * Runs concurrent reads, folder listings, creates, updates and removes
+ * through JCR sessions against the connector on the <code>transient</code>
+ * provider, checks that every thread sees its own writes and that the final
+ * tree holds exactly the files the threads left, and reports operations per
+ * second and latency percentiles per operation. A second phase has all
+ * threads overwrite one shared file at once, and checks that it always holds
+ * exactly one of the written contents.
+ * <p>
+ * The load is set with the system properties <code>stress.threads</code>
+ * (default 8) and <code>stress.operations</code> per thread (default 200).
+ * </p>
+ */
+public class JCloudsConnectorStressIT extends SingleUseAbstractTest {
+
+	private static final int THREADS = Integer.getInteger("stress.threads",
+			8);
+	private static final int OPERATIONS = Integer.getInteger(
+			"stress.operations", 200);
+
+	private static final String FOLDER = "/bags";
+	private static final String SHARED_FILE = FOLDER + "/shared.txt";
+
+	private enum Operation {
+		READ, LIST, CREATE, UPDATE, REMOVE
+	}
+
+	private final Map<Operation, Latencies> latencies = new HashMap<Operation, Latencies>();
+	private final AtomicInteger conflicts = new AtomicInteger();
+
+	private JcrTools tools;
+
+	@Before
+	public void before() throws Exception {
+		tools = new JcrTools();
+		startRepositoryWithConfiguration(getClass().getClassLoader()
+				.getResourceAsStream("repo-config-transient.json"));
+		registerNodeTypes("bagitCloudFile.cnd");
+		for (Operation operation : Operation.values()) {
+			latencies.put(operation, new Latencies());
+		}
+	}
+
+	@Test
+	public void shouldStayConsistentUnderConcurrentLoad() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		List<Future<Map<String, String>>> results = new ArrayList<Future<Map<String, String>>>();
+		long start = System.nanoTime();
+		for (int i = 0; i < THREADS; i++) {
+			final int thread = i;
+			results.add(executor.submit(new Callable<Map<String, String>>() {
+
+				@Override
+				public Map<String, String> call() throws Exception {
+					return run(thread);
+				}
+			}));
+		}
+		Map<String, String> expected = new HashMap<String, String>();
+		for (Future<Map<String, String>> result : results) {
+			// rethrows the first failure of a thread
+			expected.putAll(result.get());
+		}
+		long elapsed = System.nanoTime() - start;
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.MINUTES);
+
+		report(elapsed);
+		verify(expected);
+		runSharedFilePhase();
+	}
+
+	/**
+	 * Has all threads overwrite the same file concurrently. Whatever a
+	 * thread reads back, and the file at the end, must be one whole content
+	 * some thread wrote: never a mix of two, a lost file or a second copy.
+	 */
+	private void runSharedFilePhase() throws Exception {
+		final Set<String> written = Collections
+				.synchronizedSet(new HashSet<String>());
+		written.add(content(-1, 0));
+		Session session = repository.login();
+		try {
+			write(session, SHARED_FILE, content(-1, 0), true);
+		} finally {
+			session.logout();
+		}
+
+		final int updates = Math.max(10, OPERATIONS / 10);
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		List<Future<Void>> results = new ArrayList<Future<Void>>();
+		for (int i = 0; i < THREADS; i++) {
+			final int thread = i;
+			results.add(executor.submit(new Callable<Void>() {
+
+				@Override
+				public Void call() throws Exception {
+					Session session = repository.login();
+					try {
+						for (int update = 0; update < updates; update++) {
+							String content = content(thread, update)
+									+ " (shared)";
+							written.add(content);
+							write(session, SHARED_FILE, content, false);
+							String read = read(session, SHARED_FILE);
+							assertTrue(read, written.contains(read));
+						}
+					} finally {
+						session.logout();
+					}
+					return null;
+				}
+			}));
+		}
+		for (Future<Void> result : results) {
+			result.get();
+		}
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.MINUTES);
+
+		session = repository.login();
+		try {
+			String last = read(session, SHARED_FILE);
+			assertTrue(last, written.contains(last));
+			int copies = 0;
+			for (NodeIterator children = session.getNode(FOLDER).getNodes(); children
+					.hasNext();) {
+				if (children.nextNode().getPath().equals(SHARED_FILE)) {
+					copies++;
+				}
+			}
+			assertEquals(1, copies);
+		} finally {
+			session.logout();
+		}
+	}
+
+	/**
+	 * Runs the operations of one thread on files of its own and returns the
+	 * content of the files it left.
+	 */
+	private Map<String, String> run(int thread) throws Exception {
+		Random random = new Random(thread);
+		Map<String, String> files = new HashMap<String, String>();
+		List<String> names = new ArrayList<String>();
+		Session session = repository.login();
+		try {
+			for (int i = 0; i < OPERATIONS; i++) {
+				Operation operation = next(random, names.isEmpty());
+				String path = names.isEmpty() ? null : names.get(random
+						.nextInt(names.size()));
+				long start = System.nanoTime();
+				switch (operation) {
+				case READ:
+					assertEquals(files.get(path), read(session, path));
+					break;
+				case LIST:
+					assertTrue(list(session).containsAll(names));
+					break;
+				case CREATE:
+					path = FOLDER + "/t" + thread + "-" + i + ".txt";
+					String content = content(thread, i);
+					write(session, path, content, true);
+					files.put(path, content);
+					names.add(path);
+					break;
+				case UPDATE:
+					content = content(thread, i);
+					write(session, path, content, false);
+					files.put(path, content);
+					break;
+				case REMOVE:
+					remove(session, path);
+					files.remove(path);
+					names.remove(path);
+					break;
+				}
+				latencies.get(operation).add(System.nanoTime() - start);
+			}
+		} finally {
+			session.logout();
+		}
+		return files;
+	}
+
+	private static Operation next(Random random, boolean noFiles) {
+		if (noFiles) {
+			return Operation.CREATE;
+		}
+		int dice = random.nextInt(100);
+		if (dice < 35) {
+			return Operation.READ;
+		} else if (dice < 45) {
+			return Operation.LIST;
+		} else if (dice < 70) {
+			return Operation.CREATE;
+		} else if (dice < 90) {
+			return Operation.UPDATE;
+		}
+		return Operation.REMOVE;
+	}
+
+	private static String content(int thread, int operation) {
+		return "content of thread " + thread + ", operation " + operation;
+	}
+
+	private static String read(Session session, String path) throws Exception {
+		InputStream in = session.getNode(path + "/jcr:content")
+				.getProperty("jcr:data").getBinary().getStream();
+		try {
+			return IOUtils.toString(in, "UTF-8");
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Returns the paths of the test files in the folder, paging through the
+	 * connector's folder documents.
+	 */
+	private static Set<String> list(Session session) throws RepositoryException {
+		Set<String> paths = new HashSet<String>();
+		for (NodeIterator children = session.getNode(FOLDER).getNodes(); children
+				.hasNext();) {
+			Node child = children.nextNode();
+			if (child.getName().startsWith("t")) {
+				paths.add(child.getPath());
+			}
+		}
+		return paths;
+	}
+
+	private void write(Session session, String path, String content,
+			boolean create) throws Exception {
+		for (int attempt = 0;; attempt++) {
+			try {
+				if (create) {
+					tools.uploadFile(session, path, new ByteArrayInputStream(
+							content.getBytes("UTF-8")), "nt:folder",
+							"bagit:cloudsFile");
+				} else {
+					session.getNode(path + "/jcr:content").setProperty(
+							"jcr:data",
+							session.getValueFactory().createBinary(
+									new ByteArrayInputStream(content
+											.getBytes("UTF-8"))));
+				}
+				session.save();
+				return;
+			} catch (InvalidItemStateException e) {
+				retry(session, attempt, e);
+			}
+		}
+	}
+
+	private void remove(Session session, String path) throws Exception {
+		for (int attempt = 0;; attempt++) {
+			try {
+				session.getNode(path).remove();
+				session.save();
+				return;
+			} catch (InvalidItemStateException e) {
+				retry(session, attempt, e);
+			}
+		}
+	}
+
+	/**
+	 * Concurrent saves changing the children of the shared folder may
+	 * conflict; these are counted and retried on a refreshed session.
+	 */
+	private void retry(Session session, int attempt,
+			InvalidItemStateException e) throws RepositoryException {
+		if (attempt >= 5) {
+			throw e;
+		}
+		conflicts.incrementAndGet();
+		session.refresh(false);
+	}
+
+	/**
+	 * Checks from a new session that exactly the expected files exist, with
+	 * their last written content.
+	 */
+	private void verify(Map<String, String> expected) throws Exception {
+		Session session = repository.login();
+		try {
+			assertEquals(expected.keySet(), list(session));
+			for (Map.Entry<String, String> file : expected.entrySet()) {
+				assertEquals(file.getValue(), read(session, file.getKey()));
+			}
+		} finally {
+			session.logout();
+		}
+	}
+
+	private void report(long elapsedNanos) {
+		int total = 0;
+		for (Latencies operation : latencies.values()) {
+			total += operation.count();
+		}
+		System.out.println(String.format(
+				"%d threads, %d operations in %.1f s: %.1f ops/s, %d conflicts",
+				THREADS, total, elapsedNanos / 1e9, total * 1e9
+						/ elapsedNanos, conflicts.get()));
+		for (Operation operation : Operation.values()) {
+			System.out.println(operation + ": "
+					+ latencies.get(operation).summary());
+		}
+	}
+
+	/**
+	 * Latencies of one kind of operation, in nanoseconds.
+	 */
+	private static final class Latencies {
+
+		private final List<Long> nanos = Collections
+				.synchronizedList(new ArrayList<Long>());
+
+		void add(long latency) {
+			nanos.add(latency);
+		}
+
+		int count() {
+			return nanos.size();
+		}
+
+		String summary() {
+			long[] sorted;
+			synchronized (nanos) {
+				sorted = new long[nanos.size()];
+				for (int i = 0; i < sorted.length; i++) {
+					sorted[i] = nanos.get(i);
+				}
+			}
+			if (sorted.length == 0) {
+				return "none";
+			}
+			Arrays.sort(sorted);
+			return String.format(
+					"%d ops, p50 %.2f ms, p95 %.2f ms, p99 %.2f ms, max %.2f ms",
+					sorted.length, Percentiles.millis(sorted, 50),
+					Percentiles.millis(sorted, 95),
+					Percentiles.millis(sorted, 99),
+					sorted[sorted.length - 1] / 1e6);
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package org.fcrepo.federation.jcloudsconnector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jcr.Node;
+
+import org.apache.commons.io.IOUtils;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.junit.Before;
+import org.junit.Test;
+import org.modeshape.jcr.SingleUseAbstractTest;
+import org.modeshape.jcr.api.JcrTools;
+
+public class JCloudsConnectorUpdateTest extends SingleUseAbstractTest {
+
+	private static final String CONTENT = "0123456789abcdefghij";
+
+	private static final String MARKER = "marker";
+
+	private JcrTools tools;
+
+	private BlobStore blobStore;
+
+	@Before
+	public void before() throws Exception {
+		tools = new JcrTools();
+		startRepositoryWithConfiguration(getClass().getClassLoader()
+				.getResourceAsStream("repo-config-transient.json"));
+		registerNodeTypes("bagitCloudFile.cnd");
+		blobStore = JCloudsConnectorRegistry.get(null, "jcloudsfiles")
+				.blobStore();
+	}
+
+	@Test
+	public void shouldNotUploadUnchangedContent() throws Exception {
+		String blobName = upload("/bags/unchanged.txt", CONTENT);
+		mark(blobName);
+
+		Node content = session.getNode("/bags/unchanged.txt/jcr:content");
+		content.setProperty("jcr:encoding", "UTF-8");
+		session.save();
+
+		// an upload would have dropped the marker
+		BlobMetadata metadata = blobStore.blobMetadata("stress", blobName);
+		assertEquals("kept", metadata.getUserMetadata().get(MARKER));
+		assertEquals(CONTENT, read(blobName));
+	}
+
+	@Test
+	public void shouldUploadChangedContent() throws Exception {
+		String blobName = upload("/bags/changed.txt", CONTENT);
+
+		String changed = "changed content, longer than before";
+		Node content = session.getNode("/bags/changed.txt/jcr:content");
+		content.setProperty("jcr:data", session.getValueFactory()
+				.createBinary(new ByteArrayInputStream(changed
+						.getBytes("UTF-8"))));
+		session.save();
+
+		assertEquals(changed, read(blobName));
+	}
+
+	@Test
+	public void shouldUpdateContentTypeOfChangedMimeType() throws Exception {
+		String blobName = upload("/bags/retyped.txt", CONTENT);
+		mark(blobName);
+		assertFalse("application/x-retyped".equals(contentType(blobName)));
+
+		Node content = session.getNode("/bags/retyped.txt/jcr:content");
+		content.setProperty("jcr:mimeType", "application/x-retyped");
+		session.save();
+
+		assertEquals("application/x-retyped", contentType(blobName));
+		assertEquals(CONTENT, read(blobName));
+		BlobMetadata metadata = blobStore.blobMetadata("stress", blobName);
+		assertEquals("kept", metadata.getUserMetadata().get(MARKER));
+	}
+
+	private String upload(String path, String text) throws Exception {
+		tools.uploadFile(session, path,
+				new ByteArrayInputStream(text.getBytes("UTF-8")),
+				"nt:folder", "bagit:cloudsFile");
+		session.save();
+		session.refresh(false);
+		return ((JCloudsBinaryValue) session.getNode(path + "/jcr:content")
+				.getProperty("jcr:data").getBinary()).blobName();
+	}
+
+	/**
+	 * Adds a user metadata entry behind the connector's back, which is only
+	 * kept if the blob is not uploaded again.
+	 */
+	private void mark(String blobName) throws Exception {
+		Blob blob = blobStore.getBlob("stress", blobName);
+		Map<String, String> userMetadata = new HashMap<String, String>(blob
+				.getMetadata().getUserMetadata());
+		userMetadata.put(MARKER, "kept");
+		blobStore.putBlob("stress", blobStore.blobBuilder(blobName)
+				.userMetadata(userMetadata)
+				.payload(read(blobName).getBytes("UTF-8"))
+				.contentType(contentType(blobName)).build());
+	}
+
+	private String contentType(String blobName) {
+		return blobStore.blobMetadata("stress", blobName).getContentMetadata()
+				.getContentType();
+	}
+
+	private String read(String blobName) throws Exception {
+		InputStream in = blobStore.getBlob("stress", blobName).getPayload()
+				.getInput();
+		try {
+			return IOUtils.toString(in, "UTF-8");
+		} finally {
+			in.close();
+		}
+	}
+}
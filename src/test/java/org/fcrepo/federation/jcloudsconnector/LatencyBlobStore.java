@@ -0,0 +1,103 @@
+package org.fcrepo.federation.jcloudsconnector;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jclouds.blobstore.BlobStore;
+
+/**
+ * Wraps a {@link BlobStore} so every remote request takes at least a given
+ * latency, and counts the requests per method and in total.
+ * <p>
+ * Requests are counted globally rather than per calling thread, since the
+ * connector sends many of them from its worker and background threads; the
+ * requests of an operation are the difference of {@link #totalCalls()}
+ * around it, which is exact only while no other operation runs.
+ * </p>
+ */
+final class LatencyBlobStore implements InvocationHandler {
+
+	/**
+	 * Methods that do not send a request.
+	 */
+	private static final Set<String> LOCAL = new HashSet<String>(
+			Arrays.asList("getContext", "blobBuilder", "toString", "hashCode",
+					"equals"));
+
+	private final BlobStore delegate;
+	private final long latencyMillis;
+	private final ConcurrentMap<String, AtomicLong> calls = new ConcurrentHashMap<String, AtomicLong>();
+	private final AtomicLong totalCalls = new AtomicLong();
+
+	private LatencyBlobStore(BlobStore delegate, long latencyMillis) {
+		this.delegate = delegate;
+		this.latencyMillis = latencyMillis;
+	}
+
+	static LatencyBlobStore of(BlobStore delegate, long latencyMillis) {
+		return new LatencyBlobStore(delegate, latencyMillis);
+	}
+
+	BlobStore blobStore() {
+		return (BlobStore) Proxy.newProxyInstance(
+				BlobStore.class.getClassLoader(),
+				new Class<?>[] { BlobStore.class }, this);
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args)
+			throws Throwable {
+		if (!LOCAL.contains(method.getName())) {
+			AtomicLong count = calls.get(method.getName());
+			if (count == null) {
+				calls.putIfAbsent(method.getName(), new AtomicLong());
+				count = calls.get(method.getName());
+			}
+			count.incrementAndGet();
+			totalCalls.incrementAndGet();
+			if (latencyMillis > 0) {
+				Thread.sleep(latencyMillis);
+			}
+		}
+		try {
+			return method.invoke(delegate, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * @return the wrapped store, for requests that must not be counted
+	 */
+	BlobStore delegate() {
+		return delegate;
+	}
+
+	/**
+	 * @return the number of requests sent so far, from any thread
+	 */
+	long totalCalls() {
+		return totalCalls.get();
+	}
+
+	/**
+	 * @return the number of requests sent so far, per method
+	 */
+	Map<String, Long> calls() {
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> count : calls.entrySet()) {
+			counts.put(count.getKey(), count.getValue().get());
+		}
+		return counts;
+	}
+}
@@ -0,0 +1,129 @@
+package org.fcrepo.federation.jcloudsconnector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ListingSnapshotTest {
+
+	private static final String CONTAINER = "snapshot-test";
+
+	private BlobStoreContext ctx;
+	private BlobStore blobStore;
+	private File file;
+
+	@Before
+	public void before() throws Exception {
+		ctx = ContextBuilder.newBuilder("transient")
+				.buildView(BlobStoreContext.class);
+		blobStore = ctx.getBlobStore();
+		blobStore.createContainerInLocation(null, CONTAINER);
+		for (String name : Arrays.asList("dir1/a.txt", "dir1/b.txt",
+				"dir1/sub/c.txt", "dir2/d.txt", "e.txt")) {
+			blobStore.putBlob(CONTAINER, blobStore.blobBuilder(name)
+					.payload(name).build());
+		}
+		file = File.createTempFile("listing", ".snapshot");
+		file.delete();
+	}
+
+	@After
+	public void after() {
+		file.delete();
+		ctx.close();
+	}
+
+	@Test
+	public void shouldAnswerListingsFromSyncedSnapshot() throws Exception {
+		ListingSnapshot snapshot = new ListingSnapshot(file);
+		assertFalse(snapshot.load());
+		assertFalse(snapshot.isReady());
+
+		snapshot.sync(blobStore, CONTAINER);
+
+		assertTrue(snapshot.isReady());
+		assertEquals(new HashSet<String>(Arrays.asList("dir1", "dir2", "e.txt")),
+				snapshot.childrenOf("/"));
+		assertEquals(new HashSet<String>(Arrays.asList("dir1/a.txt",
+				"dir1/b.txt", "dir1/sub")), snapshot.childrenOf("dir1"));
+		assertTrue(snapshot.containsDirectory("dir1/sub"));
+		assertNotNull(snapshot.get("dir2/d.txt"));
+	}
+
+	@Test
+	public void shouldMergeChangesSinceSnapshot() throws Exception {
+		ListingSnapshot snapshot = new ListingSnapshot(file);
+		snapshot.sync(blobStore, CONTAINER);
+
+		snapshot.recordRemove("dir2/d.txt");
+		snapshot.recordPut(new BlobEntry("dir3/f.txt", 1, null, 0));
+
+		assertNull(snapshot.get("dir2/d.txt"));
+		assertFalse(snapshot.containsDirectory("dir2"));
+		assertTrue(snapshot.containsDirectory("dir3"));
+		assertEquals(new HashSet<String>(Arrays.asList("dir1", "dir3", "e.txt")),
+				snapshot.childrenOf("/"));
+	}
+
+	@Test
+	public void shouldFoldChangesIntoFile() throws Exception {
+		ListingSnapshot snapshot = new ListingSnapshot(file);
+		snapshot.sync(blobStore, CONTAINER);
+		snapshot.recordRemove("dir2/d.txt");
+		snapshot.recordPut(new BlobEntry("dir1/aa.txt", 1, null, 0));
+
+		snapshot.merge();
+
+		ListingSnapshot reloaded = new ListingSnapshot(file);
+		assertTrue(reloaded.load());
+		assertNull(reloaded.get("dir2/d.txt"));
+		assertFalse(reloaded.containsDirectory("dir2"));
+		assertEquals(new HashSet<String>(Arrays.asList("dir1/a.txt",
+				"dir1/aa.txt", "dir1/b.txt", "dir1/sub")),
+				reloaded.childrenOf("dir1"));
+	}
+
+	@Test
+	public void shouldSyncOnlyBelowDirectory() throws Exception {
+		ListingSnapshot snapshot = new ListingSnapshot(file);
+		snapshot.sync(blobStore, CONTAINER);
+		// removed on the provider, and written without telling the snapshot
+		blobStore.removeBlob(CONTAINER, "dir1/a.txt");
+		blobStore.removeBlob(CONTAINER, "dir1/b.txt");
+		blobStore.removeBlob(CONTAINER, "dir1/sub/c.txt");
+		blobStore.putBlob(CONTAINER, blobStore.blobBuilder("dir2/new.txt")
+				.payload("new").build());
+
+		snapshot.sync(blobStore, CONTAINER, "dir1");
+
+		assertFalse(snapshot.containsDirectory("dir1"));
+		assertNull(snapshot.get("dir1/sub/c.txt"));
+		assertNull(snapshot.get("dir2/new.txt"));
+		assertEquals(new HashSet<String>(Arrays.asList("dir2", "e.txt")),
+				snapshot.childrenOf("/"));
+	}
+
+	@Test
+	public void shouldReloadSnapshotFromDisk() throws Exception {
+		new ListingSnapshot(file).sync(blobStore, CONTAINER);
+
+		ListingSnapshot reloaded = new ListingSnapshot(file);
+		assertTrue(reloaded.load());
+		assertTrue(reloaded.isReady());
+		assertEquals(new HashSet<String>(Arrays.asList("dir1/a.txt",
+				"dir1/b.txt", "dir1/sub")), reloaded.childrenOf("dir1"));
+	}
+}
@@ -0,0 +1,161 @@
+package org.fcrepo.federation.jcloudsconnector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.infinispan.Cache;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MetadataCacheTest {
+
+	private EmbeddedCacheManager cacheManager;
+	private Cache<String, Object> cache;
+
+	@Before
+	public void beforeEach() {
+		cacheManager = new DefaultCacheManager();
+		cache = cacheManager.getCache();
+	}
+
+	@After
+	public void afterEach() {
+		cacheManager.stop();
+	}
+
+	@Test
+	public void shouldShareEntriesBetweenNodes() {
+		MetadataCache node1 = new MetadataCache(cacheManager, cache, "s/c/");
+		MetadataCache node2 = new MetadataCache(cacheManager, cache, "s/c/");
+
+		node1.putChildren("dir1", null,
+				Arrays.asList("dir1/a.txt", "dir1/sub"));
+		node1.putMetadata("dir1/a.txt", new BlobEntry("dir1/a.txt", 3, "e1",
+				42));
+
+		assertEquals(Arrays.asList("dir1/a.txt", "dir1/sub"),
+				node2.children("dir1"));
+		assertEquals(42, node2.metadata("dir1/a.txt").lastModified);
+	}
+
+	@Test
+	public void shouldInvalidateBlobAndFolders() {
+		MetadataCache node1 = new MetadataCache(cacheManager, cache, "s/c/");
+		MetadataCache node2 = new MetadataCache(cacheManager, cache, "s/c/");
+		node1.putChildren("/", null, Arrays.asList("dir1"));
+		node1.putChildren("dir1", null, Arrays.asList("dir1/sub"));
+		node1.putChildren("dir1/sub", null,
+				Arrays.asList("dir1/sub/a.txt"));
+		node1.putExists("dir1/sub/b.txt", false);
+		node1.putDirectory("dir1/sub", true);
+		node1.putChildren("dir2", null, Arrays.asList("dir2/c.txt"));
+
+		node2.invalidate("dir1/sub/b.txt");
+
+		assertNull(node1.exists("dir1/sub/b.txt"));
+		assertNull(node1.children("dir1/sub"));
+		assertNull(node1.children("dir1"));
+		assertNull(node1.children("/"));
+		assertNull(node1.isDirectory("dir1/sub"));
+		assertEquals(Arrays.asList("dir2/c.txt"), node1.children("dir2"));
+	}
+
+	@Test
+	public void shouldNotServeListingFetchedBeforeInvalidation() {
+		MetadataCache node1 = new MetadataCache(cacheManager, cache, "s/c/");
+		MetadataCache node2 = new MetadataCache(cacheManager, cache, "s/c/");
+		MetadataCache.ListingVersion fetchedUnder = node1
+				.listingVersion("dir1");
+
+		// written while node1 lists the folder
+		node2.invalidate("dir1/new.txt");
+		node1.putChildren("dir1", fetchedUnder, Arrays.asList("dir1/old.txt"));
+
+		assertNull(node1.children("dir1"));
+		assertNull(node2.children("dir1"));
+
+		MetadataCache.ListingVersion current = node1.listingVersion("dir1");
+		node1.putChildren("dir1", current,
+				Arrays.asList("dir1/new.txt", "dir1/old.txt"));
+		assertEquals(Arrays.asList("dir1/new.txt", "dir1/old.txt"),
+				node2.children("dir1"));
+		assertFalse(current.isSettled(current.changed + 10, 60000));
+		assertTrue(current.isSettled(current.changed + 60000, 60000));
+	}
+
+	@Test
+	public void shouldSeparateContainers() {
+		MetadataCache first = new MetadataCache(cacheManager, cache, "s/c1/");
+		MetadataCache second = new MetadataCache(cacheManager, cache, "s/c2/");
+
+		first.putExists("a.txt", true);
+
+		assertEquals(Boolean.TRUE, first.exists("a.txt"));
+		assertNull(second.exists("a.txt"));
+	}
+
+	@Test
+	public void shouldNotifyOtherNodesOfInvalidations() {
+		MetadataCache node1 = new MetadataCache(cacheManager, cache, "s/c/");
+		MetadataCache node2 = new MetadataCache(cacheManager, cache, "s/c/");
+		final List<String> seenByNode1 = new ArrayList<String>();
+		final List<String> seenByNode2 = new ArrayList<String>();
+		node1.addInvalidationListener(new MetadataCache.InvalidationListener() {
+
+			@Override
+			public void invalidated(String blobName) {
+				seenByNode1.add(blobName);
+			}
+
+			@Override
+			public void treeInvalidated(String directory) {
+				seenByNode1.add(directory + "/");
+			}
+		});
+		node2.addInvalidationListener(new MetadataCache.InvalidationListener() {
+
+			@Override
+			public void invalidated(String blobName) {
+				seenByNode2.add(blobName);
+			}
+
+			@Override
+			public void treeInvalidated(String directory) {
+				seenByNode2.add(directory + "/");
+			}
+		});
+
+		node1.invalidate("dir1/a.txt");
+		node1.invalidateTree("dir2");
+
+		assertEquals(Arrays.asList("dir1/a.txt", "dir2/"), seenByNode2);
+		assertEquals(0, seenByNode1.size());
+	}
+
+	@Test
+	public void shouldInvalidatePageOfRemovedTree() {
+		MetadataCache node1 = new MetadataCache(cacheManager, cache, "s/c/");
+		MetadataCache node2 = new MetadataCache(cacheManager, cache, "s/c/");
+		node1.putChildren("dir1", null, Arrays.asList("dir1/sub"));
+		node1.putChildren("dir1/sub", null,
+				Arrays.asList("dir1/sub/a.txt", "dir1/sub/b.txt"));
+		node1.putExists("dir1/sub/a.txt", true);
+		node1.putChildren("dir2", null, Arrays.asList("dir2/c.txt"));
+
+		node2.invalidateAll(Arrays.asList("dir1/sub/a.txt", "dir1/sub/b.txt"));
+
+		assertNull(node1.exists("dir1/sub/a.txt"));
+		assertNull(node1.children("dir1/sub"));
+		assertNull(node1.children("dir1"));
+		assertEquals(Arrays.asList("dir2/c.txt"), node1.children("dir2"));
+	}
+}
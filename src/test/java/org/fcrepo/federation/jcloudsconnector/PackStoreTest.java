@@ -0,0 +1,234 @@
+package org.fcrepo.federation.jcloudsconnector;
+
+import static org.jclouds.blobstore.options.ListContainerOptions.Builder.inDirectory;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.domain.StorageType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PackStoreTest {
+
+	private static final String CONTAINER = "pack-test";
+	private static final int PACK_SIZE = 1024 * 1024;
+
+	private BlobStoreContext ctx;
+	private BlobStore blobStore;
+	private volatile boolean failPuts;
+	private final List<PackStore> stores = new ArrayList<PackStore>();
+
+	@Before
+	public void before() {
+		ctx = ContextBuilder.newBuilder("transient")
+				.buildView(BlobStoreContext.class);
+		blobStore = (BlobStore) Proxy.newProxyInstance(
+				BlobStore.class.getClassLoader(),
+				new Class<?>[] { BlobStore.class }, new InvocationHandler() {
+
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) throws Throwable {
+						if (failPuts && method.getName().equals("putBlob")) {
+							throw new IllegalStateException("PUT failed");
+						}
+						try {
+							return method.invoke(ctx.getBlobStore(), args);
+						} catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+					}
+				});
+		blobStore.createContainerInLocation(null, CONTAINER);
+	}
+
+	@After
+	public void after() {
+		for (PackStore store : stores) {
+			store.shutdown();
+		}
+		ctx.close();
+	}
+
+	@Test
+	public void shouldReadBackAfterRestart() throws Exception {
+		PackStore packs = start(10);
+		packs.write("dir1/a.txt", bytes("a"));
+		packs.write("dir1/sub/b.txt", bytes("bb"));
+
+		assertArrayEquals(bytes("a"), packs.read("dir1/a.txt"));
+		assertEquals(new HashSet<String>(Arrays.asList("dir1/a.txt",
+				"dir1/sub")), packs.childrenOf("dir1"));
+
+		PackStore restarted = start(10);
+		assertArrayEquals(bytes("bb"), restarted.read("dir1/sub/b.txt"));
+		PackStore.Entry entry = restarted.entry("dir1/sub/b.txt");
+		assertArrayEquals(bytes("b"), restarted.read(entry, 1, 1));
+		assertTrue(restarted.containsDirectory("dir1/sub"));
+	}
+
+	@Test
+	public void shouldMergeWritesOfOtherNodes() throws Exception {
+		PackStore node1 = start(0);
+		PackStore node2 = start(0);
+
+		node1.write("a.txt", bytes("first"));
+		node2.reload();
+		assertArrayEquals(bytes("first"), node2.read("a.txt"));
+
+		node2.write("a.txt", bytes("second"));
+		node1.reload();
+		assertArrayEquals(bytes("second"), node1.read("a.txt"));
+	}
+
+	@Test
+	public void shouldRemove() throws Exception {
+		PackStore packs = start(0);
+		packs.write("a.txt", bytes("a"));
+		packs.write("b.txt", bytes("b"));
+
+		assertTrue(packs.remove("a.txt"));
+		assertFalse(packs.remove("a.txt"));
+		assertFalse(packs.contains("a.txt"));
+
+		PackStore restarted = start(0);
+		assertNull(restarted.read("a.txt"));
+		assertArrayEquals(bytes("b"), restarted.read("b.txt"));
+	}
+
+	@Test
+	public void shouldMove() throws Exception {
+		PackStore packs = start(0);
+		packs.write("dir1/a.txt", bytes("a"));
+
+		packs.moveAll(Collections.singletonMap("dir1/a.txt", "dir2/a.txt"));
+
+		PackStore restarted = start(0);
+		assertFalse(restarted.contains("dir1/a.txt"));
+		assertArrayEquals(bytes("a"), restarted.read("dir2/a.txt"));
+	}
+
+	@Test
+	public void shouldCompact() throws Exception {
+		PackStore packs = start(0);
+		for (int i = 0; i < 5; i++) {
+			packs.write("file" + i, bytes("content" + i));
+		}
+		packs.remove("file0");
+		packs.write("file1", bytes("rewritten"));
+
+		packs.compact();
+
+		assertEquals(1, stored(".packs/segments").size());
+		assertEquals(2, stored(".packs").size());
+		PackStore restarted = start(0);
+		assertNull(restarted.read("file0"));
+		assertArrayEquals(bytes("rewritten"), restarted.read("file1"));
+		assertArrayEquals(bytes("content4"), restarted.read("file4"));
+	}
+
+	@Test
+	public void shouldNotApplyFailedCommit() throws Exception {
+		PackStore packs = start(0);
+		packs.write("a.txt", bytes("a"));
+
+		failPuts = true;
+		try {
+			packs.write("b.txt", bytes("b"));
+			fail("write should fail");
+		} catch (IOException e) {
+			// expected
+		}
+		try {
+			packs.remove("a.txt");
+			fail("remove should fail");
+		} catch (IOException e) {
+			// expected
+		}
+		failPuts = false;
+
+		assertFalse(packs.contains("b.txt"));
+		assertArrayEquals(bytes("a"), packs.read("a.txt"));
+		packs.write("b.txt", bytes("b"));
+		PackStore restarted = start(0);
+		assertArrayEquals(bytes("a"), restarted.read("a.txt"));
+		assertArrayEquals(bytes("b"), restarted.read("b.txt"));
+	}
+
+	@Test(timeout = 10000)
+	public void shouldCommitFullBatchesRightAway() throws Exception {
+		// an open batch would wait a minute for more writes
+		PackStore packs = start(4, 60000);
+		packs.write("a.txt", bytes("full"));
+		packs.write("b.txt", bytes("full"));
+
+		assertEquals(2, stored(".packs/segments").size());
+		assertArrayEquals(bytes("full"), start(0).read("b.txt"));
+	}
+
+	@Test
+	public void shouldCompactIntoPacksOfPackSize() throws Exception {
+		// twelve small packs of 3 bytes
+		PackStore packs = start(16, 0);
+		for (int i = 10; i < 22; i++) {
+			packs.write("file" + i, bytes("c" + i));
+		}
+
+		packs.compact();
+
+		// two packs of six binaries each
+		assertEquals(2, stored(".packs/segments").size());
+		PackStore restarted = start(0);
+		for (int i = 10; i < 22; i++) {
+			assertArrayEquals(bytes("c" + i), restarted.read("file" + i));
+		}
+	}
+
+	private PackStore start(long flushMillis) throws IOException {
+		return start(PACK_SIZE, flushMillis);
+	}
+
+	private PackStore start(int packSize, long flushMillis) throws IOException {
+		PackStore packs = new PackStore(blobStore, CONTAINER, packSize,
+				flushMillis, 0);
+		packs.start();
+		stores.add(packs);
+		return packs;
+	}
+
+	private List<String> stored(String directory) {
+		List<String> names = new ArrayList<String>();
+		for (StorageMetadata metadata : blobStore.list(CONTAINER,
+				inDirectory(directory).recursive())) {
+			if (metadata.getName().startsWith(directory + "/")
+					&& metadata.getType() == StorageType.BLOB) {
+				names.add(metadata.getName());
+			}
+		}
+		return names;
+	}
+
+	private static byte[] bytes(String content) throws IOException {
+		return content.getBytes("UTF-8");
+	}
+}
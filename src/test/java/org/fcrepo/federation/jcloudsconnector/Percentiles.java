@@ -0,0 +1,24 @@
+package org.fcrepo.federation.jcloudsconnector;
+
+/**
+ * Latency percentiles for the reports of the stress and benchmark tests.
+ */
+final class Percentiles {
+
+	private Percentiles() {
+	}
+
+	/**
+	 * Returns a percentile of sorted latencies with the nearest-rank method.
+	 *
+	 * @param sorted
+	 *            latencies in nanoseconds, in ascending order; not empty
+	 * @param percentile
+	 *            the percentile, from 1 to 100
+	 * @return the latency in milliseconds
+	 */
+	static double millis(long[] sorted, int percentile) {
+		int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(index, 0)] / 1e6;
+	}
+}
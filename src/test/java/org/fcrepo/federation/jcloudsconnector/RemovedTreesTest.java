@@ -0,0 +1,39 @@
+package org.fcrepo.federation.jcloudsconnector;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class RemovedTreesTest {
+
+	@Test
+	public void shouldContainBlobsBelowRemovedFolder() {
+		RemovedTrees trees = new RemovedTrees(60 * 1000);
+		trees.add("dir1/sub");
+
+		assertTrue(trees.contains("dir1/sub"));
+		assertTrue(trees.contains("dir1/sub/deep/a.txt"));
+		assertFalse(trees.contains("dir1"));
+		assertFalse(trees.contains("dir1/subway.txt"));
+	}
+
+	@Test
+	public void shouldForgetFolderWrittenAgain() {
+		RemovedTrees trees = new RemovedTrees(60 * 1000);
+		trees.add("dir1");
+
+		trees.written("dir1/sub/a.txt");
+
+		assertFalse(trees.contains("dir1/b.txt"));
+	}
+
+	@Test
+	public void shouldForgetIdleFolders() throws Exception {
+		RemovedTrees trees = new RemovedTrees(10);
+		trees.add("dir1");
+		Thread.sleep(50);
+
+		assertFalse(trees.contains("dir1/a.txt"));
+	}
+}
@@ -0,0 +1,218 @@
+package org.fcrepo.federation.jcloudsconnector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+public class RequestSchedulerTest {
+
+	@Test
+	public void shouldKeepCapacityForInteractiveRequests() throws Exception {
+		RequestScheduler scheduler = new RequestScheduler(3, 2, 1);
+		scheduler.acquire(RequestPriority.BULK_WRITE);
+		scheduler.acquire(RequestPriority.BULK_WRITE);
+
+		CountDownLatch bulk = start(scheduler, RequestPriority.BULK_WRITE,
+				null);
+		assertFalse(bulk.await(100, TimeUnit.MILLISECONDS));
+
+		// the slot left over the bulk budget goes to interactive requests
+		CountDownLatch read = start(scheduler,
+				RequestPriority.INTERACTIVE_READ, null);
+		assertTrue(read.await(1, TimeUnit.SECONDS));
+
+		scheduler.release(RequestPriority.BULK_WRITE);
+		assertTrue(bulk.await(1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void shouldAdmitHigherPrioritiesFirst() throws Exception {
+		RequestScheduler scheduler = new RequestScheduler(1, 1, 1);
+		scheduler.acquire(RequestPriority.INTERACTIVE_METADATA);
+
+		List<RequestPriority> admitted = new CopyOnWriteArrayList<RequestPriority>();
+		CountDownLatch background = start(scheduler,
+				RequestPriority.BACKGROUND, admitted);
+		Thread.sleep(50);
+		CountDownLatch metadata = start(scheduler,
+				RequestPriority.INTERACTIVE_METADATA, admitted);
+		Thread.sleep(50);
+
+		scheduler.release(RequestPriority.INTERACTIVE_METADATA);
+		assertTrue(metadata.await(1, TimeUnit.SECONDS));
+		assertFalse(background.await(100, TimeUnit.MILLISECONDS));
+
+		scheduler.release(RequestPriority.INTERACTIVE_METADATA);
+		assertTrue(background.await(1, TimeUnit.SECONDS));
+		assertEquals(RequestPriority.INTERACTIVE_METADATA, admitted.get(0));
+		assertEquals(RequestPriority.BACKGROUND, admitted.get(1));
+	}
+
+	@Test
+	public void shouldWithdrawCancelledAdmission() throws Exception {
+		RequestScheduler scheduler = new RequestScheduler(1, 1, 1);
+		scheduler.acquire(RequestPriority.INTERACTIVE_METADATA);
+
+		ListenableFuture<Void> withdrawn = scheduler
+				.admit(RequestPriority.INTERACTIVE_METADATA);
+		ListenableFuture<Void> waiting = scheduler
+				.admit(RequestPriority.BACKGROUND);
+		assertTrue(withdrawn.cancel(false));
+		assertFalse(waiting.isDone());
+
+		scheduler.release(RequestPriority.INTERACTIVE_METADATA);
+		assertTrue(waiting.isDone());
+		scheduler.release(RequestPriority.BACKGROUND);
+
+		// the withdrawn request took no slot
+		assertTrue(scheduler.admit(RequestPriority.BULK_WRITE).isDone());
+	}
+
+	@Test
+	public void shouldRunCallOnceAdmittedAndReleaseWhenDone()
+			throws Exception {
+		RequestScheduler scheduler = new RequestScheduler(1, 1, 1);
+		scheduler.acquire(RequestPriority.INTERACTIVE_METADATA);
+
+		final SettableFuture<String> response = SettableFuture.create();
+		final AtomicInteger sent = new AtomicInteger();
+		ListenableFuture<String> result = scheduler.call(
+				RequestPriority.BULK_WRITE,
+				new Callable<ListenableFuture<String>>() {
+
+					@Override
+					public ListenableFuture<String> call() {
+						sent.incrementAndGet();
+						return response;
+					}
+				});
+		assertEquals(0, sent.get());
+
+		scheduler.release(RequestPriority.INTERACTIVE_METADATA);
+		assertEquals(1, sent.get());
+		ListenableFuture<Void> next = scheduler
+				.admit(RequestPriority.INTERACTIVE_METADATA);
+		assertFalse(next.isDone());
+
+		response.set("etag");
+		assertEquals("etag", result.get());
+		assertTrue(next.isDone());
+	}
+
+	@Test
+	public void shouldNotSendCancelledCall() throws Exception {
+		RequestScheduler scheduler = new RequestScheduler(1, 1, 1);
+		scheduler.acquire(RequestPriority.INTERACTIVE_METADATA);
+
+		final AtomicInteger sent = new AtomicInteger();
+		ListenableFuture<String> result = scheduler.call(
+				RequestPriority.BULK_WRITE,
+				new Callable<ListenableFuture<String>>() {
+
+					@Override
+					public ListenableFuture<String> call() {
+						sent.incrementAndGet();
+						return Futures.immediateFuture("etag");
+					}
+				});
+		assertTrue(result.cancel(false));
+
+		scheduler.release(RequestPriority.INTERACTIVE_METADATA);
+		assertEquals(0, sent.get());
+		// the slot is free again
+		assertTrue(scheduler.admit(RequestPriority.BULK_WRITE).isDone());
+	}
+
+	@Test
+	public void shouldSendCallsOfOtherApisThroughScheduler() throws Exception {
+		final RequestScheduler scheduler = new RequestScheduler(1, 1, 1);
+		final CountDownLatch ran = new CountDownLatch(1);
+		final Runnable api = scheduler.schedule(Runnable.class,
+				new Runnable() {
+
+					@Override
+					public void run() {
+						ran.countDown();
+					}
+				});
+		scheduler.acquire(RequestPriority.INTERACTIVE_METADATA);
+		Thread caller = new Thread(api);
+		caller.setDaemon(true);
+		caller.start();
+
+		assertFalse(ran.await(200, TimeUnit.MILLISECONDS));
+		scheduler.release(RequestPriority.INTERACTIVE_METADATA);
+		assertTrue(ran.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void shouldClassifyRequestsOfTaggedThreads() {
+		assertEquals(RequestPriority.BULK_WRITE, RequestPriority.of("putBlob"));
+		assertEquals(RequestPriority.BULK_WRITE,
+				RequestPriority.of("copyObject"));
+		assertEquals(RequestPriority.INTERACTIVE_READ,
+				RequestPriority.of("getBlob"));
+
+		RequestPriority previous = RequestPriority.INTERACTIVE_METADATA
+				.enter();
+		try {
+			assertEquals(RequestPriority.INTERACTIVE_METADATA,
+					RequestPriority.of("putBlob"));
+			assertEquals(RequestPriority.INTERACTIVE_READ,
+					RequestPriority.of("getBlob"));
+
+			RequestPriority interactive = RequestPriority.BACKGROUND.enter();
+			assertEquals(RequestPriority.BACKGROUND,
+					RequestPriority.of("getBlob"));
+			RequestPriority.restore(interactive);
+			assertEquals(RequestPriority.INTERACTIVE_METADATA,
+					RequestPriority.of("removeBlob"));
+		} finally {
+			RequestPriority.restore(previous);
+		}
+		assertEquals(RequestPriority.BULK_WRITE,
+				RequestPriority.of("removeBlob"));
+	}
+
+	/**
+	 * Acquires a slot on a new thread, which keeps it.
+	 *
+	 * @return a latch released once the slot is acquired
+	 */
+	private static CountDownLatch start(final RequestScheduler scheduler,
+			final RequestPriority priority,
+			final List<RequestPriority> admitted) {
+		final CountDownLatch acquired = new CountDownLatch(1);
+		Thread thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					scheduler.acquire(priority);
+					if (admitted != null) {
+						admitted.add(priority);
+					}
+					acquired.countDown();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+		return acquired;
+	}
+}
@@ -0,0 +1,32 @@
+package org.fcrepo.federation.jcloudsconnector;
+
+import java.io.IOException;
+
+import javax.jcr.NamespaceRegistry;
+import javax.jcr.RepositoryException;
+
+import org.jclouds.blobstore.BlobStore;
+import org.modeshape.jcr.api.nodetype.NodeTypeManager;
+
+/**
+ * A connector for jclouds' in-memory <code>transient</code> provider, which
+ * creates its container and the projected directory on start, so tests can
+ * run without a cloud account.
+ */
+public class TransientJCloudsConnector extends JCloudsConnector {
+
+	/**
+	 * The directory the test configurations project.
+	 */
+	static final String PROJECTED_DIRECTORY = "dir1";
+
+	@Override
+	public void initialize(NamespaceRegistry registry,
+			NodeTypeManager nodeTypeManager) throws RepositoryException,
+			IOException {
+		super.initialize(registry, nodeTypeManager);
+		BlobStore blobStore = blobStore();
+		blobStore.createContainerInLocation(null, containerName());
+		blobStore.createDirectory(containerName(), PROJECTED_DIRECTORY);
+	}
+}
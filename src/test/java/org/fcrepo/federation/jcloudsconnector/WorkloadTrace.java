@@ -0,0 +1,223 @@
+package org.fcrepo.federation.jcloudsconnector;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A replayable sequence of JCR operations on the projected folder.
+ * <p>
+ * A trace is a text file with one step per line,
+ * <code>KIND path [size]</code>, where the path is relative to the projected
+ * folder and the size is given for steps that write content. Lines starting
+ * with <code>#</code> are comments. <code>SEED</code> steps are files
+ * written to the container before the repository starts; the other steps
+ * are replayed and timed. Traces are recorded with {@link #save(Writer)},
+ * e.g. to replay a synthetic workload exactly.
+ * </p>
+ */
+final class WorkloadTrace {
+
+	enum Kind {
+		SEED, READ, LIST, CREATE, UPDATE, REMOVE
+	}
+
+	static final class Step {
+
+		final Kind kind;
+		final String path;
+		final int size;
+
+		Step(Kind kind, String path, int size) {
+			this.kind = kind;
+			this.path = path;
+			this.size = size;
+		}
+
+		/**
+		 * @return the content written by this step, which depends on the path
+		 *         and size only, so reads can be checked
+		 */
+		byte[] content() {
+			byte[] content = new byte[size];
+			Random random = new Random(path.hashCode() * 31L + size);
+			random.nextBytes(content);
+			return content;
+		}
+
+		@Override
+		public String toString() {
+			return kind + " " + path + (size > 0 ? " " + size : "");
+		}
+	}
+
+	private final String name;
+	private final List<Step> steps;
+
+	WorkloadTrace(String name, List<Step> steps) {
+		this.name = name;
+		this.steps = Collections.unmodifiableList(steps);
+	}
+
+	String name() {
+		return name;
+	}
+
+	List<Step> seedSteps() {
+		List<Step> seeds = new ArrayList<Step>();
+		for (Step step : steps) {
+			if (step.kind == Kind.SEED) {
+				seeds.add(step);
+			}
+		}
+		return seeds;
+	}
+
+	/**
+	 * @return the steps to replay, in order
+	 */
+	List<Step> steps() {
+		List<Step> replayed = new ArrayList<Step>();
+		for (Step step : steps) {
+			if (step.kind != Kind.SEED) {
+				replayed.add(step);
+			}
+		}
+		return replayed;
+	}
+
+	static WorkloadTrace load(String name, InputStream in) throws IOException {
+		List<Step> steps = new ArrayList<Step>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in,
+				"UTF-8"));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			String[] fields = line.split("\\s+");
+			steps.add(new Step(Kind.valueOf(fields[0]), fields[1],
+					fields.length > 2 ? Integer.parseInt(fields[2]) : 0));
+		}
+		return new WorkloadTrace(name, steps);
+	}
+
+	void save(Writer writer) {
+		PrintWriter out = new PrintWriter(writer);
+		out.println("# " + name);
+		for (Step step : steps) {
+			out.println(step);
+		}
+		out.flush();
+	}
+
+	/**
+	 * Browses a tree of folders top-down to its leaf files, listing every
+	 * folder on the way.
+	 */
+	static WorkloadTrace deepBrowsing(int depth, int fanout, int walks,
+			long seed) {
+		List<Step> steps = new ArrayList<Step>();
+		seedTree(steps, "", depth, fanout);
+		Random random = new Random(seed);
+		for (int i = 0; i < walks; i++) {
+			String path = "";
+			steps.add(new Step(Kind.LIST, "/", 0));
+			for (int level = 0; level < depth; level++) {
+				path += "/d" + random.nextInt(fanout);
+				steps.add(new Step(Kind.LIST, path, 0));
+			}
+			steps.add(new Step(Kind.READ, path + "/f" + random.nextInt(fanout)
+					+ ".txt", 0));
+		}
+		return new WorkloadTrace("deep-browsing", steps);
+	}
+
+	private static void seedTree(List<Step> steps, String path, int depth,
+			int fanout) {
+		for (int i = 0; i < fanout; i++) {
+			if (depth == 0) {
+				steps.add(new Step(Kind.SEED, path + "/f" + i + ".txt", 1024));
+			} else {
+				seedTree(steps, path + "/d" + i, depth - 1, fanout);
+			}
+		}
+	}
+
+	/**
+	 * Creates many new files of the same size.
+	 */
+	static WorkloadTrace bulkIngest(int files, int size) {
+		List<Step> steps = new ArrayList<Step>();
+		for (int i = 0; i < files; i++) {
+			steps.add(new Step(Kind.CREATE, String.format("/ingest-%05d.bin",
+					i), size));
+		}
+		return new WorkloadTrace("bulk-ingest", steps);
+	}
+
+	/**
+	 * Mostly reads existing files, with some listings, updates, creates and
+	 * removes.
+	 */
+	static WorkloadTrace mixedReadWrite(int files, int operations, int size,
+			long seed) {
+		List<Step> steps = new ArrayList<Step>();
+		List<String> existing = new ArrayList<String>();
+		for (int i = 0; i < files; i++) {
+			String path = String.format("/file-%05d.txt", i);
+			steps.add(new Step(Kind.SEED, path, size));
+			existing.add(path);
+		}
+		Random random = new Random(seed);
+		for (int i = 0; i < operations; i++) {
+			int dice = random.nextInt(100);
+			if (existing.isEmpty() || dice < 5) {
+				String path = String.format("/new-%05d.txt", i);
+				steps.add(new Step(Kind.CREATE, path, size));
+				existing.add(path);
+				continue;
+			}
+			String path = existing.get(random.nextInt(existing.size()));
+			if (dice < 65) {
+				steps.add(new Step(Kind.READ, path, 0));
+			} else if (dice < 75) {
+				steps.add(new Step(Kind.LIST, "/", 0));
+			} else if (dice < 95) {
+				steps.add(new Step(Kind.UPDATE, path, size + i));
+			} else {
+				steps.add(new Step(Kind.REMOVE, path, 0));
+				existing.remove(path);
+			}
+		}
+		return new WorkloadTrace("mixed-read-write", steps);
+	}
+
+	/**
+	 * Reads a few hot files most of the time, and the others rarely.
+	 */
+	static WorkloadTrace hotFileReads(int files, int hotFiles, int reads,
+			int size, long seed) {
+		List<Step> steps = new ArrayList<Step>();
+		for (int i = 0; i < files; i++) {
+			steps.add(new Step(Kind.SEED, String.format("/hot-%05d.bin", i),
+					size));
+		}
+		Random random = new Random(seed);
+		for (int i = 0; i < reads; i++) {
+			int file = random.nextInt(10) < 8 ? random.nextInt(hotFiles)
+					: random.nextInt(files);
+			steps.add(new Step(Kind.READ, String.format("/hot-%05d.bin",
+					file), 0));
+		}
+		return new WorkloadTrace("hot-file-reads", steps);
+	}
+}
@@ -0,0 +1,120 @@
+package org.fcrepo.federation.jcloudsconnector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+public class WriteJournalTest {
+
+	@Test
+	public void shouldOverlayWritesUntilListed() {
+		WriteJournal journal = new WriteJournal(60 * 1000);
+		journal.recordPut("dir1/new.txt");
+		journal.recordPut("dir1/sub/deep.txt");
+
+		assertEquals(Boolean.TRUE, journal.exists("dir1/new.txt"));
+		assertTrue(journal.containsDirectory("dir1/sub"));
+		assertEquals(new HashSet<String>(Arrays.asList("dir1/old.txt",
+				"dir1/new.txt", "dir1/sub")), journal.merge("dir1",
+				Collections.singletonList("dir1/old.txt")));
+
+		// a listing showing the blob confirms it
+		journal.merge("dir1", Arrays.asList("dir1/old.txt", "dir1/new.txt"));
+		assertNull(journal.exists("dir1/new.txt"));
+		assertEquals(Boolean.TRUE, journal.exists("dir1/sub/deep.txt"));
+	}
+
+	@Test
+	public void shouldHideRemovesUntilUnlisted() {
+		WriteJournal journal = new WriteJournal(60 * 1000);
+		journal.recordRemove("gone.txt");
+
+		assertEquals(Boolean.FALSE, journal.exists("gone.txt"));
+		assertEquals(new HashSet<String>(Arrays.asList("dir1")),
+				journal.merge("/", Arrays.asList("dir1", "gone.txt")));
+		assertEquals(Boolean.FALSE, journal.exists("gone.txt"));
+
+		journal.merge("/", Arrays.asList("dir1"));
+		assertNull(journal.exists("gone.txt"));
+		assertTrue(journal.isEmpty());
+	}
+
+	@Test
+	public void shouldForgetBlobsChangedElsewhere() {
+		WriteJournal journal = new WriteJournal(60 * 1000);
+		journal.recordRemove("dir1/a.txt");
+
+		// written again by another node
+		journal.forget("dir1/a.txt");
+
+		assertNull(journal.exists("dir1/a.txt"));
+		assertEquals(new HashSet<String>(Arrays.asList("dir1/a.txt")),
+				journal.merge("dir1", Arrays.asList("dir1/a.txt")));
+	}
+
+	@Test
+	public void shouldHideRemovedTreeWithOneEntry() {
+		WriteJournal journal = new WriteJournal(60 * 1000);
+		journal.recordPut("dir1/sub/old.txt");
+		journal.recordRemoveTree("dir1");
+
+		assertEquals(Boolean.FALSE, journal.exists("dir1"));
+		assertEquals(Boolean.FALSE, journal.exists("dir1/sub/old.txt"));
+		assertEquals(Boolean.FALSE, journal.exists("dir1/sub/other.txt"));
+		assertEquals(new HashSet<String>(Arrays.asList("dir2")),
+				journal.merge("/", Arrays.asList("dir1", "dir2")));
+		assertTrue(journal.merge("dir1/sub",
+				Arrays.asList("dir1/sub/other.txt")).isEmpty());
+
+		// written again after the removal
+		journal.recordPut("dir1/new.txt");
+		assertEquals(Boolean.TRUE, journal.exists("dir1/new.txt"));
+		assertNull(journal.exists("dir1"));
+		assertEquals(new HashSet<String>(Arrays.asList("dir1/new.txt")),
+				journal.merge("dir1",
+						Arrays.asList("dir1/new.txt", "dir1/sub")));
+	}
+
+	@Test
+	public void shouldDropRemovedTreeOnceUnlisted() {
+		WriteJournal journal = new WriteJournal(60 * 1000);
+		journal.recordRemoveTree("dir1/sub");
+
+		journal.merge("dir1", Arrays.asList("dir1/a.txt"));
+
+		assertNull(journal.exists("dir1/sub/a.txt"));
+		assertTrue(journal.isEmpty());
+	}
+
+	@Test
+	public void shouldForgetTreeRemovedElsewhere() {
+		WriteJournal journal = new WriteJournal(60 * 1000);
+		journal.recordPut("dir1/a.txt");
+
+		journal.forgetTree("dir1");
+
+		assertNull(journal.exists("dir1/a.txt"));
+		assertTrue(journal.isEmpty());
+	}
+
+	@Test
+	public void shouldExpireUnconfirmedEntries() throws Exception {
+		WriteJournal journal = new WriteJournal(10);
+		journal.recordPut("dir1/a.txt");
+		Thread.sleep(50);
+
+		assertNull(journal.exists("dir1/a.txt"));
+		assertFalse(journal.containsDirectory("dir1"));
+		journal.recordPut("dir1/b.txt");
+		Thread.sleep(50);
+		journal.purge();
+		assertTrue(journal.isEmpty());
+	}
+}